@@ -14,6 +14,8 @@
 
 package eva;
 
+import clojure.lang.RT;
+
 public interface Datom {
     /**
      * Datom's entity-id.
@@ -42,6 +44,42 @@ public interface Datom {
      */
     Object added();
 
+    /**
+     * Datom's entity-id as a primitive long.
+     *
+     * @return the entity-id, unboxed
+     */
+    default long eLong() {
+        return RT.longCast(e());
+    }
+
+    /**
+     * Datom's attribute-id as a primitive long.
+     *
+     * @return the attribute-id, unboxed
+     */
+    default long aLong() {
+        return RT.longCast(a());
+    }
+
+    /**
+     * Datom's transaction number as a primitive long.
+     *
+     * @return the transaction number, unboxed
+     */
+    default long txLong() {
+        return RT.longCast(tx());
+    }
+
+    /**
+     * Indicates if the datom was added or retracted, as a primitive boolean.
+     *
+     * @return true if the datom was added, false if it was retracted
+     */
+    default boolean isAdded() {
+        return RT.booleanCast(added());
+    }
+
     /**
      * Positional getter; treats the datom as a tuple of: [e a v tx added].
      *
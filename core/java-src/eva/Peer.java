@@ -25,6 +25,19 @@ public final class Peer {
     private static IFn seq = Clojure.var("clojure.core", "seq");
     private static IFn apply = Clojure.var("clojure.core", "apply");
 
+    // Handles on the query API, looked up once. Interning a var does not load
+    // its namespace, so these are safe to create before eva.api is required.
+    private static final IFn qVar = Clojure.var("eva.api", "q");
+    private static final IFn qSeqVar = Clojure.var("eva.api", "q-seq");
+    private static final IFn profileVar = Clojure.var("eva.api", "profile");
+    private static final IFn prepareVar = Clojure.var("eva.api", "prepare");
+    private static final IFn hashMap = Clojure.var("clojure.core", "hash-map");
+    private static final IFn vec = Clojure.var("clojure.core", "vec");
+    private static final Object queryKey = Clojure.read(":query");
+    private static final Object argsKey = Clojure.read(":args");
+    private static final Object offsetKey = Clojure.read(":offset");
+    private static final Object limitKey = Clojure.read(":limit");
+
     // This static block is executed at class-load-time.
     // TAKE CARE when adding slow-running code here, as this
     // will cause class-loading to block, giving the appearance of
@@ -73,8 +86,81 @@ public final class Peer {
     @SuppressWarnings("unchecked")
     public static <T> T query(Object query, Object... inputs) {
         requireEvaApi();
-        IFn q = Clojure.var("eva.api", "q");
-        return (T) apply.invoke(q, query, seq.invoke(inputs));
+        return (T) apply.invoke(qVar, query, seq.invoke(inputs));
+    }
+
+    /**
+     * Compile a query once, for repeated execution against different inputs.
+     *
+     * <p>Executing the returned {@link eva.PreparedQuery} skips the per-call
+     * parsing and compilation of {@link #query(Object, Object...)}. A query
+     * taking rules ({@code %}) is still compiled per distinct rules input.</p>
+     *
+     * @param query An eva query
+     * @return A thread-safe prepared query
+     */
+    public static PreparedQuery prepare(Object query) {
+        requireEvaApi();
+        return new PreparedQuery(prepareVar.invoke(query));
+    }
+
+    /**
+     * Execute a query against the given inputs, returning its results lazily.
+     *
+     * <p>Results are shaped (and any pull expressions resolved) only as they are
+     * iterated, so a caller that stops early does not pay for the rest. Queries
+     * with aggregates must still shape every result before the first.</p>
+     *
+     * @param query An eva query with a relation or collection find spec
+     * @param inputs Inputs to the query
+     * @return The query results: a List per tuple, or the values of a collection
+     */
+    public static Iterable<Object> queryStream(Object query, Object... inputs) {
+        requireEvaApi();
+        return asIterable(qSeqVar.invoke(hashMap.invoke(queryKey, query, argsKey, vec.invoke(inputs))));
+    }
+
+    /**
+     * Execute a query against the given inputs, returning one page of its results
+     * lazily: at most {@code limit} results, after skipping the first {@code offset}.
+     *
+     * <p>As with {@link #queryStream(Object, Object...)}, only the results of the page
+     * are shaped and pulled, unless the query has aggregates. Paging is consistent
+     * across calls against the same database value and inputs.</p>
+     *
+     * @param query An eva query with a relation or collection find spec
+     * @param offset The number of results to skip; non-negative
+     * @param limit The most results to return; non-negative
+     * @param inputs Inputs to the query
+     * @return The page of query results: a List per tuple, or the values of a collection
+     */
+    public static Iterable<Object> queryStreamPage(Object query, long offset, long limit, Object... inputs) {
+        requireEvaApi();
+        return asIterable(qSeqVar.invoke(hashMap.invoke(queryKey, query, argsKey, vec.invoke(inputs),
+                                                        offsetKey, offset, limitKey, limit)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Iterable<Object> asIterable(Object results) {
+        return results == null ? Collections.emptyList() : (Iterable<Object>) results;
+    }
+
+    /**
+     * Execute a query against the given inputs, profiling its evaluation.
+     *
+     * <p>The returned map holds the query's results under {@code :result}, the
+     * nanoseconds spent evaluating it under {@code :elapsed-ns}, and under
+     * {@code :plan} a list of the clauses processed, each a map of its bindings
+     * in and out, tuples produced, index selections and elapsed time.</p>
+     *
+     * @param query An eva query
+     * @param inputs Inputs to the query
+     * @return A map of the result, elapsed time and plan
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<Object, Object> profileQuery(Object query, Object... inputs) {
+        requireEvaApi();
+        return (Map<Object, Object>) apply.invoke(profileVar, query, seq.invoke(inputs));
     }
 
     /**
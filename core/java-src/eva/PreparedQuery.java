@@ -0,0 +1,48 @@
+// Copyright 2015-2019 Workiva Inc.
+// 
+// Licensed under the Eclipse Public License 1.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://opensource.org/licenses/eclipse-1.0.php
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package eva;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+/**
+ * A query compiled once by {@link eva.Peer#prepare(Object)}, for repeated
+ * execution against different inputs.
+ *
+ * <p>Instances are immutable and may be shared freely across threads.</p>
+ */
+public final class PreparedQuery {
+    private static final IFn apply = Clojure.var("clojure.core", "apply");
+    private static final IFn seq = Clojure.var("clojure.core", "seq");
+    private static final IFn executePrepared = Clojure.var("eva.api", "execute-prepared");
+
+    private final Object prepared;
+
+    PreparedQuery(Object prepared) {
+        this.prepared = prepared;
+    }
+
+    /**
+     * Execute the query against the given inputs.
+     *
+     * @param inputs Inputs to the query
+     * @param <T> expected return type (depends on find-spec)
+     * @return Query results
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Object... inputs) {
+        return (T) apply.invoke(executePrepared, prepared, seq.invoke(inputs));
+    }
+}
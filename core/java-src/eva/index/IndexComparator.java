@@ -0,0 +1,125 @@
+// Copyright 2015-2019 Workiva Inc.
+// 
+// Licensed under the Eclipse Public License 1.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://opensource.org/licenses/eclipse-1.0.php
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package eva.index;
+
+import clojure.lang.AFunction;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Hand-specialized comparator for packed index tuples.
+ *
+ * Semantically identical to the bounded-seq-comparators in eva.comparators:
+ * the whole key and every component may be one of the LOWER/UPPER bound
+ * sentinels, long components are compared with Long.compare, and the value
+ * component falls back to clojure.core/compare. The difference is that the
+ * shape of each index is fixed at construction so the hot path is a handful
+ * of monomorphic instanceof checks rather than a chain of boxed fn calls.
+ */
+public final class IndexComparator extends AFunction {
+    static final Object LOWER = Keyword.intern("eva.datastructures.utils.comparators", "lower");
+    static final Object UPPER = Keyword.intern("eva.datastructures.utils.comparators", "upper");
+
+    static final int NO_VALUE_SLOT = -1;
+
+    public static final IndexComparator EAVT = new IndexComparator("eavt", 2);
+    public static final IndexComparator AEVT = new IndexComparator("aevt", 2);
+    public static final IndexComparator AVET = new IndexComparator("avet", 1);
+    // only ref-typed datoms are indexed in vaet, so every slot holds a long
+    public static final IndexComparator VAET = new IndexComparator("vaet", NO_VALUE_SLOT);
+
+    private static final int ARITY = 4;
+
+    private final String name;
+    private final int valueSlot;
+
+    private IndexComparator(String name, int valueSlot) {
+        this.name = name;
+        this.valueSlot = valueSlot;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Compares two bound sentinels or values. Returns 2 if neither argument is
+     * a bound and the caller must compare them itself.
+     */
+    private static int compareBounds(Object x, Object y) {
+        if (x == y) return 0;
+        if (y == LOWER) return 1;
+        if (x == UPPER) return 1;
+        if (y == UPPER) return -1;
+        if (x == LOWER) return -1;
+        return 2;
+    }
+
+    static int compareLongs(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            return Long.compare((Long) x, (Long) y);
+        }
+        return Long.compare(RT.longCast(x), RT.longCast(y));
+    }
+
+    static int compareValues(Object x, Object y) {
+        if (x instanceof Long && y instanceof Long) {
+            return Long.compare((Long) x, (Long) y);
+        }
+        if (x instanceof String && y instanceof String) {
+            return ((String) x).compareTo((String) y);
+        }
+        if (x instanceof Keyword && y instanceof Keyword) {
+            return ((Keyword) x).compareTo(y);
+        }
+        if (x instanceof Date && y instanceof Date) {
+            return ((Date) x).compareTo((Date) y);
+        }
+        if (x instanceof UUID && y instanceof UUID) {
+            return ((UUID) x).compareTo((UUID) y);
+        }
+        return Util.compare(x, y);
+    }
+
+    @Override
+    public int compare(Object x, Object y) {
+        int c = compareBounds(x, y);
+        if (c != 2) return c;
+        for (int i = 0; i < ARITY; i++) {
+            Object xi = RT.nth(x, i, null);
+            Object yi = RT.nth(y, i, null);
+            c = compareBounds(xi, yi);
+            if (c == 2) {
+                c = (i == valueSlot) ? compareValues(xi, yi) : compareLongs(xi, yi);
+            }
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    @Override
+    public Object invoke(Object x, Object y) {
+        return compare(x, y);
+    }
+
+    @Override
+    public String toString() {
+        return "#IndexComparator[" + name + "]";
+    }
+}
@@ -0,0 +1,610 @@
+// Copyright 2015-2019 Workiva Inc.
+// 
+// Licensed under the Eclipse Public License 1.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://opensource.org/licenses/eclipse-1.0.php
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package eva.query.datalog;
+
+import clojure.lang.AFn;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IHashEq;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientSet;
+import clojure.lang.Murmur3;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A set of unification maps that all bind the same lvars, stored column-wise.
+ *
+ * The first map added fixes the relation's vars. Each var gets a column that
+ * starts out as a long[] -- entity ids are longs -- and is widened to an
+ * Object[] the first time a value that is not a Long lands in it. Rows are
+ * deduplicated with an open-addressing hash table of row indices, hashed and
+ * compared with the same hasheq/equiv semantics as Clojure's own sets.
+ *
+ * From the outside a Relation is an ordinary persistent set of maps: each row
+ * is materialized as a map when it is seen, so code written against sets of
+ * unification maps keeps working unchanged. Adding a map that binds different
+ * lvars degrades the result to a PersistentHashSet. Code that knows it holds a
+ * Relation can read the columns directly and skip the maps altogether.
+ *
+ * Columns are append-only and shared: a Relation sees only the first count
+ * rows of its columns, so conj onto the relation that last appended to them
+ * adds a row in place rather than copying every column.
+ */
+public final class Relation extends AFn implements IPersistentSet, Set, IHashEq, IEditableCollection, IObj {
+
+    public static final Relation EMPTY = new Relation(null, 0, null);
+
+    private static final Object NOT_FOUND = new Object();
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** Null only for EMPTY, whose vars have not been fixed yet. */
+    private final Columns columns;
+    /** The number of rows of columns that belong to this relation. */
+    private final int count;
+    private final IPersistentMap meta;
+    private int hash;
+    private int hasheq;
+
+    private Relation(Columns columns, int count, IPersistentMap meta) {
+        this.columns = columns;
+        this.count = count;
+        this.meta = meta;
+    }
+
+    /** Returns a relation over coll, a collection of maps. */
+    public static IPersistentSet create(Iterable coll) {
+        ITransientCollection t = EMPTY.asTransient();
+        for (Object o : coll) {
+            t = t.conj(o);
+        }
+        return (IPersistentSet) t.persistent();
+    }
+
+    // ---- columnar access ----------------------------------------------------
+
+    /** The lvars bound by every row, in column order. */
+    public Object[] vars() {
+        return columns == null ? new Object[0] : columns.vars.clone();
+    }
+
+    /** Returns the column holding var, or -1 if this relation does not bind it. */
+    public int columnOf(Object var) {
+        return columns == null ? -1 : columns.columnOf(var);
+    }
+
+    public boolean isLongColumn(int col) {
+        return columns.cols[col] instanceof long[];
+    }
+
+    public long longAt(int row, int col) {
+        return ((long[]) columns.cols[col])[row];
+    }
+
+    public Object valueAt(int row, int col) {
+        return columns.valueAt(row, col);
+    }
+
+    /**
+     * True if pred holds for any value in an Object[] column. Long columns are
+     * skipped, since nothing in them can be an lvar.
+     */
+    public boolean someObjectValue(clojure.lang.IFn pred) {
+        if (columns == null) return false;
+        for (Object col : columns.cols) {
+            if (col instanceof Object[]) {
+                Object[] values = (Object[]) col;
+                for (int r = 0; r < count; r++) {
+                    if (RT.booleanCast(pred.invoke(values[r]))) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the relation of distinct rows restricted to whichever of vars this
+     * relation binds, as (into #{} (map #(select-keys % vars)) this) would.
+     */
+    public Relation project(Object[] vars) {
+        if (columns == null) return this;
+        int[] keep = new int[vars.length];
+        int width = 0;
+        for (Object var : vars) {
+            int c = columns.columnOf(var);
+            if (c >= 0 && !contains(keep, width, c)) keep[width++] = c;
+        }
+        if (width == columns.vars.length) return this;
+        Object[] projectedVars = new Object[width];
+        for (int i = 0; i < width; i++) projectedVars[i] = columns.vars[keep[i]];
+        Columns projected = new Columns(projectedVars, Math.min(count, INITIAL_CAPACITY));
+        Object[] scratch = new Object[width];
+        for (int r = 0; r < count; r++) {
+            for (int i = 0; i < width; i++) scratch[i] = columns.valueAt(r, keep[i]);
+            projected.add(scratch);
+        }
+        return new Relation(projected, projected.size, null);
+    }
+
+    private static boolean contains(int[] xs, int n, int x) {
+        for (int i = 0; i < n; i++) if (xs[i] == x) return true;
+        return false;
+    }
+
+    // ---- IPersistentSet -----------------------------------------------------
+
+    public int count() {
+        return count;
+    }
+
+    public IPersistentCollection cons(Object o) {
+        Object[] values = columns == null ? null : columns.valuesOf(o);
+        if (values == null) {
+            return (IPersistentCollection) ((IObj) asTransient().conj(o).persistent()).withMeta(meta);
+        }
+        int h = Columns.hashValues(values);
+        if (columns.find(values, h, count) >= 0) return this;
+        synchronized (columns) {
+            // only the relation holding every row appended so far may extend the columns
+            if (columns.size == count) {
+                columns.add(values, h);
+                return new Relation(columns, count + 1, meta);
+            }
+        }
+        Columns copy = columns.copy(count);
+        copy.add(values, h);
+        return new Relation(copy, copy.size, meta);
+    }
+
+    public IPersistentCollection empty() {
+        return EMPTY;
+    }
+
+    public boolean equiv(Object o) {
+        return setEquals(o);
+    }
+
+    public ISeq seq() {
+        return count() == 0 ? null : RT.chunkIteratorSeq(iterator());
+    }
+
+    /**
+     * Rows cannot be removed from shared columns, so disjoin degrades to a
+     * PersistentHashSet; further disjoins from it are then cheap.
+     */
+    public IPersistentSet disjoin(Object key) {
+        if (!contains(key)) return this;
+        ITransientCollection t = PersistentHashSet.EMPTY.asTransient();
+        for (int r = 0; r < count; r++) {
+            IPersistentMap row = columns.rowMap(r);
+            if (!Util.equiv(row, key)) t = t.conj(row);
+        }
+        return (IPersistentSet) ((IObj) t.persistent()).withMeta(meta);
+    }
+
+    public boolean contains(Object key) {
+        if (columns == null) return false;
+        Object[] values = columns.valuesOf(key);
+        return values != null && columns.find(values, Columns.hashValues(values), count) >= 0;
+    }
+
+    public Object get(Object key) {
+        return contains(key) ? key : null;
+    }
+
+    public Object invoke(Object key) {
+        return get(key);
+    }
+
+    public Object invoke(Object key, Object notFound) {
+        return contains(key) ? key : notFound;
+    }
+
+    public ITransientCollection asTransient() {
+        return new TransientRelation(columns == null ? null : columns.copy(count));
+    }
+
+    // ---- IObj ---------------------------------------------------------------
+
+    public IPersistentMap meta() {
+        return meta;
+    }
+
+    public Relation withMeta(IPersistentMap meta) {
+        return meta == this.meta ? this : new Relation(columns, count, meta);
+    }
+
+    // ---- java.util.Set ------------------------------------------------------
+
+    public int size() {
+        return count();
+    }
+
+    public boolean isEmpty() {
+        return count() == 0;
+    }
+
+    public Iterator iterator() {
+        return new Iterator() {
+            int row = 0;
+
+            public boolean hasNext() {
+                return row < count();
+            }
+
+            public Object next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return columns.rowMap(row++);
+            }
+        };
+    }
+
+    public Object[] toArray() {
+        return RT.seqToArray(seq());
+    }
+
+    public Object[] toArray(Object[] a) {
+        return RT.seqToPassedArray(seq(), a);
+    }
+
+    public boolean containsAll(Collection c) {
+        for (Object o : c) {
+            if (!contains(o)) return false;
+        }
+        return true;
+    }
+
+    public boolean add(Object o) { throw new UnsupportedOperationException(); }
+    public boolean remove(Object o) { throw new UnsupportedOperationException(); }
+    public boolean addAll(Collection c) { throw new UnsupportedOperationException(); }
+    public boolean retainAll(Collection c) { throw new UnsupportedOperationException(); }
+    public boolean removeAll(Collection c) { throw new UnsupportedOperationException(); }
+    public void clear() { throw new UnsupportedOperationException(); }
+
+    // ---- equality -----------------------------------------------------------
+
+    private boolean setEquals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Set)) return false;
+        Set s = (Set) o;
+        if (s.size() != count()) return false;
+        for (Object x : s) {
+            if (!contains(x)) return false;
+        }
+        return true;
+    }
+
+    public boolean equals(Object o) {
+        return setEquals(o);
+    }
+
+    public int hashCode() {
+        if (hash == 0) {
+            int h = 0;
+            for (Object row : this) h += Util.hash(row);
+            hash = h;
+        }
+        return hash;
+    }
+
+    public int hasheq() {
+        if (hasheq == 0) {
+            hasheq = Murmur3.hashUnordered(this);
+        }
+        return hasheq;
+    }
+
+    public String toString() {
+        return RT.printString(this);
+    }
+
+    // ---- storage ------------------------------------------------------------
+
+    private static final class Columns {
+        final Object[] vars;
+        /**
+         * long[] or Object[] per var, each of length capacity. Widening and
+         * growth publish a fresh outer array, so a reader always sees columns
+         * holding at least the rows that were present when it looked.
+         */
+        volatile Object[] cols;
+        /** Appends are made under the Columns' lock once it is shared. */
+        int size;
+        int capacity;
+        /** Open addressing: each slot holds row + 1, or 0 if empty. */
+        volatile int[] table;
+
+        Columns(Object[] vars, int capacity) {
+            this.vars = vars;
+            this.capacity = Math.max(capacity, 1);
+            Object[] cs = new Object[vars.length];
+            for (int c = 0; c < vars.length; c++) cs[c] = new long[this.capacity];
+            this.cols = cs;
+            this.table = new int[tableSizeFor(this.capacity)];
+        }
+
+        /** Returns a private copy of the first rows rows. */
+        Columns copy(int rows) {
+            Columns copy = new Columns(vars, rows);
+            Object[] cs = cols;
+            Object[] copied = new Object[cs.length];
+            for (int c = 0; c < cs.length; c++) {
+                Object col = cs[c];
+                if (col instanceof long[]) {
+                    long[] longs = new long[copy.capacity];
+                    System.arraycopy(col, 0, longs, 0, rows);
+                    copied[c] = longs;
+                } else {
+                    Object[] objects = new Object[copy.capacity];
+                    System.arraycopy(col, 0, objects, 0, rows);
+                    copied[c] = objects;
+                }
+            }
+            copy.cols = copied;
+            copy.size = rows;
+            int[] t = copy.table;
+            for (int r = 0; r < rows; r++) insert(t, copy.hashRow(r), r);
+            return copy;
+        }
+
+        static int tableSizeFor(int rows) {
+            int n = Integer.highestOneBit(Math.max(rows, 4) - 1) << 2;
+            return n < 0 ? 1 << 30 : n;
+        }
+
+        int columnOf(Object var) {
+            for (int c = 0; c < vars.length; c++) {
+                if (Util.equiv(vars[c], var)) return c;
+            }
+            return -1;
+        }
+
+        Object valueAt(int row, int col) {
+            Object column = cols[col];
+            return column instanceof long[] ? (Object) ((long[]) column)[row] : ((Object[]) column)[row];
+        }
+
+        /** Returns the values of map m in column order, or null if m does not bind exactly vars. */
+        Object[] valuesOf(Object m) {
+            if (!(m instanceof IPersistentMap)) return null;
+            IPersistentMap map = (IPersistentMap) m;
+            if (map.count() != vars.length) return null;
+            Object[] values = new Object[vars.length];
+            for (int c = 0; c < vars.length; c++) {
+                Object v = map.valAt(vars[c], NOT_FOUND);
+                if (v == NOT_FOUND) return null;
+                values[c] = v;
+            }
+            return values;
+        }
+
+        IPersistentMap rowMap(int row) {
+            Object[] cs = cols;
+            Object[] kvs = new Object[vars.length * 2];
+            for (int c = 0; c < vars.length; c++) {
+                Object column = cs[c];
+                kvs[2 * c] = vars[c];
+                kvs[2 * c + 1] = column instanceof long[] ? (Object) ((long[]) column)[row] : ((Object[]) column)[row];
+            }
+            return kvs.length <= 16 ? new PersistentArrayMap(kvs) : PersistentHashMap.create(kvs);
+        }
+
+        static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+
+        static int hashValues(Object[] values) {
+            int h = 1;
+            for (Object v : values) h = 31 * h + Util.hasheq(v);
+            return spread(h);
+        }
+
+        int hashRow(int row) {
+            int h = 1;
+            for (Object col : cols) {
+                h = 31 * h + (col instanceof long[]
+                              ? Murmur3.hashLong(((long[]) col)[row])
+                              : Util.hasheq(((Object[]) col)[row]));
+            }
+            return spread(h);
+        }
+
+        static boolean rowEquals(Object[] cs, int row, Object[] values) {
+            for (int c = 0; c < cs.length; c++) {
+                Object col = cs[c];
+                Object v = values[c];
+                if (col instanceof long[]) {
+                    long x = ((long[]) col)[row];
+                    if (v instanceof Long ? x != (Long) v : !Util.equiv(x, v)) return false;
+                } else if (!Util.equiv(((Object[]) col)[row], v)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns the row below limit equal to values, or -1. */
+        int find(Object[] values, int h, int limit) {
+            int[] t = table;
+            Object[] cs = cols;
+            int mask = t.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                int slot = t[i];
+                if (slot == 0) return -1;
+                // rows at or past limit were appended by some later relation
+                if (slot <= limit && rowEquals(cs, slot - 1, values)) return slot - 1;
+            }
+        }
+
+        /** Adds a row of values in column order, unless an equal row is present. */
+        boolean add(Object[] values) {
+            int h = hashValues(values);
+            if (find(values, h, size) >= 0) return false;
+            add(values, h);
+            return true;
+        }
+
+        /** Appends a row of values hashing to h, known not to be present. */
+        void add(Object[] values, int h) {
+            if (size == capacity) grow();
+            Object[] cs = cols;
+            for (int c = 0; c < cs.length; c++) {
+                Object v = values[c];
+                if (cs[c] instanceof long[]) {
+                    if (v instanceof Long) {
+                        ((long[]) cs[c])[size] = (Long) v;
+                        continue;
+                    }
+                    cs = widen(c);
+                }
+                ((Object[]) cs[c])[size] = v;
+            }
+            insert(table, h, size);
+            size++;
+        }
+
+        private static void insert(int[] t, int h, int row) {
+            int mask = t.length - 1;
+            int i = h & mask;
+            while (t[i] != 0) i = (i + 1) & mask;
+            t[i] = row + 1;
+        }
+
+        private Object[] widen(int c) {
+            Object[] cs = cols.clone();
+            long[] longs = (long[]) cs[c];
+            Object[] objects = new Object[capacity];
+            for (int r = 0; r < size; r++) objects[r] = longs[r];
+            cs[c] = objects;
+            cols = cs;
+            return cs;
+        }
+
+        private void grow() {
+            capacity *= 2;
+            Object[] cs = cols.clone();
+            for (int c = 0; c < cs.length; c++) {
+                Object col = cs[c];
+                if (col instanceof long[]) {
+                    long[] longs = new long[capacity];
+                    System.arraycopy(col, 0, longs, 0, size);
+                    cs[c] = longs;
+                } else {
+                    Object[] objects = new Object[capacity];
+                    System.arraycopy(col, 0, objects, 0, size);
+                    cs[c] = objects;
+                }
+            }
+            cols = cs;
+            // table length stays at least twice the capacity, keeping probes short
+            int[] t = new int[tableSizeFor(capacity)];
+            for (int r = 0; r < size; r++) insert(t, hashRow(r), r);
+            table = t;
+        }
+    }
+
+    private static final class TransientRelation extends AFn implements ITransientSet {
+        private Columns columns;
+        private boolean editable = true;
+
+        TransientRelation(Columns columns) {
+            this.columns = columns;
+        }
+
+        private void ensureEditable() {
+            if (!editable) throw new IllegalAccessError("Transient used after persistent! call");
+        }
+
+        /** Moves the rows so far and o into a transient hash set, when o binds other vars. */
+        private ITransientCollection degrade(Object o) {
+            ITransientCollection t = PersistentHashSet.EMPTY.asTransient();
+            if (columns != null) {
+                for (int r = 0; r < columns.size; r++) t = t.conj(columns.rowMap(r));
+            }
+            editable = false;
+            return t.conj(o);
+        }
+
+        public ITransientSet conj(Object o) {
+            ensureEditable();
+            if (columns == null) {
+                if (!(o instanceof IPersistentMap)) return (ITransientSet) degrade(o);
+                IPersistentMap m = (IPersistentMap) o;
+                Object[] vars = new Object[m.count()];
+                int i = 0;
+                for (ISeq s = RT.keys(m); s != null; s = s.next()) vars[i++] = s.first();
+                columns = new Columns(vars, INITIAL_CAPACITY);
+            }
+            Object[] values = columns.valuesOf(o);
+            if (values == null) return (ITransientSet) degrade(o);
+            columns.add(values);
+            return this;
+        }
+
+        public IPersistentCollection persistent() {
+            ensureEditable();
+            editable = false;
+            return columns == null ? EMPTY : new Relation(columns, columns.size, null);
+        }
+
+        public ITransientSet disjoin(Object key) {
+            ensureEditable();
+            if (!contains(key)) return this;
+            ITransientCollection t = PersistentHashSet.EMPTY.asTransient();
+            for (int r = 0; r < columns.size; r++) {
+                IPersistentMap row = columns.rowMap(r);
+                if (!Util.equiv(row, key)) t = t.conj(row);
+            }
+            editable = false;
+            return (ITransientSet) t;
+        }
+
+        public boolean contains(Object key) {
+            ensureEditable();
+            if (columns == null) return false;
+            Object[] values = columns.valuesOf(key);
+            return values != null && columns.find(values, Columns.hashValues(values), columns.size) >= 0;
+        }
+
+        public Object get(Object key) {
+            return contains(key) ? key : null;
+        }
+
+        public Object invoke(Object key) {
+            return get(key);
+        }
+
+        public Object invoke(Object key, Object notFound) {
+            return contains(key) ? key : notFound;
+        }
+
+        public int count() {
+            ensureEditable();
+            return columns == null ? 0 : columns.size;
+        }
+    }
+}
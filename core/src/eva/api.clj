@@ -296,6 +296,46 @@
   [query & inputs]
   (apply trace-fn-with-tags "eva.api/q:[query & inputs]" qdc/q (ensure-parsed query) inputs))
 
+(d/defn ^{::d/aspects [eva-ex
+                       (logged)
+                       (c/timed)]}
+  q-seq
+  "Like q, but takes a map of :query and :args, with optional :offset and :limit,
+  and returns the results as a lazy sequence of tuples (or of values, for a
+  collection find spec). Errors raised as the sequence is consumed are wrapped
+  as q's are."
+  [query-map]
+  (err/api-error-handling-seq
+   (trace-fn-with-tags "eva.api/q-seq:[query-map]" qdc/q-seq (update query-map :query ensure-parsed))))
+
+(d/defn ^{::d/aspects [eva-ex
+                       (logged)
+                       (c/timed)]}
+  profile
+  "Like q, but returns a map of the :result, the :elapsed-ns of evaluation, and
+  the :plan: per clause, the bindings given and left, the tuples produced, the
+  index selections made and the time taken. See eva.query.core/profile."
+  [query & inputs]
+  (apply trace-fn-with-tags "eva.api/profile:[query & inputs]" qdc/profile (ensure-parsed query) inputs))
+
+(d/defn ^{::d/aspects [eva-ex
+                       (logged)
+                       (c/timed)]}
+  prepare
+  "Compiles a query once, ahead of its inputs, for repeated execution through
+  execute-prepared. The prepared query is immutable and may be shared across
+  threads."
+  [query]
+  (qdc/prepare (ensure-parsed query)))
+
+(d/defn ^{::d/aspects [eva-ex
+                       (logged)
+                       (c/timed)]}
+  execute-prepared
+  "Executes a query returned by prepare against the given inputs, as q would."
+  [prepared & inputs]
+  (apply trace-fn-with-tags "eva.api/execute-prepared:[prepared & inputs]" prepared inputs))
+
 ;; Existence API
 (d/defn ^{::d/aspects [eva-ex
                        (logged)
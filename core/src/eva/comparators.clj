@@ -15,21 +15,33 @@
 (ns eva.comparators
   (:require [eva.datastructures.utils.comparators
              :refer [defcomparator
+                     ->Comparator
                      bounded-seq-comparator
                      bound
                      bounded-proj-comparator]]
             [eva.error :refer [insist]])
-  (:import (eva Datom)))
+  (:import (eva Datom)
+           (eva.index IndexComparator)))
 
 (defn ->full-proj-sym [s] (symbol (str s "-full-proj-cmp")))
 (defn ->index-sym [s] (symbol (str s "-index-cmp")))
+(defn ->generic-index-sym [s] (symbol (str s "-generic-index-cmp")))
 
 (defmacro defcomparators
-  "Explodes out to define a set of comparators"
-  [cmp-name & projs-and-cmps]
+  "Explodes out to define a set of comparators.
+
+   The index comparator is the specialized java comparator given; it must
+   order tuples exactly as the generic bounded-seq comparator built from the
+   component comparators, which is kept alongside it for testing and
+   benchmarking. Since the index comparator's var is what b-tree nodes
+   serialize, existing indexes pick up the specialized implementation when
+   their nodes are read."
+  [cmp-name index-cmp & projs-and-cmps]
   (insist (even? (count projs-and-cmps)))
   (let [cmps (take-nth 2 (rest projs-and-cmps))]
     `(do (defcomparator ~(->index-sym cmp-name)
+           (->Comparator ~index-cmp ~index-cmp true true nil))
+         (defcomparator ~(->generic-index-sym cmp-name)
            (bounded-seq-comparator ~@cmps))
          (defcomparator ~(->full-proj-sym cmp-name)
            (bounded-proj-comparator ~@projs-and-cmps)))))
@@ -41,36 +53,44 @@
 (defn -a [^Datom d] (.a d))
 (defn -v [^Datom d] (.v d))
 (defn -tx [^Datom d] (.tx d))
-(defcomparators eavt
+(defcomparators eavt IndexComparator/EAVT
   -e lng-cmp
   -a lng-cmp
   -v compare
   -tx lng-cmp)
 
-(defcomparators aevt
+(defcomparators aevt IndexComparator/AEVT
   -a lng-cmp
   -e lng-cmp
   -v compare
   -tx lng-cmp)
 
-(defcomparators avet
+(defcomparators avet IndexComparator/AVET
   -a lng-cmp
   -v compare
   -e lng-cmp
   -tx lng-cmp)
 
-(defcomparators vaet
+(defcomparators vaet IndexComparator/VAET
   -v lng-cmp
   -a lng-cmp
   -e lng-cmp
   -tx lng-cmp)
 
 (defn index-cmp [index-name]
+  (case index-name
+    ("eavt" "eavth" :eavt :eavth) eavt-index-cmp
+    ("aevt" "aevth" :aevt :aevth) aevt-index-cmp
+    ("avet" "aveth" :avet :aveth) avet-index-cmp
+    ("vaet" "vaeth" :vaet :vaeth) vaet-index-cmp
+    nil))
+
+(defn generic-index-cmp [index-name]
   (cond
-    (contains? #{"eavt" "eavth" :eavt :eavth} index-name) eavt-index-cmp
-    (contains? #{"aevt" "aevth" :aevt :aevth} index-name) aevt-index-cmp
-    (contains? #{"avet" "aveth" :avet :aveth} index-name) avet-index-cmp
-    (contains? #{"vaet" "vaeth" :vaet :vaeth} index-name) vaet-index-cmp))
+    (contains? #{"eavt" "eavth" :eavt :eavth} index-name) eavt-generic-index-cmp
+    (contains? #{"aevt" "aevth" :aevt :aevth} index-name) aevt-generic-index-cmp
+    (contains? #{"avet" "aveth" :avet :aveth} index-name) avet-generic-index-cmp
+    (contains? #{"vaet" "vaeth" :vaet :vaeth} index-name) vaet-generic-index-cmp))
 
 (defn full-proj-cmp [index-name]
   (cond
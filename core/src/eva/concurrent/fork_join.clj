@@ -0,0 +1,43 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.concurrent.fork-join
+  "A bounded fork-join pool shared by the query engine's concurrent evaluation:
+  independent rule branches, per-source extension fetches, and chunks of large
+  pulls. The transaction pipeline also validates attribute groups of large
+  transactions on it."
+  (:require [eva.config :refer [config-strict]])
+  (:import [java.util.concurrent ForkJoinPool ForkJoinTask]))
+
+(defonce ^:private query-pool
+  (delay (ForkJoinPool. (int (config-strict :eva.query.fork-join.thread-count)))))
+
+(defn fork-all
+  "Calls each of the thunks fs on the query pool, returning their results in order.
+  Called from a task already on the pool, the thunks are forked there, so that the
+  waiting worker helps run them rather than blocking. The first exception thrown,
+  in order, is rethrown as is."
+  [fs]
+  (let [^ForkJoinPool pool @query-pool
+        tasks (mapv (fn [f]
+                      (let [f (bound-fn* f)]
+                        (ForkJoinTask/adapt ^Callable (fn [] (try [true (f)] (catch Throwable t [false t]))))))
+                    fs)]
+    (if (identical? pool (ForkJoinTask/getPool))
+      (ForkJoinTask/invokeAll ^java.util.Collection tasks)
+      (.invoke pool (ForkJoinTask/adapt ^Callable (fn [] (ForkJoinTask/invokeAll ^java.util.Collection tasks)))))
+    (mapv (fn [^ForkJoinTask task]
+            (let [[ok? x] (.join task)]
+              (if ok? x (throw x))))
+          tasks)))
@@ -165,6 +165,19 @@
                                                                          :default 10
                                                                          :doc     "When lazy reading a span from the transaction log, asynchronously attempt to stay this many chunks ahead."
                                                                          :env     "EVA_LOG_READ_CHUNKS_AHEAD"}
+   :eva.log.lazy-head                                                   {:type    Boolean
+                                                                         :default false
+                                                                         :doc     "When enabled, log appends cost a single conditional write and the log head is advanced asynchronously as a hint; opening the log probes forward from the hint for the true tail."
+                                                                         :env     "EVA_LOG_LAZY_HEAD"}
+   :eva.database.lookup-ref-cache.max-size                              {:type    Long
+                                                                         :default 100000
+                                                                         :doc     "Maximum number of lookup-ref resolutions cached for the snapshots of a database."}
+   :eva.database.as-of-cache.max-size                                   {:type    Long
+                                                                         :default 32
+                                                                         :doc     "Maximum number of as-of database snapshots cached across all databases."}
+   :eva.database.as-of-cache.max-advance                                {:type    Long
+                                                                         :default 100
+                                                                         :doc     "Maximum number of transactions an as-of request will replay forward from a cached earlier snapshot rather than building the snapshot from its index roots."}
    :eva.database.indexes.max-tx-delta                                   {:type    Long
                                                                          :env     "EVA_DATABASE_INDEXES_MAX_TX_DELTA"
                                                                          :default 100}
@@ -174,6 +187,18 @@
    :eva.transact-timeout                                                {:type    Long
                                                                          :default 10000
                                                                          :env     "EVA_TRANSACT_TIMEOUT"}
+   :eva.transactor.group-commit.max-batch                               {:type    Long
+                                                                         :default 64
+                                                                         :env     "EVA_TRANSACTOR_GROUP_COMMIT_MAX_BATCH"
+                                                                         :doc     "The most queued transactions the transactor will commit with a single log append. 1 disables group commit."}
+   :eva.transactor.group-commit.concurrency                             {:type    Long
+                                                                         :default 1
+                                                                         :env     "EVA_TRANSACTOR_GROUP_COMMIT_CONCURRENCY"
+                                                                         :doc     "The number of transaction requests the transactor receives at once. Requests received together queue for the same log append. Above 1, requests are received out of order, so transactions a peer submits without waiting on each other may commit in a different order than submitted."}
+   :eva.functions.compiled-cache.max-size                               {:type    Long
+                                                                         :default 1024
+                                                                         :env     "EVA_FUNCTIONS_COMPILED_CACHE_MAX_SIZE"
+                                                                         :doc     "Maximum number of compiled database functions cached process-wide, keyed by their source, params, requires and imports."}
    :eva.transaction-pipeline.compile-db-fns                             {:type    Boolean
                                                                          :default true
                                                                          :env     "EVA_TRANSACTION_PIPELINE_COMPILE_DB_FNS"
@@ -190,9 +215,58 @@
                                                                          :default false
                                                                          :env     "EVA_TRANSACTION_REJECT_BYTE_LIMITS"
                                                                          :doc     "When enabled, transactions over the byte size limit will be rejected with an exception."}
+   :eva.transaction-pipeline.parallel-validation.threshold              {:type    Long
+                                                                         :default 1000
+                                                                         :env     "EVA_TRANSACTION_PIPELINE_PARALLEL_VALIDATION_THRESHOLD"
+                                                                         :doc     "Transactions with at least this many commands have their attribute groups validated in parallel. 0 disables parallel validation."}
+   :eva.query.access-path.probe-weight                                  {:type    Long
+                                                                         :default 16
+                                                                         :doc     "When resolving [e a] patterns, an attribute is scanned once instead of probed per entity if its estimated size is at most this many datoms per probe."}
+   :eva.query.fork-join.thread-count                                    {:type    Long
+                                                                         :default (.. Runtime getRuntime availableProcessors)
+                                                                         :env     "EVA_CONTAINER_CORE_LIMIT"
+                                                                         :doc     "The parallelism of the fork-join pool shared by concurrent query evaluation: rule branches and per-source extension fetches."}
    :eva.query.memoization-cache                                         {:type    Long
                                                                          :default 100
                                                                          :doc     "The threshold used for caching query compilation"}
+   :eva.query.parallel-rules                                            {:type    Boolean
+                                                                         :default false
+                                                                         :doc     "When true, the rules relevant to a query step (including those compiled from or/or-join clauses) are evaluated concurrently once there are at least :eva.query.parallel-rules.threshold of them"}
+   :eva.query.parallel-rules.threshold                                  {:type    Long
+                                                                         :default 2
+                                                                         :doc     "The least number of relevant rules a query step must have to be evaluated concurrently"}
+   :eva.query.parallel-sources                                          {:type    Boolean
+                                                                         :default true
+                                                                         :doc     "When true, the extensions a query needs from several sources are fetched from each source concurrently"}
+   :eva.query.pull.chunk-size                                           {:type    Long
+                                                                         :default 512
+                                                                         :doc     "pull-many expands entity ids in chunks of at most this many, concurrently; each chunk's frontier is still fetched in batches per depth"}
+   :eva.query.pull.pattern-cache                                        {:type    Long
+                                                                         :default 1000
+                                                                         :doc     "The number of conformed and normalized pull patterns cached by their raw form"}
+   :eva.query.raw-form-cache                                            {:type    Long
+                                                                         :default 1000
+                                                                         :doc     "The number of compiled queries cached by their unconformed query form and rules input"}
+   :eva.query.reorder-clauses                                           {:type    Boolean
+                                                                         :default true
+                                                                         :doc     "When true, rule bodies are evaluated in order of the estimated size of each clause's result rather than as written; set false for hand-ordered queries"}
+   :eva.query.result-cache.max-size                                     {:type    Long
+                                                                         :default 0
+                                                                         :env     "EVA_QUERY_RESULT_CACHE_MAX_SIZE"
+                                                                         :doc     "The number of query results cached by query form and inputs; 0 disables the query result cache"}
+   :eva.query.result-cache.expire-after-access-ms                       {:type    Long
+                                                                         :default (* 10 60 1000)
+                                                                         :doc     "Cached query results not read for this many milliseconds are evicted"}
+   :eva.query.semi-naive                                                {:type    Boolean
+                                                                         :default true
+                                                                         :doc     "When true, later rounds of recursive query evaluation join linearly recursive rules against only the tuples derived in the previous round"}
+   :eva.query.slow-query.threshold-ms                                   {:type    Long
+                                                                         :default 0
+                                                                         :env     "EVA_SLOW_QUERY_THRESHOLD_MS"
+                                                                         :doc     "Sampled queries taking at least this many milliseconds are logged with their profiled plan, which includes the query's constants; 0 disables the slow-query log"}
+   :eva.query.slow-query.sample-rate                                    {:type    Double
+                                                                         :default 0.1
+                                                                         :doc     "The fraction of queries profiled for the slow-query log when it is enabled"}
    :eva.query.trace-logging                                             {:type    Boolean
                                                                          :default false
                                                                          :env     "EVA_QUERY_TRACE_LOGGING"
@@ -60,6 +60,12 @@
   (multi-select-datoms [source criteria] "[source [:index & coll-of-components]]")
   (multi-select-datoms-ordered [source criteria] "[source [:index & coll-of-components]]"))
 
+(defprotocol SelectDatomRange
+  (select-datom-range [source criteria] "[source [:index lower-components upper-components]]; both bounds inclusive."))
+
+(defprotocol EstimateDatoms
+  (estimate-datoms [source criteria] "[source [:index & components]]; approximate count of what select-datoms would return."))
+
 ;; defines a wildcard for datoms-based selection.
 (def wildcard '*)
 (def wildcard? #{wildcard})
@@ -71,7 +77,7 @@
   (resolve-eid-partition [db eid]))
 
 (defprotocol LookupRefCache
-  (update-lookup-ref-cache! [cache resolved-id-map]))
+  (update-lookup-ref-cache! [cache resolved-id-map] "Records resolutions, keyed by normalized [attr-eid v]; nil eids record absence."))
 
 (defprotocol LookupRefResolution
   (assert-conformant-lookup-ref [resolver ^java.util.List lookup-ref]
@@ -82,8 +88,10 @@
     "Like resolve-lookup-ref, but throws :resolve-entid/no-such-eid if there is no entity id for the lookup-ref")
   (batch-resolve-lookup-refs [resolver lookup-refs]
     "Resolves a group of lookup refs in aggregate.")
-  (batch-resolve-lookup-refs-strict [db lookup-refs]
-    "Like batch-resolve-lookup-refs, but throws :resolve-entid/no-such-eid if any of lookup-refs not found"))
+  (batch-resolve-lookup-refs-strict [db lookup-refs] [db lookup-refs select-avet]
+    "Like batch-resolve-lookup-refs, but throws :resolve-entid/no-such-eid if any of lookup-refs not found.
+     If given, select-avet is called with the [a v] pairs not served from cache
+     and must return the aligned :avet datoms for each."))
 
 (defprotocol EntidCoercionType
   (entid-coercion-type [x] "Returns a keyword representing the type of this object for the purposes of entity id coercion. Exists as a protocol so that we can use satisfies? to identify objects outside of this class. Is also used internally for partitioning objects for batch resolution."))
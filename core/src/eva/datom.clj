@@ -41,6 +41,7 @@
             [plumbing.core :as pc])
   (:import (java.io Writer)
            (com.carrotsearch.sizeof RamUsageEstimator)
+           (clojure.lang RT Util)
            (eva Datom)))
 
 (defprotocol PackableDatom
@@ -76,6 +77,15 @@
          (set! ~k (int h#))
          h#))))
 
+;; as above, but without allocating a closure on every call
+(defmacro ^:private caching-int [k expr]
+  `(let [h# ~k]
+     (if-not (== h# (int -1))
+       h#
+       (let [h# (int ~expr)]
+         (set! ~k h#)
+         h#))))
+
 (defn ->interval [c0 c1 c2]
   (open-interval [c0 c1 c2 LOWER] [c0 c1 c2 UPPER]))
 
@@ -83,6 +93,30 @@
   (-> (reduce unchecked-add-int 0 (map hash collection))
       (mix-collection-hash (count collection))))
 
+(defn datom-hash
+  "Object.hashCode for datoms. Shared by every Datom implementation so
+   that equal datoms hash equally regardless of their concrete type."
+  ^long [e a v tx added]
+  (bit-xor (Util/hash e) (Util/hash a) (Util/hash v) (Util/hash tx) (Util/hash added)))
+
+(defn datom-hasheq
+  "IHashEq.hasheq for datoms; equivalent to (hash-unordered [e a v tx added])
+   without realizing the seq."
+  ^long [e a v tx added]
+  (-> (unchecked-add-int (unchecked-add-int (unchecked-add-int (unchecked-add-int (Util/hasheq e)
+                                                                                  (Util/hasheq a))
+                                                               (Util/hasheq v))
+                                            (Util/hasheq tx))
+                         (Util/hasheq added))
+      (mix-collection-hash 5)))
+
+(defn datom-equiv [^Datom d ^Datom other]
+  (and (= (.e d) (.e other))
+       (= (.a d) (.a other))
+       (= (.v d) (.v other))
+       (= (.tx d) (.tx other))
+       (= (.added d) (.added other))))
+
 (deftype DatomMap [e a v tx added
                    ^:unsynchronized-mutable ^int _hash
                    ^:unsynchronized-mutable ^int _hasheq
@@ -98,6 +132,10 @@
   (v [_] v)
   (tx [_] tx)
   (added [_] added)
+  (eLong [_] (RT/longCast e))
+  (aLong [_] (RT/longCast a))
+  (txLong [_] (RT/longCast tx))
+  (isAdded [_] (boolean added))
   (getIndex [this i] (nth this i))
   (getKey [this k]
     (case k
@@ -111,32 +149,19 @@
     (DatomMap. e a v tx added _hash _hasheq _size m))
   (meta [this] _meta)
   clojure.lang.IHashEq
-  (hasheq [this] (hash-unordered this))
+  (hasheq [this] (caching-int _hasheq (datom-hasheq e a v tx added)))
   Object
-  (hashCode [this] (bit-xor (.hashCode (class this))
-                            (.hashCode e)
-                            (.hashCode a)
-                            (.hashCode v)
-                            (.hashCode tx)
-                            (.hashCode added)))
+  (hashCode [this] (caching-int _hash (datom-hash e a v tx added)))
   (equals [this other]
     (or (identical? this other)
         (and (instance? Datom other)
-             (= e (.e ^Datom other))
-             (= a (.a ^Datom other))
-             (= v (.v ^Datom other))
-             (= tx (.tx ^Datom other))
-             (= added (.added ^Datom other)))))
+             (datom-equiv this other))))
   (toString [this] (pr-str this))
   clojure.lang.IPersistentMap
   (count [_] 5)
   (equiv [this that]
     (and (instance? Datom that)
-         (= e (.e ^Datom that))
-         (= a (.a ^Datom that))
-         (= v (.v ^Datom that))
-         (= tx (.tx ^Datom that))
-         (= added (.added ^Datom that))))
+         (datom-equiv this that)))
   (seq [this] (seq [e a v tx added]))
   (assoc [this k v']
     (case k
@@ -191,6 +216,125 @@
   (->vaeth [d] [:conj [v a (->peid d) tx]])
   (->log [d] [(->peid d) a v]))
 
+;; Describes where e, a and v live in a packed index tuple. The tx is always
+;; in the last position. In historical indexes the entity slot holds a peid,
+;; with the retraction flag folded into bit 62.
+(deftype TupleLayout [^int e-pos ^int a-pos ^int v-pos ^boolean hist?])
+
+(def ^:private tuple-layouts
+  {:eavt  (TupleLayout. 0 1 2 false)
+   :aevt  (TupleLayout. 1 0 2 false)
+   :avet  (TupleLayout. 2 0 1 false)
+   :vaet  (TupleLayout. 2 1 0 false)
+   :eavth (TupleLayout. 0 1 2 true)
+   :aevth (TupleLayout. 1 0 2 true)
+   :aveth (TupleLayout. 2 0 1 true)
+   :vaeth (TupleLayout. 2 1 0 true)})
+
+(defn tuple-layout
+  ^TupleLayout [index-name]
+  (or (get tuple-layouts index-name)
+      (throw (RuntimeException. (str "Index: " index-name " is non-canonical")))))
+
+(declare datom)
+
+;; A flyweight Datom over a packed index tuple. Nothing is re-ordered or
+;; copied when the view is constructed; each field is read out of the tuple
+;; on demand, unboxed by the primitive accessors.
+(deftype PackedDatom [tuple
+                      ^TupleLayout layout
+                      ^:unsynchronized-mutable ^int _hash
+                      ^:unsynchronized-mutable ^int _hasheq
+                      ^:unsynchronized-mutable ^int _size
+                      _meta]
+  java.io.Serializable
+  sapi/SizeEstimable
+  (ram-size [this]
+    (caching-int-fn this #(RamUsageEstimator/sizeOf %) _size))
+  Datom
+  (e [this]
+    (if (.-hist? layout)
+      (.eLong this)
+      (nth tuple (.-e-pos layout))))
+  (a [_] (nth tuple (.-a-pos layout)))
+  (v [_] (nth tuple (.-v-pos layout)))
+  (tx [_] (nth tuple 3))
+  (added [this] (.isAdded this))
+  (eLong [_]
+    (let [e (RT/longCast (nth tuple (.-e-pos layout)))]
+      (if (.-hist? layout) (bit-clear e 62) e)))
+  (aLong [_] (RT/longCast (nth tuple (.-a-pos layout))))
+  (txLong [_] (RT/longCast (nth tuple 3)))
+  (isAdded [_]
+    (or (not (.-hist? layout))
+        (not (bit-test (RT/longCast (nth tuple (.-e-pos layout))) 62))))
+  (getIndex [this i] (nth this i))
+  (getKey [this k]
+    (case k
+      (:e "e") (.e this)
+      (:a "a") (.a this)
+      (:v "v") (.v this)
+      (:tx "tx") (.tx this)
+      (:added "added") (.added this)))
+  clojure.lang.IObj
+  (withMeta [this m]
+    (PackedDatom. tuple layout _hash _hasheq _size m))
+  (meta [this] _meta)
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (caching-int _hasheq (datom-hasheq (.e this) (.a this) (.v this) (.tx this) (.added this))))
+  Object
+  (hashCode [this]
+    (caching-int _hash (datom-hash (.e this) (.a this) (.v this) (.tx this) (.added this))))
+  (equals [this other]
+    (or (identical? this other)
+        (and (instance? Datom other)
+             (datom-equiv this other))))
+  (toString [this] (pr-str this))
+  clojure.lang.IPersistentMap
+  (count [_] 5)
+  (equiv [this that]
+    (and (instance? Datom that)
+         (datom-equiv this that)))
+  (seq [this] (seq [(.e this) (.a this) (.v this) (.tx this) (.added this)]))
+  (assoc [this k v']
+    (-> (datom (.e this) (.a this) (.v this) (.tx this) (.added this))
+        (assoc k v')))
+  (valAt [this k]
+    (.valAt this k nil))
+  (valAt [this k not-found]
+    (case k
+      (:e "e") (.e this)
+      (:a "a") (.a this)
+      (:v "v") (.v this)
+      (:tx "tx") (.tx this)
+      (:added "added") (.added this)
+      not-found))
+  clojure.lang.Indexed
+  (nth [this i]
+    (case i
+      0 (.e this)
+      1 (.a this)
+      2 (.v this)
+      3 (.tx this)
+      4 (.added this)
+      (throw (IndexOutOfBoundsException. (str "Index " i " is out of range for a datom")))))
+  (nth [this i not-found]
+    (if (<= 0 i 4)
+      (nth this i)
+      not-found))
+  PackableDatom
+  (->peid [d] (if (.isAdded d) (.eLong d) (bit-set (.eLong d) 62)))
+  (->eavt  [d] (->eavt (datom (.e d) (.a d) (.v d) (.tx d) (.added d))))
+  (->avet  [d] (->avet (datom (.e d) (.a d) (.v d) (.tx d) (.added d))))
+  (->aevt  [d] (->aevt (datom (.e d) (.a d) (.v d) (.tx d) (.added d))))
+  (->vaet  [d] (->vaet (datom (.e d) (.a d) (.v d) (.tx d) (.added d))))
+  (->aevth [d] [:conj [(.a d) (->peid d) (.v d) (.tx d)]])
+  (->aveth [d] [:conj [(.a d) (.v d) (->peid d) (.tx d)]])
+  (->eavth [d] [:conj [(->peid d) (.a d) (.v d) (.tx d)]])
+  (->vaeth [d] [:conj [(.v d) (.a d) (->peid d) (.tx d)]])
+  (->log [d] [(->peid d) (.a d) (.v d)]))
+
 (defn datom
   ([[e a v tx added]] (datom e a v tx added))
   ([tx [op e a v]]    (datom e a v tx (pc/safe-get {:db/add true, :db/retract false} op)))
@@ -244,16 +388,9 @@
      (datom (bit-clear peid 62) a v tx added))))
 
 (defn unpack
-  ([index-name [c0 c1 c2 c3]]
-   (case index-name
-     :eavt (datom c0 c1 c2 c3 true)
-     :aevt (datom c1 c0 c2 c3 true)
-     :avet (datom c2 c0 c1 c3 true)
-     :vaet (datom c2 c1 c0 c3 true)
-     :eavth (datom (bit-clear c0 62) c1 c2 c3 (not (bit-test c0 62)))
-     :aevth (datom (bit-clear c1 62) c0 c2 c3 (not (bit-test c1 62)))
-     :aveth (datom (bit-clear c2 62) c0 c1 c3 (not (bit-test c2 62)))
-     :vaeth (datom (bit-clear c2 62) c1 c0 c3 (not (bit-test c2 62))))))
+  "Returns a flyweight Datom view over the packed tuple read from the named index."
+  ([index-name tuple]
+   (PackedDatom. tuple (tuple-layout index-name) -1 -1 -1 nil)))
 
 (defn add? [^Datom d] (.added d))
 (defn retract? [^Datom d] (not (.added d)))
@@ -262,16 +399,19 @@
 
 (defn ->retracts [coll] (filter retract? coll))
 
+(def ^:private datom-fressian-writer
+  (reify org.fressian.handlers.WriteHandler
+    (write [_ w d]
+      (.writeTag w "eva/datom" 5)
+      (.writeObject w (.e ^Datom d))
+      (.writeObject w (.a ^Datom d))
+      (.writeObject w (.v ^Datom d))
+      (.writeObject w (.tx ^Datom d))
+      (.writeObject w (.added ^Datom d)))))
+
 (def datom-write-handler
-  {DatomMap {"eva/datom"
-             (reify org.fressian.handlers.WriteHandler
-               (write [_ w d]
-                 (.writeTag w "eva/datom" 5)
-                 (.writeObject w (.e ^Datom d))
-                 (.writeObject w (.a ^Datom d))
-                 (.writeObject w (.v ^Datom d))
-                 (.writeObject w (.tx ^Datom d))
-                 (.writeObject w (.added ^Datom d))))}})
+  {DatomMap    {"eva/datom" datom-fressian-writer}
+   PackedDatom {"eva/datom" datom-fressian-writer}})
 
 (def datom-read-handler
   {"eva/datom"
@@ -186,6 +186,15 @@
                             e#)]
         (throw (handle-api-error wrapper#))))))
 
+(defn api-error-handling-seq
+  "Returns a lazy seq of the elements of coll, each step of whose realization is
+  wrapped in with-api-error-handling. For API functions returning lazy seqs, whose
+  errors would otherwise escape the eva-ex aspect as they are consumed."
+  [coll]
+  (lazy-seq
+   (when-let [s (with-api-error-handling (seq coll))]
+     (cons (first s) (api-error-handling-seq (rest s))))))
+
 (defn eva-ex
   "an aspect for eva.error/with-api-error-handling"
   [fn-form]
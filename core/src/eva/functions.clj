@@ -20,8 +20,13 @@
             [clojure.edn]
             [eva.error :refer [raise]]
             [eva.attribute :as attr]
-            [recide.sanex :as sanex]
-            [clojure.core.cache :as cache]))
+            [eva.config :refer [config]]
+            [eva.utils.guava-cache :as gcache]
+            [barometer.core :as metrics]
+            [recide.sanex :as sanex])
+  (:import (com.google.common.cache Cache)
+           (com.google.common.util.concurrent UncheckedExecutionException ExecutionError)
+           (java.util.concurrent ExecutionException)))
 
 (defprotocol CompilableFunction
   (->f [obj]))
@@ -82,12 +87,47 @@
             f (eval do-block)]
         f))))
 
-(defonce fn-cache (atom (cache/lru-cache-factory {} :threshold 1024)))
-
-(defn ensure-cached-fn [fn-cache dbfn]
-  (if (cache/has? fn-cache dbfn)
-    (cache/hit fn-cache dbfn)
-    (cache/miss fn-cache dbfn (compile-db-fn dbfn))))
+;; Compiled functions are shared by every database and snapshot in the process,
+;; keyed by the content they were compiled from rather than by the db value,
+;; so reloads and new connections reuse them.
+(defonce ^Cache compiled-fn-cache
+  (.build (gcache/cache-builder {:maximum-size (config :eva.functions.compiled-cache.max-size)})))
+
+(def compile-timer
+  (metrics/get-or-register metrics/DEFAULT 'eva.functions:compile.timer
+                           (metrics/timer "Times compilation of database functions missing the compiled-function cache.")))
+
+(def compiled-cache-hit-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.functions:compiled-cache-hit.counter
+                           (metrics/counter "Counts database functions served by the compiled-function cache.")))
+
+(def compiled-cache-miss-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.functions:compiled-cache-miss.counter
+                           (metrics/counter "Counts database functions compiled on a miss of the compiled-function cache.")))
+
+(defn compiled-fn-key
+  "The name is part of the key since the compiled function is named after it."
+  [{:keys [lang params code imports requires fn-name]}]
+  [(some-> lang name) params code imports requires fn-name])
+
+(defn compiled-fn
+  "Returns the compiled function for the db-fn, compiling it at most once per
+  distinct source, params, requires and imports. Compilation errors are
+  rethrown as is."
+  [dbfn]
+  (let [compiled? (volatile! false)
+        f (try
+            (.get compiled-fn-cache
+                  (compiled-fn-key dbfn)
+                  (fn []
+                    (vreset! compiled? true)
+                    (metrics/with-timer compile-timer
+                      (compile-db-fn dbfn))))
+            (catch ExecutionException e (throw (.getCause e)))
+            (catch UncheckedExecutionException e (throw (.getCause e)))
+            (catch ExecutionError e (throw (.getCause e))))]
+    (metrics/increment (if @compiled? compiled-cache-miss-counter compiled-cache-hit-counter))
+    f))
 
 (s/defrecord DBFn [lang :- (s/either (s/eq "clojure"))
                    params :- [s/Symbol]
@@ -97,8 +137,7 @@
                    fn-name]
   CompilableFunction
   (->f [this]
-    (let [cache' (swap! fn-cache ensure-cached-fn this)]
-      (get cache' this)))
+    (compiled-fn this))
 
   java.lang.Comparable
   (compareTo [this o]
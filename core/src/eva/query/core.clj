@@ -13,21 +13,97 @@
 ;; limitations under the License.
 
 (ns eva.query.core
-  (:require [eva.query.dialect.translation.core :refer [compile]]
+  (:require [eva.query.dialect.translation.core :refer [compile raw-rules-idx]]
             [eva.query.trace :as special]
+            [eva.query.profile :as profile]
+            [eva.query.result-cache :as result-cache]
+            [eva.config :refer [config-strict]]
+            [eva.error :refer [insist]]
+            [recide.sanex.logging :as log]
             [morphe.core :as d]
             [ichnaie.core :refer [traced]])
   (:refer-clojure :exclude [compile]))
 
+(defn- slow-query-sampled?
+  []
+  (and (pos? (config-strict :eva.query.slow-query.threshold-ms))
+       (< (rand) (config-strict :eva.query.slow-query.sample-rate))))
+
+(defn- run-logging-if-slow
+  "Runs the compiled query under profiling, logging its plan if it took at least
+  :eva.query.slow-query.threshold-ms."
+  [form compiled inputs]
+  (let [{:keys [result elapsed-ns plan]} (profile/profile-call #(compiled inputs))
+        ms (quot elapsed-ns 1000000)]
+    (when (<= (config-strict :eva.query.slow-query.threshold-ms) ms)
+      (log/warnf "Slow query took %d ms: %s\nPlan: %s" ms (pr-str form) (pr-str plan)))
+    result))
+
+(defn- run-compiled
+  [form compiled inputs]
+  (special/trace "QUAESTIO: Inspecting query: " ((:inspect compiled) inputs))
+  (let [run #(if (slow-query-sampled?)
+               (run-logging-if-slow form compiled inputs)
+               (compiled inputs))
+        r (if (result-cache/enabled?)
+            (result-cache/cached-call form inputs run)
+            (run))]
+    (special/trace "QUAESTIO: eva/query/q returning.")
+    r))
+
 (d/defn ^{::d/aspects [traced]} q
   "This executes a query, given a matching set of inputs."
   [query & inputs]
   (special/trace "QUAESTIO: eva.query/q called.")
-  (let [query (apply compile query inputs)
-        _ (special/trace "QUAESTIO: Inspecting query: " ((:inspect query) inputs))
-        r (query inputs)]
-    (special/trace "QUAESTIO: eva/query/q returning.")
-    r))
+  (run-compiled query (apply compile query inputs) inputs))
+
+(defn prepare
+  "Compiles a query ahead of its inputs, returning a function of them that
+  executes the query as q does. A query taking rules (%) can only be compiled
+  once its rules are given, so it is compiled per call, through the same
+  cache q uses."
+  [query]
+  (let [raw (if (map? query)
+              (mapcat (partial apply (partial apply list)) query)
+              query)]
+    (if (raw-rules-idx raw)
+      (fn prepared [& inputs] (apply q query inputs))
+      (let [compiled (compile query)]
+        (fn prepared [& inputs]
+          (special/trace "QUAESTIO: eva.query/prepare executing.")
+          (run-compiled query compiled inputs))))))
+
+(d/defn ^{::d/aspects [traced]} q-seq
+  "Executes a query, given a map of :query and :args, returning its results as a
+  lazy sequence: tuples for a relation find spec, values for a collection. The
+  optional :offset and :limit page the results; unless the query aggregates, only
+  the results consumed are shaped or pulled."
+  [{:keys [query args offset limit]}]
+  (insist (or (nil? offset) (nat-int? offset)) ":offset must be a non-negative integer.")
+  (insist (or (nil? limit) (nat-int? limit)) ":limit must be a non-negative integer.")
+  (special/trace "QUAESTIO: eva.query/q-seq called.")
+  (let [query (apply compile query args)]
+    ((:stream query) args {:offset offset, :limit limit})))
+
+(defn profile
+  "Executes a query as q does, returning a map of its :result, the :elapsed-ns
+  of its evaluation, and its :plan. The plan is a vector of the clauses the
+  engine processed, in order, each a map of:
+    :clause       the clause's datalog expression
+    :kind         :extensional, :evaluable or :rule
+    :negated?     whether the clause is negated
+    :bindings-in  the number of bindings the clause was given
+    :bindings-out the number of bindings left after it
+    :tuples       the number of tuples it produced, for extensional and evaluable clauses
+    :selections   for clauses answered by a Database, each index selection: its
+                  :index, :boundedness, value :range, number of :probes and :datoms
+    :elapsed-ns   the time spent processing the clause
+    :children     for rule clauses, the clauses of the rule's subquery
+  Since clauses are ordered by estimated cost as the query runs, the plan is only
+  known from running it."
+  [query & inputs]
+  (let [query (apply compile query inputs)]
+    (profile/profile-call #(query inputs))))
 
 (defn inspect
   "This compiles a query with a matching set of inputs, and returns
@@ -25,4 +25,8 @@
     (extensions [_ terms]
       (for [tuple tuples
             :when (some #(unifies? tuple %) terms)]
-        tuple))))
+        tuple))
+    p/EstimableEDB
+    (estimate-extensions [_ terms]
+      ;; every tuple is visited however terms are bound
+      (when (counted? tuples) (count tuples)))))
@@ -14,6 +14,7 @@
 
 (ns eva.query.datalog.program
   (:require [eva.query.datalog.protocols :as p]
+            [eva.query.datalog.relation :as relation]
             [clojure.core.unify :as u]
             [eva.error :refer [insist]]))
 
@@ -51,10 +52,17 @@
   p/Program
   (extension [program gen-pred]
     (let [terms (p/terms gen-pred)
-          terms (sequence (comp (map #(replace % terms)) ;; TODO: change data structure representation of bindings in gen-pred?
-                                (distinct))
-                          (:bindings gen-pred))]
+          bindings (:bindings gen-pred)
+          terms (if (relation/relation? bindings)
+                  (relation/substitutions bindings terms)
+                  (sequence (comp (map #(replace % terms))
+                                  (distinct))
+                            bindings))]
       (p/extensions (get edbs (p/sym gen-pred)) terms)))
+  (estimate-extension [program pred coll-of-terms]
+    (let [edb (get edbs (p/sym pred))]
+      (when (satisfies? p/EstimableEDB edb)
+        (p/estimate-extensions edb coll-of-terms))))
   (evaluation [program gen-pred]
     (let [terms (subst-in (p/decoration gen-pred) (p/terms gen-pred) (p/bound-terms gen-pred))]
       (p/evaluations (get evaluators (p/sym gen-pred)) terms)))
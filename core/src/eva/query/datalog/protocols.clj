@@ -17,6 +17,12 @@
 (defprotocol EDB
   (extensions [edb coll-of-terms] "Given an extensional predicate and a collection of groups of terms, returns a sequence containing all distinct matches for any of the term groups."))
 
+(defprotocol RangeEDB
+  (range-extensions [edb coll-of-terms v-range] "As extensions, but only matches whose value term lies within v-range ({:lower x, :upper y}, inclusive, either optional) are required. Matches outside of it may still be returned."))
+
+(defprotocol EstimableEDB
+  (estimate-extensions [edb coll-of-terms] "Given a collection of groups of terms, returns the approximate number of matches extensions would return for them, or nil if the EDB cannot say."))
+
 (defprotocol Evaluable
   (evaluations [ev coll-of-terms] "Given an evaluable predicate and a collection of groups of terms, returns a sequence containing all distinct matches for any of the term groups."))
 
@@ -34,6 +40,7 @@
 (defprotocol Program
   (extension [program pred] "Returns a collection of tuples representing fully-bound terms of the extensional predicate.")
   (evaluation [program pred] "Returns a collection of tuples representing fully-bound terms of the evaluable predicate.")
+  (estimate-extension [program pred coll-of-terms] "Returns the approximate number of tuples of the extensional predicate matching any of coll-of-terms, or nil if unknown.")
   (relevant-rules [program pred] "Returns a collection of rules whose consequent consists of the supplied predicate.")
   (range-restricted? [program rule] "In this program, is this rule range-restricted?"))
 
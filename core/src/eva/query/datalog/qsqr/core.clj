@@ -18,17 +18,18 @@
             [eva.query.datalog.qsqr.protocols :as qp]
             [eva.query.datalog.qsqr.state :as state]
             [eva.query.datalog.predicate :as pred]
+            [eva.query.datalog.relation :as relation]
             [eva.query.util :as qutil]
+            [eva.config :refer [config-strict]]
             [clojure.core.unify :as u]
             [utiliva.alpha :refer [sreduce]]
+            [eva.concurrent.fork-join :refer [fork-all]]
+            [eva.query.profile :as profile]
             [eva.query.trace :as special]))
 
 (declare query*)
-(defn antecedent-step
-  "Processes one particular antecedent of a rule, adding or removing from the current
-  set of viable bindings. gen-predicate, as the name suggests, must be a generalized
-  predicate. Returns the new state blob."
-  [program state gen-predicate]
+(defn- step-antecedent
+  [program state gen-predicate since]
   (special/trace "Antecedent step: " (p/expression gen-predicate))
   (let [novel-query (state/novel-generalization state gen-predicate)
         state (if-not novel-query
@@ -40,11 +41,13 @@
                   (cond (p/extensional? gen-predicate)
                         (do (special/trace " > It's extensional, and its result is:")
                             (state/update-derived state gen-predicate
-                                                  (special/trace-spy "(take 10): " (partial take 10) (p/extension program novel-query))))
+                                                  (special/trace-spy "(take 10): " (partial take 10)
+                                                                     (profile/note-count! :tuples (p/extension program novel-query)))))
 
                         (p/evaluable? gen-predicate)
                         (state/update-derived state gen-predicate
-                                              (special/trace-spy "(take 10): " (partial take 10) (p/evaluation program novel-query)))
+                                              (special/trace-spy "(take 10): " (partial take 10)
+                                                                 (profile/note-count! :tuples (p/evaluation program novel-query))))
 
                         (p/rule? gen-predicate)
                         (let [subquery-state (state/trim-bindings state novel-query)] ;; substantial efficiency boost
@@ -53,66 +56,164 @@
                                       (qp/bindings (qp/bindings state)))]
                             (special/trace " < RETURNED from the subquery.")
                             r)))))]
-    (let [r (state/conjunct-bindings state gen-predicate)]  ;; lvars -> constants, negation removes matches
+    (let [r (state/conjunct-bindings state gen-predicate (when (p/rule? gen-predicate) since))]  ;; lvars -> constants, negation removes matches
       (special/trace " - Bindings: " (qp/bindings r))
       r)))
 
+(defn- clause-kind
+  [pred]
+  (cond (p/extensional? pred) :extensional
+        (p/evaluable? pred) :evaluable
+        (p/rule? pred) :rule))
+
+(defn antecedent-step
+  "Processes one particular antecedent of a rule, adding or removing from the current
+  set of viable bindings. gen-predicate, as the name suggests, must be a generalized
+  predicate. If since is given, a positive rule antecedent is only joined against
+  the tuples derived since that generation. Returns the new state blob. When
+  profiling, the step is recorded as a clause of the plan."
+  ([program state gen-predicate] (antecedent-step program state gen-predicate nil))
+  ([program state gen-predicate since]
+   (if (profile/profiling?)
+     (profile/clause {:clause (p/expression gen-predicate)
+                      :kind (clause-kind gen-predicate)
+                      :negated? (boolean (p/negated? gen-predicate))
+                      :bindings-in (count (qp/bindings state))}
+                     (fn [state] {:bindings-out (count (qp/bindings state))})
+                     #(step-antecedent program state gen-predicate since))
+     (step-antecedent program state gen-predicate since))))
+
+(defn linear-recursive?
+  "True if the rule's only rule antecedent is a positive recursion on the rule's
+  own consequent, and no antecedent is negated. Every other antecedent then gives
+  the same results in each round of query*, so the round's novel tuples can only
+  come from joining the recursion against tuples derived since the previous one."
+  [rule]
+  (let [ants (p/antecedents rule)
+        rule-ants (filter p/rule? ants)]
+    (and (= 1 (count rule-ants))
+         (= (p/sym (first rule-ants)) (p/sym (p/consequent rule)))
+         (not-any? p/negated? ants))))
+
 (defn rule-step
   "Processes one particular rule whose head matches the current predicate, query.
   query should be a generalized predicate."
   [program query state rule]
-  (let [unified-rule (rule/freshen-expressions rule query)]
+  (let [unified-rule (rule/freshen-expressions rule query)
+        since (when (linear-recursive? unified-rule)
+                (get (:marks state) (p/sym query)))]
     (special/trace "Rule step: " (p/expression unified-rule))
     (sreduce qp/select-antecedent
              (fn [state ant]
                (let [[ant bindings] (pred/constants->lvars ant (qp/bindings state))
                      state (qp/bindings state bindings)
                      ant (state/predicate->generalized ant bindings)
-                     state (antecedent-step program state ant)]
+                     state (antecedent-step program state ant since)]
                  (if (empty? (qp/bindings state))
                    (reduced state)
                    state)))
              state
              (p/antecedents unified-rule))))
 
+(defn- rule-branch
+  [program query state rule]
+  (as-> (rule-step program query state rule) state
+    (state/update-derived state query (state/extract-derived state query))))
+
+(defn- ordered-rules
+  [state query rules]
+  (loop [ordered []
+         [rule rules] (qp/select-rule state query rules)]
+    (if (empty? rules)
+      (conj ordered rule)
+      (recur (conj ordered rule) (qp/select-rule state query rules)))))
+
+(defn- parallel-query-step
+  "Evaluates each of rules from state concurrently, merging the resulting states
+  in rule order."
+  [program state query rules]
+  (special/trace " > Evaluating " (count rules) " rules concurrently.")
+  (state/merge-branches state (profile/branches fork-all
+                                                (for [rule rules]
+                                                  #(rule-branch program query state rule)))))
+
 (defn query-step
   "Grabs all rules relevant to the current query, and iterates over them, returning
-  a new state containing the union of the bindings given by processing each rule."
+  a new state containing the union of the bindings given by processing each rule.
+  If the state has a parallel-threshold that many relevant rules meet, the rules
+  are instead evaluated concurrently, each from the same state."
   [program state query]
   (special/trace "Query step: " (p/expression query))
   (let [bindings (qp/bindings state)]
-    (let [relevant-rules (p/relevant-rules program query)]
+    (let [relevant-rules (p/relevant-rules program query)
+          threshold (:parallel-threshold state)]
       (assert (seq relevant-rules)
               (format "The program has no relevant rules for the expression: %s"
                       (p/expression query)))
-      (loop [disjunctive-bindings #{}
-             state state
-             [rule rules] (qp/select-rule state query relevant-rules)]
-        (let [state (as-> (rule-step program query state rule) state
-                      (state/update-derived state query (state/extract-derived state query)))
-              reset-state (qp/bindings state bindings)
-              disjunctive-bindings (into disjunctive-bindings (qp/bindings state))]
-          (if (empty? rules)
-            (do (special/trace " > Disjuncive bindings:\n" disjunctive-bindings "\n  ^^^^^^^^^^^")
-                (qp/bindings state disjunctive-bindings))
-            (recur disjunctive-bindings
-                   reset-state
-                   (qp/select-rule reset-state query rules))))))))
+      (if (and threshold (<= threshold (count relevant-rules)))
+        (parallel-query-step program state query (ordered-rules state query relevant-rules))
+        (loop [disjunctive-bindings relation/empty-relation
+               state state
+               [rule rules] (qp/select-rule state query relevant-rules)]
+          (let [state (rule-branch program query state rule)
+                reset-state (qp/bindings state bindings)
+                disjunctive-bindings (into disjunctive-bindings (qp/bindings state))]
+            (if (empty? rules)
+              (do (special/trace " > Disjuncive bindings:\n" disjunctive-bindings "\n  ^^^^^^^^^^^")
+                  (qp/bindings state disjunctive-bindings))
+              (recur disjunctive-bindings
+                     reset-state
+                     (qp/select-rule reset-state query rules)))))))))
 
 (defn query*
   "Top of the QSQR algorithm. Takes a snapshot of current state, runs query-step
   on the current predicate, and returns if no new relations have been derived.
-  q must be a generalized predicate."
+  Under semi-naive evaluation, each round after the first joins linearly recursive
+  rules only against the tuples derived since the start of the previous round;
+  the outermost query* for q's predicate drops the novelty of earlier rounds as
+  it goes, and all of it when done. q must be a generalized predicate."
   [program state q]
   (special/trace "Current goal: " q)
   (let [orig-bindings (qp/bindings state)
-        orig-rule-log (qp/rule-log state)]
-    (loop [prev-derived (qp/derived state)
-           state (query-step program state q)]
-      (if (= prev-derived (qp/derived state))
-        state
-        (let [reset-state (-> state (qp/bindings orig-bindings) (qp/rule-log orig-rule-log))]
-          (recur (qp/derived state) (query-step program reset-state q)))))))
+        orig-rule-log (qp/rule-log state)
+        sym (p/sym q)
+        outermost? (not (contains? (:marks state) sym))
+        outer-mark (get (:marks state) sym)
+        round (fn [state mark]
+                (let [state (-> state state/next-generation (assoc-in [:marks sym] mark))]
+                  [(:generation state) (:derivations state) (query-step program state q)]))]
+    (loop [[generation prev-derivations state] (round state nil)]
+      (if (= prev-derivations (:derivations state))
+        (if outermost?
+          (-> state (update :marks dissoc sym) (state/prune-novelty sym nil))
+          (assoc-in state [:marks sym] outer-mark))
+        (let [reset-state (cond-> (-> state (qp/bindings orig-bindings) (qp/rule-log orig-rule-log))
+                            outermost? (state/prune-novelty sym generation))]
+          (recur (round reset-state (when (:semi-naive? state) generation))))))))
+
+(defn- evaluate
+  "Runs QSQR to a fixpoint for q, returning the derived relations of q's predicate
+  that unify with q's terms, as a lazy sequence."
+  [program q init-bindings]
+  (let [exemplar (-> (p/relevant-rules program q)
+                     first p/consequent)
+        ;; ^^ an example of this predicate expression pulled from the rules; preserves ?src__ vs. ?auto__.
+        terms (p/terms exemplar)
+        binding (qutil/simple-unify terms (map #(if (u/lvar? %) '_ %) (p/terms q)))
+        ;; ^^ created by unifying the constants in the original query with the exemplar terms
+        bindings (into relation/empty-relation (map (partial merge binding)) init-bindings)
+        q-new (state/predicate->generalized exemplar bindings)
+        init-state (-> state/init-state
+                       (assoc :semi-naive? (config-strict :eva.query.semi-naive))
+                       (cond-> (config-strict :eva.query.parallel-rules)
+                         (assoc :parallel-threshold (config-strict :eva.query.parallel-rules.threshold)))
+                       (cond-> (config-strict :eva.query.reorder-clauses)
+                         (assoc :pred-selector (state/estimating-pred-selector program)))
+                       (qp/add-query q-new)
+                       (qp/bindings bindings))
+        result (query* program init-state q-new)
+        all-derived (get (:derived result) (p/sym q))]
+    (sequence (filter (partial qutil/unifies? (p/terms q))) all-derived)))
 
 (defn query
   "Entry to the QSQR algorithm. Defaults to no initial bindings, but a set may be passed
@@ -121,15 +222,12 @@
   ([program q]
    (query program q #{{}}))
   ([program q init-bindings]
-   (let [exemplar (-> (p/relevant-rules program q)
-                      first p/consequent)
-          ;; ^^ an example of this predicate expression pulled from the rules; preserves ?src__ vs. ?auto__.
-         terms (p/terms exemplar)
-         binding (qutil/simple-unify terms (map #(if (u/lvar? %) '_ %) (p/terms q)))
-         ;; ^^ created by unifying the constants in the original query with the exemplar terms
-         bindings (into #{} (map (partial merge binding)) init-bindings)
-         q-new (state/predicate->generalized exemplar bindings)
-         init-state (-> state/init-state (qp/add-query q-new) (qp/bindings bindings))
-         result (query* program init-state q-new)
-         all-derived (get (:derived result) (p/sym q))]
-     (set (filter (partial qutil/unifies? (p/terms q)) all-derived)))))
+   (set (evaluate program q init-bindings))))
+
+(defn query-seq
+  "As query, but returns the derived relations as a lazy sequence rather than a
+  set. Evaluation itself is not lazy; only the filtering of what it derived is."
+  ([program q]
+   (query-seq program q #{{}}))
+  ([program q init-bindings]
+   (evaluate program q init-bindings)))
@@ -0,0 +1,121 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.query.datalog.qsqr.join
+  "Hash joins and anti-joins over bindings and derived tuples. The hash table is
+  only ever built over the smaller input, and the larger one is streamed against
+  it. Keys that are all longs (as entity ids are) are tabled in a java.util.HashMap
+  of Long, skipping Clojure's hasheq/equiv dispatch."
+  (:import [java.util ArrayList HashMap Map]
+           [java.math BigInteger]
+           [clojure.lang BigInt]))
+
+(defn- long-key
+  "Returns k as a Long if k is an integer that clojure.core/= considers equal to
+  some long; else nil."
+  [k]
+  (cond (instance? Long k) k
+        (or (instance? Integer k) (instance? Short k) (instance? Byte k)) (Long/valueOf (long k))
+        (instance? BigInt k) (when (nil? (.bipart ^BigInt k)) (Long/valueOf (.lpart ^BigInt k)))
+        (instance? BigInteger k) (when (< (.bitLength ^BigInteger k) 64) (Long/valueOf (.longValue ^BigInteger k)))
+        :else nil))
+
+(defn- long-table
+  "Groups coll by key-fn into a HashMap of Long -> ArrayList, or returns nil if
+  any key is not a Long."
+  [coll key-fn]
+  (reduce (fn [^HashMap table x]
+            (let [k (key-fn x)]
+              (if (instance? Long k)
+                (let [^ArrayList group (.get table k)]
+                  (if group
+                    (.add group x)
+                    (.put table k (doto (ArrayList.) (.add x))))
+                  table)
+                (reduced nil))))
+          (HashMap.)
+          coll))
+
+(defn- generic-table
+  "Groups coll by key-fn into a persistent map of key -> vector."
+  [coll key-fn]
+  (persistent!
+   (reduce (fn [table x]
+             (let [k (key-fn x)]
+               (assoc! table k (conj (get table k []) x))))
+           (transient {})
+           coll)))
+
+(defn- build
+  "Returns [table probe-key] for coll, where (probe-key k) yields the key under
+  which items of the other side with key k would be found in table, or nil."
+  [coll key-fn]
+  (if-some [table (long-table coll key-fn)]
+    [table long-key]
+    [(generic-table coll key-fn) identity]))
+
+(defn- lookup [^Map table k] (when (some? k) (.get table k)))
+
+(defn- smaller-first? [a b] (<= (count a) (count b)))
+
+(defn hash-join
+  "Joins a and b on the keys given by key-a and key-b, returning the union, into
+  init (by default #{}), of (cross-merge as bs) over each group of items as from
+  a and bs from b sharing a key. Items of the streamed side that find no match are
+  never grouped."
+  ([a key-a b key-b cross-merge] (hash-join a key-a b key-b cross-merge #{}))
+  ([a key-a b key-b cross-merge init]
+   (if (or (empty? a) (empty? b))
+     init
+     (let [build-a? (smaller-first? a b)
+           [build-coll build-key probe-coll probe-key] (if build-a? [a key-a b key-b] [b key-b a key-a])
+           [table ->table-key] (build build-coll build-key)
+           matches (HashMap.)]
+       (doseq [x probe-coll
+               :let [k (->table-key (probe-key x))]
+               :when (some? (lookup table k))]
+         (let [^ArrayList group (.get matches k)]
+           (if group
+             (.add group x)
+             (.put matches k (doto (ArrayList.) (.add x))))))
+       (persistent!
+        (reduce (fn [res [k probed]]
+                  (let [built (lookup table k)]
+                    (reduce conj! res (if build-a?
+                                        (cross-merge built probed)
+                                        (cross-merge probed built)))))
+                (transient init)
+                matches))))))
+
+(defn hash-anti-join
+  "Returns the items of a, into init (by default #{}), whose key under key-a is
+  not the key under key-b of any item of b."
+  ([a key-a b key-b] (hash-anti-join a key-a b key-b #{}))
+  ([a key-a b key-b init]
+   (cond (empty? a) init
+         (empty? b) (into init a)
+         (smaller-first? a b)
+         (let [[table ->table-key] (build a key-a)
+               matched (into #{}
+                             (comp (map (comp ->table-key key-b))
+                                   (filter #(some? (lookup table %))))
+                             b)]
+           (into init
+                 (remove #(contains? matched (->table-key (key-a %))))
+                 a))
+         :else
+         (let [[table ->table-key] (build b key-b)]
+           (into init
+                 (remove #(some? (lookup table (->table-key (key-a %)))))
+                 a)))))
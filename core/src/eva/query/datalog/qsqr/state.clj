@@ -16,7 +16,9 @@
   (:require [eva.query.datalog.protocols :as p]
             [eva.query.datalog.predicate :as pred]
             [eva.query.datalog.qsqr.protocols :as qp]
-            [eva.query.util :refer [simple-unify simple-unifications]]
+            [eva.query.util :refer [simple-unify simple-unifications lvar-strict?]]
+            [eva.query.datalog.qsqr.join :as join]
+            [eva.query.datalog.relation :as relation]
             [eva.query.datalog.error :refer [raise-bindings]]
             [recide.sanex :as sanex]
             [eva.query.util :as qutil]
@@ -37,6 +39,21 @@
 
 ;; :bindings structure
 ;; #{ unifier, unifier, unifier ... } (unifier = { ?a ?b, ?b c, ... })
+;; held as an eva.query.datalog.Relation wherever every unifier binds the same lvars.
+
+;; :novelty structure (semi-naive evaluation only)
+;; { rule-symbol (sorted-map generation #{ constants }) }
+;; where generation counts the rounds of query* run so far. Once a round of the
+;; outermost query* for rule-symbol completes, the generations before it can no
+;; longer be joined against, and are dropped (see prune-novelty).
+
+;; :marks structure
+;; { rule-symbol generation } -- the current query* for rule-symbol only needs to
+;; join linearly recursive rules against tuples derived since generation. A
+;; rule-symbol has an entry only while a query* for it is running.
+
+;; :parallel-threshold
+;; nil, or the least number of relevant rules a query-step evaluates concurrently.
 
 (defn- log-key
   [query]
@@ -64,7 +81,8 @@
         res))))
 
 (defrecord State
-    [rule-log extension-log evaluation-log derived bindings rule-selector pred-selector]
+    [rule-log extension-log evaluation-log derived bindings rule-selector pred-selector
+     derivations generation novelty marks semi-naive? parallel-threshold]
   qp/State
   (rule-log [_] rule-log)
   (rule-log [this qs] (assoc this :rule-log qs))
@@ -130,6 +148,80 @@
                        :bindings (-> state qp/bindings first keys),
                        ::sanex/sanitary? false}))) ;; customer data
 
+(def ^:private estimate-sample-size 4)
+
+(defn- estimated-cost-per-binding
+  "The estimated size of pred's result for each of bindings, or nil if unknown."
+  [program bindings pred]
+  (cond (or (p/negated? pred) (p/evaluable? pred))
+        0
+
+        (p/extensional? pred)
+        (let [terms (p/terms pred)
+              sample (take estimate-sample-size bindings)]
+          (when-some [estimate (p/estimate-extension program pred (map #(replace % terms) sample))]
+            (/ estimate (max 1 (count sample)))))
+
+        :else
+        nil))
+
+(defn estimated-cost
+  "Estimates the size of pred's result under bindings. A positive extensional
+  predicate is estimated by its EDB over a sample of the bindings, scaled to all
+  of them. Evaluable and negated predicates only compute from or filter what is
+  already bound, and cost nothing. Anything else is unknown: nil."
+  [program bindings pred]
+  (some-> (estimated-cost-per-binding program bindings pred)
+          (* (count bindings))))
+
+(defn- estimate-key
+  "Identifies pred, and which of its terms bindings bind, independently of the
+  names of its lvars, which are freshened on every rule step: each term is kept
+  if a constant, else marked as bound, or as free by the position of its first
+  occurrence among the terms."
+  [bindings pred]
+  (let [representative (first bindings)
+        terms (vec (p/terms pred))]
+    [(p/sym pred)
+     (p/negated? pred)
+     (mapv (fn [term]
+             (cond (not (u/lvar? term)) [:constant term]
+                   (contains? representative term) [:bound]
+                   :else [:free (.indexOf ^java.util.List terms term)]))
+           terms)]))
+
+(defn estimating-pred-selector
+  "Returns a predicate selector that picks, among the predicates whose required
+  bindings are met, the one of least estimated-cost. Unknown costs sort last,
+  and ties keep the order the predicates were given in.
+
+  Each EDB estimate reads the indexes, so the selector remembers the cost per
+  binding of each predicate under each set of its own terms bound (see
+  estimate-key). A body of predicates then re-estimates only those whose terms
+  the last selection bound, and a rule body evaluated again and again, however
+  its lvars were freshened, is estimated only once."
+  [program]
+  (let [per-binding-costs (atom {})]
+    (fn [state preds]
+      (let [bindings (qp/bindings state)
+            preds (vec preds)
+            met (filterv #(pred-required-met? bindings (nth preds %)) (range (count preds)))
+            cost (fn [pred]
+                   (let [k (estimate-key bindings pred)
+                         per-binding (if-some [[_ c] (find @per-binding-costs k)]
+                                       c
+                                       (let [c (estimated-cost-per-binding program bindings pred)]
+                                         (swap! per-binding-costs assoc k c)
+                                         c))]
+                     (some-> per-binding (* (count bindings)))))]
+        (if (< (count met) 2)
+          (default-pred-selector state preds)
+          (let [[_ i] (first (sort (for [i met]
+                                     [(or (cost (nth preds i))
+                                          Double/POSITIVE_INFINITY)
+                                      i])))]
+            [(nth preds i) (into (subvec preds 0 i) (subvec preds (inc i)))]))))))
+
 (defn default-rule-selector
   [_ query rules]
   (let [decoration (set (p/decoration query))
@@ -139,61 +231,103 @@
                         {:rules rules,
                          ::sanex/sanitary? false}))))
 
-(def init-state (->State {} {} {} {} #{{}} default-rule-selector default-pred-selector))
+(def init-state (->State {} {} {} {} #{{}} default-rule-selector default-pred-selector 0 0 {} {} false nil))
 
 (d/defn ^{::d/aspects [traced]} extract-derived
   [state predicate]
-  (let [terms (p/terms predicate)]
-    (distinct (for [bindings (qp/bindings state)]
-                (replace (u/flatten-bindings bindings) terms)))))
+  (let [terms (p/terms predicate)
+        bindings (qp/bindings state)]
+    (if (relation/ground? bindings)
+      (relation/substitutions bindings terms)
+      (distinct (for [bindings bindings]
+                  (replace (u/flatten-bindings bindings) terms))))))
 
 (d/defn ^{::d/aspects [traced]} update-derived
+  "Adds derived to the derived relation of predicate, counting the novel tuples
+  in :derivations and, under semi-naive evaluation of a rule, recording them in
+  :novelty under the current generation."
   [state predicate derived]
-  (update-in state [:derived (p/sym predicate)] (fnil into #{}) derived))
+  (let [sym (p/sym predicate)
+        prior (get-in state [:derived sym] #{})
+        novel (into #{} (remove prior) derived)]
+    (if (empty? novel)
+      (assoc-in state [:derived sym] prior)
+      (cond-> (-> state
+                  (assoc-in [:derived sym] (into prior novel))
+                  (update :derivations + (count novel)))
+        (and (:semi-naive? state) (p/rule? predicate))
+        (update-in [:novelty sym] (fnil update (sorted-map)) (:generation state) (fnil into #{}) novel)))))
+
+(defn next-generation [state] (update state :generation inc))
+
+(defn derived-since
+  "Returns the tuples of rule relation sym first derived in or after generation."
+  [state sym generation]
+  (into #{}
+        (mapcat val)
+        (subseq (get-in state [:novelty sym] (sorted-map)) >= generation)))
+
+(defn prune-novelty
+  "Drops the tuples of rule relation sym first derived before generation from
+  :novelty, or all of its novelty if generation is nil."
+  [state sym generation]
+  (if (nil? generation)
+    (update state :novelty dissoc sym)
+    (if-some [novelty (get-in state [:novelty sym])]
+      (assoc-in state [:novelty sym] (into (sorted-map) (subseq novelty >= generation)))
+      state)))
+
+(defn- merge-nested
+  [depth a b]
+  (if (zero? depth)
+    (into a b)
+    (merge-with (partial merge-nested (dec depth)) a b)))
+
+(defn merge-branches
+  "Merges the states reached by independently evaluating several branches from
+  the same base state. The logs, derived relations, and novelty are unioned;
+  :derivations counts the tuples derived beyond base; the generation is the
+  latest any branch reached; and the bindings are the union of the branches'
+  bindings, taken in the order given."
+  [base states]
+  (let [merged (reduce (fn [acc state]
+                         (-> acc
+                             (update :rule-log (partial merge-nested 3) (:rule-log state))
+                             (update :extension-log (partial merge-nested 3) (:extension-log state))
+                             (update :evaluation-log (partial merge-nested 3) (:evaluation-log state))
+                             (update :derived (partial merge-nested 1) (:derived state))
+                             (update :novelty (partial merge-nested 2) (:novelty state))))
+                       base
+                       states)
+        novel (reduce-kv (fn [n sym tuples]
+                           (+ n (- (count tuples) (count (get-in base [:derived sym])))))
+                         0
+                         (:derived merged))]
+    (-> merged
+        (assoc :derivations (+ (:derivations base) novel))
+        (assoc :generation (reduce max (:generation base) (map :generation states)))
+        (qp/bindings (transduce (map qp/bindings) (completing into) relation/empty-relation states)))))
 
 (defn trim-bindings
   [state generalized-query]
   (let [relevant-lvars (filter u/lvar? (p/terms generalized-query))
         bindings (qp/bindings state)]
-    (qp/bindings state
-                 (into #{}
-                       (map #(select-keys % relevant-lvars))
-                       bindings))))
-
-(defn join
-  "Performs a join in 'linear time' O(input + output). merge should be a
-  function that actually performs the join on each pair of items from
-  each cross-product determined by the discriminator. :)" ;; TODO: better words
-  ([a b disc merge] (join a identity b identity disc merge))
-  ([a disc-a b disc-b merge] (join a disc-a b disc-b identity merge))
-  ([a proj-a b proj-b disc merge]
-   (let [a-groups (group-by (comp disc proj-a) a)
-         b-groups (group-by (comp disc proj-b) b)]
-     (for [k (keys a-groups)
-           :let [as (get a-groups k)
-                 bs (get b-groups k)]
-           :when bs
-           a as
-           b bs
-           :let [merged (merge a b)]
-           :when (some? merged)]
-       merged))))
-
-(defn join-with-batched-merge-fn
-  "Performs a join in 'linear time' O(input + output). Like `join`, but
-  takes a merge-fn that operates on the full sets of items involved in
-  each cross-product of the join."
-  ([a b disc cross-merge] (join-with-batched-merge-fn a identity b identity disc cross-merge))
-  ([a disc-a b disc-b cross-merge] (join-with-batched-merge-fn a disc-a b disc-b identity cross-merge))
-  ([a proj-a b proj-b disc cross-merge]
-   (let [a-groups (group-by (comp disc proj-a) a)
-         b-groups (group-by (comp disc proj-b) b)]
-     (reduce into #{}
-             (for [k (keys a-groups)
-                  :let [as (get a-groups k)
-                        bs (get b-groups k)]
-                  :when bs]
-                (cross-merge as bs))))))
+    (qp/bindings state (relation/project bindings relevant-lvars))))
+
+(defn- join-keys
+  "Returns [binding-key tuple-key], projecting unification maps and derived tuples
+  onto the given positions of terms. Terms bound in exemplar are keyed by their
+  bound values, any others as constants. A single position gives scalar keys."
+  [terms exemplar positions]
+  (let [term-keys (mapv (fn [i]
+                          (let [t (nth terms i)]
+                            (if (contains? exemplar t) #(get % t) (constantly t))))
+                        positions)]
+    (if (= 1 (count positions))
+      (let [i (first positions)]
+        [(first term-keys) #(nth % i)])
+      [(fn [m] (mapv #(% m) term-keys))
+       (fn [v] (mapv #(nth v %) positions))])))
 
 (defn add-unifiable
   [bindings predicate derived]
@@ -202,37 +336,57 @@
     (cond (empty? derived)
           #{}
           :else
-          (let [lvars (sequence (filter exemplar) terms)
-                indices (set (keep-indexed #(when (exemplar %2) %) terms))]
+          (let [indices (into [] (keep-indexed #(when (exemplar %2) %)) terms)]
             (if (empty? indices)
-              (simple-unifications terms bindings derived)
-              (let [bindings-disc (if (empty? lvars)
-                                    (constantly ())
-                                    (apply juxt (map #(fn [m] (get m %)) lvars)))
-                    derived-disc (fn [v] (keep-indexed #(when (indices %) %2) v))]
-                (join-with-batched-merge-fn bindings
-                                            bindings-disc
-                                            derived
-                                            derived-disc
-                                            (partial simple-unifications terms))))))))
+              (relation/relation (simple-unifications terms bindings derived))
+              (let [[bindings-key derived-key] (join-keys terms exemplar indices)]
+                (join/hash-join bindings
+                                bindings-key
+                                derived
+                                derived-key
+                                (partial simple-unifications terms)
+                                relation/empty-relation)))))))
 
 (d/defn ^{::d/aspects [traced]} remove-unifiable
   "Remove any unification-maps from bindings that are consistent
-  with any currently derived relations for this predicate."
+  with any currently derived relations for this predicate. Bindings binding the
+  same lvars of the predicate as the first are removed by a hash anti-join on
+  the predicate's bound and constant terms; any others are checked one by one."
   [bindings predicate derived]
-  (let [terms (p/terms predicate)]
-    (into #{}
-          (remove (fn [uni-map] (some (partial simple-unify terms uni-map) derived))) ;; TODO: could benefit from better traversal algorithm
-          bindings)))
+  (let [terms (vec (p/terms predicate))
+        exemplar (first bindings)
+        lvars (into #{} (filter lvar-strict?) terms)
+        bound (into #{} (filter #(contains? exemplar %)) lvars)
+        free (clojure.set/difference lvars bound)
+        keyed (into [] (keep-indexed #(when-not (or (free %2) (u/ignore-variable? %2)) %)) terms)
+        shaped? (fn [m] (and (every? #(contains? m %) bound) (not-any? #(contains? m %) free)))
+        {shaped true, odd false} (group-by (comp boolean shaped?) bindings)
+        ;; an lvar left free at several positions still requires equal values there
+        repeated (keep (fn [[t n]] (when (and (free t) (< 1 n))
+                                     (into [] (keep-indexed #(when (= t %2) %)) terms)))
+                       (frequencies terms))
+        candidates (if (empty? repeated)
+                     derived
+                     (filter (fn [v] (every? #(apply = (map (partial nth v) %)) repeated)) derived))]
+    (into (if (or (empty? keyed) (empty? candidates))
+            (if (seq candidates) relation/empty-relation (relation/relation shaped))
+            (let [[binding-key tuple-key] (join-keys terms exemplar keyed)]
+              (join/hash-anti-join shaped binding-key candidates tuple-key relation/empty-relation)))
+          (remove (fn [uni-map] (some (partial simple-unify terms uni-map) derived)))
+          odd)))
 
 (defn conjunct-bindings
-  "Updates the bindings stored in state using current derived relations."
-  [state predicate]
-  (let [relevant-derived (get (:derived state) (p/sym predicate))]
-    (update state :bindings
-            (if (p/negated? predicate) remove-unifiable add-unifiable)
-            predicate
-            relevant-derived)))
+  "Updates the bindings stored in state using current derived relations. If
+  since is supplied, only the tuples derived since that generation are joined."
+  ([state predicate] (conjunct-bindings state predicate nil))
+  ([state predicate since]
+   (let [relevant-derived (if (some? since)
+                            (derived-since state (p/sym predicate) since)
+                            (get (:derived state) (p/sym predicate)))]
+     (update state :bindings
+             (if (p/negated? predicate) remove-unifiable add-unifiable)
+             predicate
+             relevant-derived))))
 
 (defn predicate->generalized
   "Takes a Predicate and returns a GeneralizedPredicate incorporating information
@@ -244,10 +398,14 @@
                                             (not (u/lvar? %2)))
                                     %)
                                  terms)
-        bindings (into #{}
-                       (comp (map #(replace % terms))
-                             (map (partial remove u/lvar?)))
-                       bindings-set)]
+        bindings (if (relation/relation? bindings-set)
+                   (into #{}
+                         (map #(into [] (remove u/lvar?) %))
+                         (relation/substitutions bindings-set terms))
+                   (into #{}
+                         (comp (map #(replace % terms))
+                               (map (partial remove u/lvar?)))
+                         bindings-set))]
     (pred/->GeneralizedPredicate predicate decoration bindings bindings-set)))
 
 (defn novel-generalization ;; TODO: Doesn't check full subsumption of a query by a more general
@@ -0,0 +1,62 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.query.datalog.relation
+  "Helpers over eva.query.datalog.Relation, the columnar set of unification maps
+  that QSQR keeps its bindings in. Each accepts any set of unification maps, but
+  reads the columns directly, without materializing maps, when given a Relation."
+  (:require [clojure.core.unify :as u])
+  (:import [eva.query.datalog Relation]))
+
+(def empty-relation Relation/EMPTY)
+
+(defn relation?
+  [x]
+  (instance? Relation x))
+
+(defn relation
+  "Returns the unification maps in coll as a Relation, or as a set if they do not
+  all bind the same lvars."
+  [coll]
+  (if (relation? coll)
+    coll
+    (into empty-relation coll)))
+
+(defn project
+  "Equivalent to (into #{} (map #(select-keys % lvars)) bindings)."
+  [bindings lvars]
+  (if (relation? bindings)
+    (.project ^Relation bindings (object-array lvars))
+    (into empty-relation (map #(select-keys % lvars)) bindings)))
+
+(defn ground?
+  "True if bindings is a Relation binding no lvar to another lvar, so that its
+  rows need no flattening."
+  [bindings]
+  (and (relation? bindings)
+       (not (.someObjectValue ^Relation bindings u/lvar?))))
+
+(defn substitutions
+  "Returns the set of (replace binding terms) over each binding in bindings, each
+  result as a vector."
+  [bindings terms]
+  (if (relation? bindings)
+    (let [^Relation rel bindings
+          cols (mapv #(.columnOf rel %) terms)]
+      (persistent!
+       (reduce (fn [res row]
+                 (conj! res (mapv (fn [t c] (if (neg? c) t (.valueAt rel row c))) terms cols)))
+               (transient #{})
+               (range (count rel)))))
+    (into #{} (map #(into [] (replace % terms))) bindings)))
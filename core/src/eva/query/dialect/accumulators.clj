@@ -0,0 +1,128 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.query.dialect.accumulators
+  "Incremental counterparts to the built-in aggregates. When a find spec applies
+  one of them to a single variable, each result is folded into an accumulator for
+  its group as the results are shaped, so no group's values need be collected.
+  Each accumulator agrees with the aggregate function it stands in for."
+  (:require [eva.query.dialect.aggregates :as agg]
+            [eva.query.error :refer [raise-builtin]]
+            [recide.sanex :as sanex]))
+
+(defprotocol Accumulator
+  (accumulate! [acc x] "Folds x into acc, returning acc.")
+  (result [acc] "The aggregate of everything accumulated."))
+
+(defn- sum-failed [x t]
+  (raise-builtin :aggregate "sum failed (possibly operating on non-numbers?)"
+                 {:sample-elems [x],
+                  ::sanex/sanitary? false}
+                 t))
+
+(defn- add [a x]
+  (try (+ a x)
+       (catch Throwable t (sum-failed x t))))
+
+(deftype SumAccumulator [^:unsynchronized-mutable ^long long-sum
+                         ^:unsynchronized-mutable other-sum ;; nil while every addend is a Long
+                         ^:unsynchronized-mutable ^long n]
+  Accumulator
+  (accumulate! [this x]
+    (if (and (nil? other-sum) (instance? Long x))
+      (let [x (long x)
+            s (unchecked-add long-sum x)]
+        (when (neg? (bit-and (bit-xor long-sum s) (bit-xor x s)))
+          (sum-failed x (ArithmeticException. "integer overflow")))
+        (set! long-sum s))
+      (set! other-sum (add (or other-sum long-sum) x)))
+    (set! n (inc n))
+    this)
+  (result [_] (when (pos? n) (or other-sum long-sum)))
+  clojure.lang.Counted
+  (count [_] n))
+
+(deftype AvgAccumulator [^SumAccumulator sum]
+  Accumulator
+  (accumulate! [this x] (accumulate! sum x) this)
+  (result [_] (when (pos? (count sum))
+                (double (/ (result sum) (count sum))))))
+
+(deftype CountAccumulator [^:unsynchronized-mutable ^long n]
+  Accumulator
+  (accumulate! [this _] (set! n (inc n)) this)
+  (result [_] n))
+
+(deftype ExtremeAccumulator [keep? ^:unsynchronized-mutable seen? ^:unsynchronized-mutable extreme]
+  Accumulator
+  (accumulate! [this x]
+    (when (or (not seen?) (keep? (compare x extreme)))
+      (set! extreme x)
+      (set! seen? true))
+    this)
+  (result [_] extreme))
+
+(deftype DistinctAccumulator [^:unsynchronized-mutable seen]
+  Accumulator
+  (accumulate! [this x] (set! seen (conj! seen x)) this)
+  (result [_] (count seen)))
+
+(defn- swap-elements! [^objects a i j]
+  (let [x (aget a i)]
+    (aset a i (aget a j))
+    (aset a j x)))
+
+(defn- select!
+  "Quickselect: reorders a so that (aget a k) is the element of rank k by compare,
+  with none greater before it and none less after it. Returns (aget a k)."
+  [^objects a k]
+  (loop [lo 0, hi (dec (alength a))]
+    (if (>= lo hi)
+      (aget a k)
+      (let [pivot (aget a (+ lo (quot (- hi lo) 2)))
+            [i j] (loop [i lo, j hi]
+                    (let [i (loop [i i] (if (neg? (compare (aget a i) pivot)) (recur (inc i)) i))
+                          j (loop [j j] (if (pos? (compare (aget a j) pivot)) (recur (dec j)) j))]
+                      (if (<= i j)
+                        (do (swap-elements! a i j)
+                            (recur (inc i) (dec j)))
+                        [i j])))]
+        (cond (<= k j) (recur lo j)
+              (>= k i) (recur i hi)
+              :else (aget a k))))))
+
+(deftype MedianAccumulator [^java.util.ArrayList xs]
+  Accumulator
+  (accumulate! [this x] (.add xs x) this)
+  (result [_]
+    (when-not (.isEmpty xs)
+      (let [n (.size xs)
+            a (.toArray xs)
+            k (quot n 2)
+            upper (select! a k)]
+        (if (odd? n)
+          upper
+          ;; everything before k is no greater than upper; the lower middle is the greatest of them
+          (agg/avg [(reduce #(if (pos? (compare %2 %1)) %2 %1) (aget a 0) (take k (seq a))) upper]))))))
+
+(def accumulators
+  "The built-in aggregates that can be folded incrementally, by var, each to a
+  function of no arguments returning a fresh Accumulator."
+  {#'agg/sum #(->SumAccumulator 0 nil 0)
+   #'agg/avg #(->AvgAccumulator (->SumAccumulator 0 nil 0))
+   #'clojure.core/count #(->CountAccumulator 0)
+   #'agg/min #(->ExtremeAccumulator neg? false nil)
+   #'agg/max #(->ExtremeAccumulator pos? false nil)
+   #'agg/count-distinct #(->DistinctAccumulator (transient #{}))
+   #'agg/median #(->MedianAccumulator (java.util.ArrayList.))})
@@ -13,13 +13,16 @@
 ;; limitations under the License.
 
 (ns eva.query.dialect.pull.core
-  (:require [clojure.edn :as edn]
-            [clojure.spec.alpha :as s]
+  (:require [clojure.spec.alpha :as s]
             [eva.query.dialect.spec :as qp]
             [eva.query.dialect.pull-helpers :as ph]
             [eva.attribute :refer [resolve-attribute]]
             [eva.error :refer [raise]]
             [eva.core :as core]
+            [eva.config :refer [config config-strict]]
+            [eva.concurrent.fork-join :refer [fork-all]]
+            [eva.readers :as eva-reader]
+            [eva.utils.guava-cache :as gcache]
             [utiliva.core :refer [partition-map partition-pmap]]
             [map-experiments.smart-maps.protocol :as smart-maps]
             [eva.attribute :as attr]
@@ -28,7 +31,8 @@
             [barometer.aspects :refer [timed]]
             [morphe.core :as d]
             [ichnaie.core :refer [traced]])
-  (:import (eva Datom Database)))
+  (:import (eva Datom Database)
+           (com.google.common.cache Cache)))
 
 (def ^:private ^:const +default-limit+ 1000)
 
@@ -416,7 +420,7 @@
     (do (realize-frontier db frontier)
         (recur db root (mapcat subframes frontier)))))
 
-(defn- ensure-edn [x] (if (string? x) (edn/read-string x) x))
+(defn- ensure-edn [x] (eva-reader/ensure-parsed x))
 
 (defn conform-pull-spec [pull-spec]
   (let [conformed (s/conform ::qp/pattern-data-literal (ensure-edn pull-spec))]
@@ -428,14 +432,44 @@
               ::sanex/sanitary? false})
       conformed)))
 
+(def ^Cache pattern-cache
+  (.build (gcache/cache-builder {:maximum-size (config :eva.query.pull.pattern-cache)})))
+
+(defn compile-pattern
+  "Conforms and normalizes a pull selector, reading strings with eva's reader
+  functions (#db/id and the like). Selectors given as strings or persistent
+  collections are cached by that raw form, so repeated pulls skip reading and
+  conformation; mutable (e.g. Java) collections are not cached."
+  [selector]
+  (if-not (or (string? selector) (coll? selector))
+    (ph/normalize-pdl (conform-pull-spec selector))
+    (if-some [pattern (.getIfPresent pattern-cache selector)]
+      pattern
+      (let [pattern (ph/normalize-pdl (conform-pull-spec selector))]
+        (.put pattern-cache selector pattern)
+        pattern))))
+
+(defn- pull-eids
+  "Pulls pattern for the resolved eids. Each frame of the pull batches its whole
+  frontier per depth, so a modest number of eids is pulled as one frame; larger
+  inputs are split into chunks of :eva.query.pull.chunk-size pulled concurrently."
+  [db pattern eids]
+  (let [chunk-size (config-strict :eva.query.pull.chunk-size)
+        pull-chunk (fn [eids]
+                     (let [init (initial-frame (vec eids) pattern true)]
+                       (pull-pattern db init [init])))]
+    (if (<= (count eids) chunk-size)
+      (pull-chunk eids)
+      (into [] cat (fork-all (for [chunk (partition-all chunk-size eids)]
+                               #(pull-chunk chunk)))))))
+
 (defn pull-spec
   [^Database db selector eids multi?]
-  (let [pattern (ph/normalize-pdl (conform-pull-spec selector))
+  (let [pattern (compile-pattern selector)
         deduped-eids (distinct eids)
         res (partition-map nil?
                            {true  (fn [ns] (vec (for [_ ns] nil)))
-                            false #(let [init (initial-frame (vec %) pattern true)]
-                                     (pull-pattern db init [init]))}
+                            false (partial pull-eids db pattern)}
                            (.entids db deduped-eids))]
     (map (zipmap deduped-eids res) eids)))
 
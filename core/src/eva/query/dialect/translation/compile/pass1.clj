@@ -20,6 +20,7 @@
             [eva.query.datalog.predicate :as pred]
             [eva.query.dialect.translation.error :refer :all]
             [clojure.spec.alpha :as s]
+            [clojure.core.unify :as u]
             [clojure.pprint :refer [pprint]])
   (:refer-clojure :exclude [compile]))
 
@@ -197,6 +198,20 @@
 
 (def ^:private batch-fns #{#'fn/missing? #'fn/get-else})
 
+(def ^:private comparison-fns {#'clojure.core/< :upper, #'clojure.core/<= :upper
+                               #'clojure.core/> :lower, #'clojure.core/>= :lower})
+
+(defn- comparison-bound
+  "If the predicate compares a variable with a numeric constant using one of
+  <, <=, > or >=, returns the bound it places on the variable: {:lvar ?x, :lower n}
+  or {:lvar ?x, :upper n}. Strictness is dropped; the bound is only used to narrow
+  index selection, and the comparison itself is still evaluated."
+  [f [x y :as args]]
+  (when-let [side (comparison-fns f)]
+    (when (= 2 (count args))
+      (cond (and (u/lvar? x) (number? y)) {:lvar x, side y}
+            (and (number? x) (u/lvar? y)) {:lvar y, ({:upper :lower, :lower :upper} side) x}))))
+
 (defmethod process-clause ::qs/pred-expr
   [[_ pred-expr] src-var datom-pred-sym]
   (let [pred-name (get-in pred-expr [:pred-expr :pred])]
@@ -206,7 +221,9 @@
             ->evaluable (if (contains? batch-fns f)
                           eval/batched-pred-fn->Evaluable
                           eval/pred-fn->Evaluable)]
-        {:expression (list* gsym :+ args)
+        {:expression (with-meta (list* gsym :+ args)
+                       (when-let [bound (comparison-bound f args)]
+                         {::bound bound}))
          :rules {}, ;; no additional rules were created
          :sym->pred-info {gsym {:required (set (range (count args)))
                                 :raw-ref (str "predicate function '" pred-name "'")
@@ -406,6 +423,41 @@
 ;;
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
+(defn- merge-bound
+  [ranges {:keys [lvar lower upper]}]
+  (cond-> ranges
+    (some? lower) (update-in [lvar :lower] #(if (some? %) (max % lower) lower))
+    (some? upper) (update-in [lvar :upper] #(if (some? %) (min % upper) upper))))
+
+(defn push-down-ranges
+  "Where a rule body bounds a variable by comparison with numeric constants, and
+  that variable is matched in the value position of a data pattern with a constant
+  attribute, the data pattern is rewritten to a fresh extensional predicate whose
+  pred-info carries the bounds as :range. The EDB for that predicate may then
+  restrict its selection to the interval. The comparisons are left in place, so
+  the results do not depend on the EDB honoring the range."
+  [clauses sym->pred-info datom-pred-sym]
+  (let [lvar->range (transduce (keep (comp ::bound meta)) (completing merge-bound) {} clauses)]
+    (if (empty? lvar->range)
+      {:clauses clauses, :sym->pred-info sym->pred-info}
+      (reduce (fn [res [sym sign src e a v & more :as clause]]
+                (if-let [v-range (and (= sym datom-pred-sym)
+                                      (some? a)
+                                      (not (symbol? a))
+                                      (get lvar->range v))]
+                  (let [range-sym (gensym "datom_range__")]
+                    (-> res
+                        (update :clauses conj (list* range-sym sign src e a v more))
+                        (assoc-in [:sym->pred-info range-sym]
+                                  {:required #{}
+                                   :raw-ref "a data pattern"
+                                   :term-count :variable
+                                   :type :extensional
+                                   :range v-range})))
+                  (update res :clauses conj clause)))
+              {:clauses [], :sym->pred-info sym->pred-info}
+              clauses))))
+
 (defn process-rule [rule default-src-var datom-pred-sym]
   (let [rule-name (qs/rule-name rule)
         rule-srcs (qs/rule-srcs rule)
@@ -442,6 +494,8 @@
                 rules,
                 sym->pred-info,
                 sym->evals]} (process-clauses clauses default-src-var datom-pred-sym)
+        {:keys [clauses,
+                sym->pred-info]} (push-down-ranges clauses sym->pred-info datom-pred-sym)
         sym->pred-info (assoc sym->pred-info
                               rule-name
                               {:term-count (count rule-vars)
@@ -487,4 +541,7 @@
            :datom-pred datom-pred-sym
            :rule-expressions expressions,
            :sym->pred-gens (pred-info->pred-gens sym->pred-info)
+           :sym->ranges (into {}
+                              (keep (fn [[sym {:keys [range]}]] (when range [sym range])))
+                              sym->pred-info)
            :sym->evals sym->evals})))))
@@ -19,8 +19,9 @@
             [eva.query.datalog.qsqr.core :as qsqr]
             [eva.query.dialect.spec :as qs]
             [eva.query.dialect.sandbox :as sandbox]
+            [eva.query.dialect.accumulators :as acc]
             [eva.query.dialect.pull.core :refer [pull pull-many]]
-            [eva.query.dialect.translation.edb :refer [edb-composer-gen-spec]]
+            [eva.query.dialect.translation.edb :refer [edb-composer-gen-spec ->RangeRestrictedEDB]]
             [eva.query.dialect.translation.error :refer :all]
             [eva.error :refer [insist raise]]
             [ichnaie.core :refer [tracing]]
@@ -56,6 +57,14 @@
                                (format "unknown aggregate fn: '%s'." fn-name)
                                {:fn-sym fn-name}))))
 
+(defmulti ->accumulator-fn (fn [[type _]] type))
+
+(defmethod ->accumulator-fn :default [_] nil)
+(defmethod ->accumulator-fn :aggregate [[_ agg]]
+  ;; only aggregates of a lone variable; those given constant arguments are applied whole
+  (when (= 1 (count (:fn-args agg)))
+    (get acc/accumulators (ns-resolve sandbox/*sandbox-ns* (:aggregate-fn-name agg)))))
+
 (defn datom-filler
   "Fills in implicit vars."
   [terms]
@@ -183,15 +192,47 @@
       (constantly nil) ;; If not grouping at all, still need to project to *something*.
       (apply juxt proj-fns))))
 
+(defn- folded-results-gen
+  "Shapes the raw output of the Datalog query for a find clause whose every
+  aggregate has an accumulator. Each result is folded into its group's
+  accumulators as it is read, so groups hold one result and their accumulators
+  rather than all of their results."
+  [find-terms]
+  (let [projector (projector-gen find-terms)
+        aggregated (into [] (keep-indexed (fn [i term] (when-not (:grouped? term) [i (:idx term)]))) find-terms)
+        new-group (fn [result]
+                    [result (mapv #(when-not (:grouped? %) ((:accumulator %))) find-terms)])
+        finish (fn [[result accs]]
+                 (mapv (fn [term acc] (if (:grouped? term) (nth result (:idx term)) (acc/result acc)))
+                       find-terms
+                       accs))]
+    (fn [results]
+      (->> results
+           (reduce (fn [groups result]
+                     (let [k (projector result)
+                           existing (get groups k)
+                           [_ accs :as group] (or existing (new-group result))]
+                       (doseq [[i idx] aggregated]
+                         (acc/accumulate! (nth accs i) (nth result idx)))
+                       (if existing groups (assoc! groups k group))))
+                   (transient {}))
+           (persistent!)
+           (vals)
+           (map finish)))))
+
 (defn lazy-results-gen
   "Shapes the raw output of the Datalog query as appropriate for the find clause.
   This is lazy upon lazy, because in the case of scalar or tuple outputs, the
-  full processing of query results would be a waste of time."
+  full processing of query results would be a waste of time. Aggregates that can
+  be folded incrementally are, instead of being applied to whole groups."
   [find-terms]
-  (let [projector (projector-gen find-terms)]
-    (fn [results]
-      (map (partial lazy-tuples find-terms)
-           (->> results (group-by projector) vals)))))
+  (if (and (not-every? :grouped? find-terms)
+           (every? (some-fn :grouped? :accumulator) find-terms))
+    (folded-results-gen find-terms)
+    (let [projector (projector-gen find-terms)]
+      (fn [results]
+        (map (partial lazy-tuples find-terms)
+             (->> results (group-by projector) vals))))))
 
 (defn ->find-terms-map
   [init-query elem]
@@ -202,6 +243,7 @@
         grouped? (or (= :variable (first elem))
                      (pull? elem))]
     {:process process-fn
+     :accumulator (->accumulator-fn elem)
      :idx idx
      :grouped? grouped?}))
 
@@ -234,6 +276,45 @@
   [init-query find-spec]
   (shape-results-gen init-query find-spec))
 
+(def ^:private stream-chunk-size 256)
+
+(defn stream-gen
+  "Like output-gen, but returns a function of the named databases, the raw results
+  and {:keys [offset limit]}, giving the shaped results as a lazy sequence: a
+  vector per result for :find-rel, a value per result for :find-coll. Without
+  aggregates, results are projected, deduplicated, paged and pulled in chunks as
+  they are consumed. Aggregates need every result, so are shaped in full before
+  paging. Scalar and tuple find specs are shaped exactly as by output-gen."
+  [init-query [find-type find-detail :as find-spec]]
+  (let [shape (output-gen init-query find-spec)
+        find-terms (->find-terms-maps find-spec init-query)
+        page (fn [{:keys [offset limit]} results]
+               (cond->> results
+                 (some? offset) (drop offset)
+                 (some? limit) (take limit)))]
+    (cond (contains? #{:find-scalar :find-tuple} find-type)
+          (fn [syms->dbs raw-results _] (shape syms->dbs raw-results))
+
+          (every? :grouped? find-terms)
+          (let [projector (projector-gen find-terms)
+                elems (if (= :find-rel find-type) find-detail [(:find-elem find-detail)])
+                resolve-pulls (if (some pull? elems)
+                                (resolve-pulls-gen elems true)
+                                (fn [_ rows] rows))]
+            (fn [syms->dbs raw-results opts]
+              ;; pull patterns given as inputs are resolved in the query's sandbox
+              (let [resolve-chunk (bound-fn* #(resolve-pulls syms->dbs (vec %)))]
+                (cond->> (->> raw-results
+                              (sequence (comp (map projector) (distinct)))
+                              (page opts)
+                              (partition-all stream-chunk-size)
+                              (mapcat resolve-chunk))
+                  (= :find-coll find-type) (map first)))))
+
+          :else
+          (fn [syms->dbs raw-results opts]
+            (page opts (seq (shape syms->dbs raw-results)))))))
+
 (defmulti bind?->fn (fn [[type]] type))
 
 ;; No-op input bindings.
@@ -289,8 +370,29 @@
 (defn pattern-var->sym [[_ sym]]
   sym)
 
+(defn datom-pred-gen
+  "Generates Predicate objects for data patterns, filling in implicit vars."
+  [sym]
+  (let [f (pred/extensional-predicate sym
+                                      {:required [],
+                                       :term-count :variable,
+                                       ;; ^^^ because variable, datom-filler probably unnecessary.
+                                       :type :extensional})]
+    (fn [terms & modifiers]
+      (apply f (datom-filler terms) modifiers))))
+
+(defn edbs-gen
+  "Returns a function from the composed datalog EDB to the program's map of
+  extensional predicate symbols to EDBs: the datom predicate reads the EDB
+  directly, and each range-restricted data pattern reads it through its range."
+  [datom-pred sym->ranges]
+  (fn [datalog-edb]
+    (into {datom-pred datalog-edb}
+          (map (fn [[sym v-range]] [sym (->RangeRestrictedEDB datalog-edb v-range)]))
+          sym->ranges)))
+
 (defrecord CompiledQuery
-    [src-var datom-pred inputs->edb inputs->bindings query-ast query-rule-ast rules top-query result->outputs function inspect]
+    [src-var datom-pred inputs->edb inputs->bindings query-ast query-rule-ast rules top-query result->outputs function stream inspect]
   clojure.lang.IFn
   (invoke [this inputs]
     (when (nil? function)
@@ -304,17 +406,14 @@
            datom-pred
            rule-expressions
            sym->pred-gens
+           sym->ranges
            sym->evals]
     :as processed-query-form}]
 
-  (let [sym->pred-gens (assoc sym->pred-gens datom-pred
-                              (let [f (pred/extensional-predicate datom-pred
-                                                                  {:required [],
-                                                                   :term-count :variable,
-                                                                   ;; ^^^ because variable, datom-filler probably unnecessary.
-                                                                   :type :extensional})]
-                                (fn [terms & modifiers]
-                                  (apply f (datom-filler terms) modifiers))))
+  (let [sym->pred-gens (into (assoc sym->pred-gens datom-pred (datom-pred-gen datom-pred))
+                             (map (juxt identity datom-pred-gen))
+                             (keys sym->ranges))
+        ->edbs (edbs-gen datom-pred sym->ranges)
 
         init-query ((sym->pred-gens (query-rule-name query))
                     (concat (query-rule-src-vars query)
@@ -322,6 +421,7 @@
         datalog-rules (rule-expressions->datalog rule-expressions sym->pred-gens)
 
         result->outputs (output-gen init-query (qs/find-spec query))
+        result->stream (stream-gen init-query (qs/find-spec query))
 
         sandbox-ns (sandbox/create-eval-ns)
         inputs-list (qs/inputs query)
@@ -330,31 +430,38 @@
 
         inputs->bindings (input-binder-gen inputs-list)
 
+        ;; Executes the query, running QSQR with run and shaping its results with shape:
+        execute (fn [inputs run shape]
+                  (let [{:keys [sym->edb datalog-edb]} (inputs->edb inputs)
+                        pattern-vars (into {}
+                                           (comp (zip-to inputs)
+                                                 (filter pattern-var?)
+                                                 (map-keys pattern-var->sym))
+                                           (-> query qs/inputs))]
+                    (with-bindings {#'sandbox/*sandbox-ns* sandbox-ns
+                                    #'*ns* sandbox-ns
+                                    (ns-resolve sandbox-ns 'sym->edb) sym->edb
+                                    (ns-resolve sandbox-ns 'pattern-vars) pattern-vars}
+                      (let [program (prog/program :edbs (->edbs datalog-edb),
+                                                  :evaluators sym->evals,
+                                                  :rules datalog-rules)
+                            init-bindings (inputs->bindings inputs)
+                            query-results (tracing "eva.q: QSQR"
+                                                   (run program init-query init-bindings))]
+                        (tracing "eva.q: shaping query results"
+                                 (shape sym->edb query-results))))))
+
         ;; This is the function that actually executes the query:
-        function (fn [inputs]
-                   (let [{:keys [sym->edb datalog-edb]} (inputs->edb inputs)
-                         pattern-vars (into {}
-                                            (comp (zip-to inputs)
-                                                  (filter pattern-var?)
-                                                  (map-keys pattern-var->sym))
-                                            (-> query qs/inputs))]
-                     (with-bindings {#'sandbox/*sandbox-ns* sandbox-ns
-                                     #'*ns* sandbox-ns
-                                     (ns-resolve sandbox-ns 'sym->edb) sym->edb
-                                     (ns-resolve sandbox-ns 'pattern-vars) pattern-vars}
-                       (let [program (prog/program :edbs {datom-pred datalog-edb},
-                                                   :evaluators sym->evals,
-                                                   :rules datalog-rules)
-                             init-bindings (inputs->bindings inputs)
-                             query-results (tracing "eva.q: QSQR"
-                                                    (qsqr/query program init-query init-bindings))]
-                         (tracing "eva.q: shaping query results"
-                                  (result->outputs sym->edb query-results))))))
+        function (fn [inputs] (execute inputs qsqr/query result->outputs))
+
+        ;; As function, but yields the results lazily, paged by {:keys [offset limit]}:
+        stream (fn [inputs opts]
+                 (execute inputs qsqr/query-seq #(result->stream %1 %2 opts)))
 
         ;; This is a function that lets us inspect the compiled datalog, given the inputs:
         inspect (fn [inputs]
                   (let [{:keys [sym->edb datalog-edb]} (inputs->edb inputs)]
-                    {:program (prog/program :edbs {datom-pred datalog-edb},
+                    {:program (prog/program :edbs (->edbs datalog-edb),
                                             :evaluators sym->evals,
                                             :rules datalog-rules)
                      :sym->edb sym->edb
@@ -372,4 +479,5 @@
                          :top-query init-query
                          :result->outputs result->outputs
                          :function function
+                         :stream stream
                          :inspect inspect})))
@@ -17,25 +17,67 @@
             [eva.config :refer [config]]
             [eva.query.trace :as special]
             [eva.query.dialect.spec :as qs]
+            [eva.utils.guava-cache :as gcache]
+            [barometer.core :as metrics]
             [clojure.spec.alpha :as spec]
             [clojure.core.memoize :as mem])
+  (:import [com.google.common.cache Cache])
   (:refer-clojure :exclude [compile]))
 
 (def compile-query-and-rules
-  ;; TODO: Measure and switch around the caching of compilation if spec conformation is expensive
   (mem/lru compile/compile
            :lru/threshold (config :eva.query.memoization-cache)))
 
+;; Conformation dominates the cost of compiling small queries, so compiled
+;; queries are also cached by their raw form, ahead of conformation.
+(def ^Cache raw-form-cache
+  (.build (gcache/cache-builder {:maximum-size (config :eva.query.raw-form-cache)
+                                 :record-stats true})))
+
+(def compile-timer
+  (metrics/get-or-register metrics/DEFAULT 'eva.query.dialect.translation.core:compile.timer
+                           (metrics/timer "Times conformation and compilation of queries missing the raw-form cache.")))
+
+(def raw-form-cache-metrics
+  (letfn [(mname [s] (str *ns* ".raw-form-cache." s))]
+    {(mname "hit_rate")  (metrics/gauge #(.hitRate (.stats raw-form-cache))
+                                        "Hit-rate of the cache of compiled queries keyed by raw query form")
+     (mname "miss_rate") (metrics/gauge #(.missRate (.stats raw-form-cache))
+                                        "Miss-rate of the cache of compiled queries keyed by raw query form")}))
+
+(metrics/register-all metrics/DEFAULT raw-form-cache-metrics)
+
+(defn raw-rules-idx
+  "The position of the rules-var among the :in inputs of an unconformed query,
+  if any. Agrees with qs/rules-idx for every query that conforms."
+  [query]
+  (->> query
+       (drop-while #(not= :in %))
+       (rest)
+       (take-while (complement keyword?))
+       (keep-indexed #(when (= '% %2) %1))
+       (first)))
+
+(defn- conform-and-compile
+  [query inputs]
+  (metrics/with-timer compile-timer
+    (let [conformed-datalog (qs/conform! ::qs/datalog query)
+          rules-idx (qs/rules-idx conformed-datalog)
+          conformed-query (qs/conform! ::qs/query
+                                       (cond-> [query]
+                                               rules-idx (conj (nth inputs rules-idx))))]
+      (compile-query-and-rules conformed-query))))
+
 (defn compile
   [query & inputs]
   (let [query (if (map? query)
                 (mapcat (partial apply (partial apply list)) query)
                 query)
         _ (special/trace "QUAESTIO: query looks like: \n" query)
-
-        conformed-datalog (qs/conform! ::qs/datalog query)
-        rules-idx (qs/rules-idx conformed-datalog)
-        conformed-query (qs/conform! ::qs/query
-                                     (cond-> [query]
-                                             rules-idx (conj (nth inputs rules-idx))))]
-    (compile-query-and-rules conformed-query)))
+        rules-idx (raw-rules-idx query)
+        cache-key [query (when rules-idx (nth inputs rules-idx nil))]]
+    (if-some [compiled (.getIfPresent raw-form-cache cache-key)]
+      compiled
+      (let [compiled (conform-and-compile query inputs)]
+        (.put raw-form-cache cache-key compiled)
+        compiled))))
@@ -17,23 +17,64 @@
             [eva.query.datalog.edb :refer [coll-of-tuples->EDB]]
             [eva.query.dialect.translation.error :refer [raise-edb-error]]
             [eva.error :refer [insist]]
+            [eva.config :refer [config-strict]]
+            [eva.concurrent.fork-join :refer [fork-all]]
+            [eva.query.profile :as profile]
             [recide.sanex :as sanex]
             [ichnaie.core :refer [tracing]]))
 
+(defn- dispatch-extensions
+  "Groups terms by source var and selects each group from its source. When there
+  are several sources and :eva.query.parallel-sources is set, the sources are
+  selected from concurrently; the results are concatenated in the same order
+  either way."
+  [sym->edb terms select]
+  (let [src->terms (group-by first terms)
+        fetches (for [[src group] src->terms]
+                  (if-let [edb (get sym->edb src)]
+                    #(map (partial cons src)
+                          (select edb (map rest group)))
+                    (raise-edb-error (format "var '%s' does not correspond to any extensional source." src)
+                                     {:src-var src
+                                      ::sanex/sanitary? true})))]
+    (if (and (next src->terms) (config-strict :eva.query.parallel-sources))
+      (apply concat (profile/branches fork-all (map #(comp doall %) fetches)))
+      (mapcat #(%) fetches))))
+
 (defrecord SymbolDispatchingEDB
     [sym->edb]
   EDB
   (extensions [_ terms]
     (tracing "eva.query.datalog.protocols/extensions"
-      (let [src->terms (group-by first terms)]
-        (->> (for [[src group] src->terms]
-               (if-let [edb (get sym->edb src)]
-                 (map (partial cons src)
-                      (extensions edb (map rest group)))
-                 (raise-edb-error (format "var '%s' does not correspond to any extensional source." src)
-                                  {:src-var src
-                                   ::sanex/sanitary? true})))
-             (apply concat))))))
+      (dispatch-extensions sym->edb terms extensions)))
+  RangeEDB
+  (range-extensions [_ terms v-range]
+    (tracing "eva.query.datalog.protocols/range-extensions"
+      (dispatch-extensions sym->edb terms
+                           (fn [edb terms]
+                             (if (satisfies? RangeEDB edb)
+                               (range-extensions edb terms v-range)
+                               (extensions edb terms))))))
+  EstimableEDB
+  (estimate-extensions [_ terms]
+    (reduce (fn [total [src group]]
+              (let [edb (get sym->edb src)]
+                (if-some [n (when (satisfies? EstimableEDB edb)
+                              (estimate-extensions edb (map rest group)))]
+                  (+ total n)
+                  (reduced nil))))
+            0
+            (group-by first terms))))
+
+(defrecord RangeRestrictedEDB
+    [edb v-range]
+  EDB
+  (extensions [_ terms]
+    (range-extensions edb terms v-range))
+  EstimableEDB
+  (estimate-extensions [_ terms]
+    (when (satisfies? EstimableEDB edb)
+      (estimate-extensions edb terms))))
 
 
 ;;;
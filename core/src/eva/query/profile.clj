@@ -0,0 +1,93 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.query.profile
+  "Profiling of query evaluation. While a query runs under profile-call, each
+  antecedent the QSQR engine processes records a node of the query's plan:
+  the clause, its kind, the bindings it was given and left, the tuples it
+  produced, the elapsed time, and, for clauses answered by a Database, each
+  index selection made. Rule antecedents nest the clauses of their subqueries
+  as :children.")
+
+(def ^:dynamic *node*
+  "An atom holding the plan node currently being recorded; nil when not profiling."
+  nil)
+
+(defn profiling? [] (some? *node*))
+
+(defn- new-node [info] (atom (assoc info :children [] :selections [])))
+
+(defn clause
+  "Calls f, recording its call as a child of the current node, described by info
+  and by (summarize result). Without profiling, just calls f."
+  [info summarize f]
+  (if-some [parent *node*]
+    (let [node (new-node info)
+          start (System/nanoTime)
+          result (binding [*node* node] (f))
+          elapsed (- (System/nanoTime) start)]
+      (swap! parent update :children conj (-> @node
+                                              (merge (summarize result))
+                                              (assoc :elapsed-ns elapsed)))
+      result)
+    (f)))
+
+(defn branches
+  "Calls (run-all fs), where run-all calls the thunks fs, possibly concurrently,
+  and returns their results in order. When profiling, each thunk records into
+  a node of its own, whose children and selections are then added to the current
+  node in the order of fs, so that the plan does not depend on which thunk
+  finished first."
+  [run-all fs]
+  (if-some [parent *node*]
+    (let [nodes (mapv (fn [_] (new-node {})) fs)
+          results (run-all (map (fn [node f] #(binding [*node* node] (f))) nodes fs))]
+      (doseq [node nodes
+              :let [{:keys [children selections]} @node]]
+        (swap! parent #(-> %
+                           (update :children into children)
+                           (update :selections into selections))))
+      results)
+    (run-all fs)))
+
+(defn note!
+  "When profiling, associates k with v in the current node."
+  [k v]
+  (when-some [node *node*]
+    (swap! node assoc k v)))
+
+(defn note-count!
+  "When profiling, associates k with the count of coll in the current node.
+  Returns coll."
+  [k coll]
+  (when-some [node *node*]
+    (swap! node assoc k (count coll)))
+  coll)
+
+(defn note-selection!
+  "When profiling, records an index selection against the current node."
+  [selection]
+  (when-some [node *node*]
+    (swap! node update :selections conj selection)))
+
+(defn profile-call
+  "Calls f with profiling enabled. Returns a map of the :result, the
+  :elapsed-ns of the call, and the :plan, a vector of the top-level clauses."
+  [f]
+  (let [root (new-node {})
+        start (System/nanoTime)
+        result (binding [*node* root] (f))]
+    {:result result
+     :elapsed-ns (- (System/nanoTime) start)
+     :plan (:children @root)}))
@@ -0,0 +1,125 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.query.result-cache
+  "An opt-in, bounded cache of query results. Results are cached only when every
+  input is an immutable value: a committed database snapshot, identified by its
+  database-id, basis-t and snapshot t, or a persistent Clojure value. Speculative
+  databases (from with), history databases and inputs such as Java collections
+  or functions bypass the cache, so a cached result is always the result. When a
+  database is first seen at a newer basis-t, entries for its older basis-ts are
+  evicted, as they can no longer be hit by current snapshots. The latest basis-t
+  seen is kept for at most as many databases as the cache holds entries.
+  (:require [eva.config :refer [config-strict]]
+            [eva.utils.guava-cache :as gcache]
+            [barometer.core :as metrics])
+  (:import [com.google.common.cache Cache]
+           [java.util.function Predicate]
+           [clojure.lang IPersistentCollection]))
+
+(def hit-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.query.result-cache:hit.counter
+                           (metrics/counter "Counts queries answered from the query result cache.")))
+
+(def miss-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.query.result-cache:miss.counter
+                           (metrics/counter "Counts cacheable queries computed and added to the query result cache.")))
+
+(def time-saved-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.query.result-cache:time-saved-ms.counter
+                           (metrics/counter "Sums the milliseconds originally spent computing the results served from the query result cache.")))
+
+(defonce ^:private caches (atom nil))
+
+(defn- current-caches
+  "[results latest-basis-t] for the configured size and expiry, both rebuilt empty
+  if they change. latest-basis-t maps database-ids to the latest basis-t cached
+  at, and is bounded as results is: forgetting a database only skips evicting
+  its older entries once."
+  []
+  (let [opts {:maximum-size (config-strict :eva.query.result-cache.max-size)
+              :expire-after-access (config-strict :eva.query.result-cache.expire-after-access-ms)}]
+    (-> (swap! caches (fn [[prior-opts :as current]]
+                        (if (= opts prior-opts)
+                          current
+                          [opts
+                           (.build (gcache/cache-builder opts))
+                           (.build (gcache/cache-builder (assoc opts :record-stats false)))])))
+        (subvec 1))))
+
+(defn- snapshot-key
+  "[::db database-id basis-t snapshot-t] for a committed database snapshot; else nil."
+  [x]
+  (when (and (instance? eva.Database x) (map? x))
+    (let [{:keys [database-info log-entry basis-t]} x]
+      (when (and (some? (:database-id database-info))
+                 (some? log-entry)
+                 (not (:speculative? log-entry)))
+        [::db (:database-id database-info) basis-t (:tx-num log-entry)]))))
+
+(defn- immutable-value?
+  [x]
+  (or (nil? x) (string? x) (number? x) (keyword? x) (symbol? x) (boolean? x)
+      (char? x) (uuid? x)
+      (and (instance? IPersistentCollection x)
+           (not (instance? eva.Database x))
+           (every? immutable-value? (if (map? x) (mapcat identity x) x)))))
+
+(defn- input-key
+  "The key standing for an input in the cache, or ::uncacheable."
+  [x]
+  (or (snapshot-key x)
+      (if (immutable-value? x) x ::uncacheable)))
+
+(defn- evict-older!
+  "Records basis-t in latest-basis-t as the latest seen for database-id; if it is
+  newer than the last recorded, evicts the entries for the database at older
+  basis-ts."
+  [^Cache cache ^Cache latest-basis-t [_ database-id basis-t]]
+  (let [prior (.getIfPresent latest-basis-t database-id)]
+    (when (or (nil? prior) (< prior basis-t))
+      (.put latest-basis-t database-id basis-t)
+      (when (some? prior)
+        (.removeIf (.keySet (.asMap cache))
+                   (reify Predicate
+                     (test [_ entry-key]
+                       (boolean (some (fn [k]
+                                        (and (vector? k)
+                                             (= ::db (nth k 0 nil))
+                                             (= database-id (nth k 1))
+                                             (< (nth k 2) basis-t)))
+                                      (second entry-key))))))))))
+
+(defn enabled? [] (pos? (config-strict :eva.query.result-cache.max-size)))
+
+(defn cached-call
+  "Returns the result of (f) for the query form over inputs, from the cache when
+  possible. If any input is uncacheable, just calls f."
+  [form inputs f]
+  (let [input-keys (mapv input-key inputs)]
+    (if (some #{::uncacheable} input-keys)
+      (f)
+      (let [[^Cache cache latest-basis-t] (current-caches)
+            k [form input-keys]]
+        (if-some [[result nanos] (.getIfPresent cache k)]
+          (do (metrics/increment hit-counter)
+              (metrics/increment time-saved-counter (quot nanos 1000000))
+              result)
+          (let [start (System/nanoTime)
+                result (f)
+                nanos (- (System/nanoTime) start)]
+            (metrics/increment miss-counter)
+            (run! (partial evict-older! cache latest-basis-t) (filter #(and (vector? %) (= ::db (nth % 0 nil))) input-keys))
+            (.put cache k [result nanos])
+            result))))))
@@ -0,0 +1,76 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.v2.database.as-of-cache
+  "A bounded cache of as-of database snapshots, keyed by [database-id tx-num].
+  Lookups return the closest cached snapshot at or below the requested tx-num,
+  which the caller advances forward, mirroring the proximal hits served by the
+  index manager."
+  (:require [clojure.core.cache :as c]
+            [eva.config :refer [config-strict]]
+            [barometer.core :as metrics]
+            [utiliva.sorted-cache :refer [sorted-lru-cache-factory]]))
+
+(def hit-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.v2.database.as-of-cache:hit.counter
+                           (metrics/counter "Counts as-of requests served by a cached snapshot at exactly the requested t.")))
+
+(def proximal-hit-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.v2.database.as-of-cache:proximal-hit.counter
+                           (metrics/counter "Counts as-of requests served by advancing a cached snapshot from an earlier t.")))
+
+(def miss-counter
+  (metrics/get-or-register metrics/DEFAULT 'eva.v2.database.as-of-cache:miss.counter
+                           (metrics/counter "Counts as-of requests with no usable cached snapshot.")))
+
+(defn snapshot-id [database-id tx-num] [database-id tx-num])
+
+(defprotocol AsOfCache
+  (nearest-snapshot [cache database-id tx-num]
+    "Returns the cached snapshot of the database with the greatest tx-num not
+     exceeding tx-num, provided it is within max-advance of tx-num; else nil.")
+  (cache-snapshot! [cache database-id db]
+    "Records db as the snapshot of the database as of db's tx-num.")
+  (evict-db [cache database-id]
+    "Evicts all cached snapshots under the given database-id."))
+
+(defrecord AsOfCacheImpl [cache-atom max-advance]
+  AsOfCache
+  (nearest-snapshot [this database-id tx-num]
+    (locking this
+      (let [target-id (snapshot-id database-id tx-num)
+            floor-id (snapshot-id database-id (- tx-num max-advance))]
+        (if-some [[cached-id db] (first (rsubseq @cache-atom >= floor-id <= target-id))]
+          (do (swap! cache-atom c/hit cached-id)
+              (metrics/increment (if (= cached-id target-id) hit-counter proximal-hit-counter))
+              db)
+          (do (metrics/increment miss-counter)
+              nil)))))
+  (cache-snapshot! [this database-id db]
+    (locking this
+      (let [id (snapshot-id database-id (:basis-t db))]
+        (swap! cache-atom (fn [cache]
+                            (if (c/has? cache id)
+                              (c/hit cache id)
+                              (c/miss cache id db)))))))
+  (evict-db [this database-id]
+    (locking this
+      (let [purge-range (subseq @cache-atom
+                                >= (snapshot-id database-id Long/MIN_VALUE)
+                                <= (snapshot-id database-id Long/MAX_VALUE))]
+        (swap! cache-atom (fn [cache] (reduce c/evict cache (map key purge-range))))))))
+
+(def global-as-of-cache
+  (->AsOfCacheImpl (atom (sorted-lru-cache-factory {} :threshold (config-strict :eva.database.as-of-cache.max-size)))
+                   (config-strict :eva.database.as-of-cache.max-advance)))
@@ -17,7 +17,9 @@
             [eva.v2.datastructures.vector :refer [read-range lazy-read-range]]
             [eva.v2.database.log :refer [log-entry open-transaction-log set-log-count]]
             [eva.v2.database.lookup-refs :as lookup-refs]
+            [eva.v2.database.as-of-cache :as as-of-cache]
             [eva.v2.database.overlay :as over]
+            [eva.v2.database.speculative :as spec]
             [eva.v2.transaction-pipeline.core :as transaction-pipeline]
             [eva.core :refer [entry->datoms safe-advance-index-better batch-advance-index] :as core]
             [eva.attribute :as attr]
@@ -26,11 +28,12 @@
             [eva.entity-id :as entity-id :refer [->tx-num]]
             [eva.v2.database.history-snapshot :as hdb]
             [eva.defaults :as defaults]
+            [eva.config :refer [config-strict]]
             [eva.functions :refer [build-db-fn]]
-            [eva.readers :as eva-reader]
             [eva.entity]
             [eva.query.datalog.protocols :as p]
             [eva.query.dialect.pull.core :as pull-query]
+            [eva.query.profile :as profile]
             [barometer.core :as metrics]
             [barometer.aspects :refer [timed]]
             [eva.utils :refer [with-retries one ensure-avl-sorted-set-by fill]]
@@ -39,7 +42,7 @@
             [eva.utils.logging :refer [logged]]
             [map-experiments.smart-maps.bijection :refer [bijection]]
             [map-experiments.smart-maps.protocol :as smart-maps]
-            [utiliva.core :refer [zip-to zip-from partition-map]]
+            [utiliva.core :refer [zip-to zip-from partition-map partition-pmap]]
             [eva.error :refer [raise insist] :as ee]
             [clojure.core.unify :as u]
             [morphe.core :as d]
@@ -169,6 +172,57 @@
     (-> (transduce (map :e) dissoc db-fns retracted)
         (merge (dats->db-fns idents added)))))
 
+;;;;;;;;;;;;
+;; SCHEMA ;;
+;;;;;;;;;;;;
+
+(def schema-keys [:idents :attrs :parts :db-fns :ref-attr-eids :byte-attr-eids])
+
+(defn attr-eids-of-type
+  "Set of the eids of the attributes in attrs with the given value type."
+  [attrs type-kw]
+  (into #{}
+        (comp (filter (fn [[_ attr]] (= type-kw (:value-type attr))))
+              (map key))
+        attrs))
+
+(defn ->schema
+  "Derives a map of schema-keys --> schema state from the datoms in indexes."
+  [indexes]
+  (let [idents (->idents indexes)
+        attrs  (->attrs indexes idents)]
+    {:idents idents
+     :attrs attrs
+     :parts (->parts indexes idents)
+     :db-fns (->db-fns indexes idents)
+     :ref-attr-eids (attr-eids-of-type attrs :db.type/ref)
+     :byte-attr-eids (attr-eids-of-type attrs :db.type/bytes)}))
+
+(defn- schema-datom? [d]
+  (let [a (:a d)]
+    (or (= a *db-ident-eid*)
+        (= a *install-part-eid*)
+        (= a *install-attr-eid*)
+        (= a *db-fn-eid*))))
+
+(defn advance-schema
+  "Carries schema forward across tx-datoms, reading newly installed attributes
+   from indexes (which must already include tx-datoms). The schema is returned
+   untouched if no datom installs idents, partitions, attributes, or db fns."
+  [{:keys [idents attrs parts db-fns ref-attr-eids byte-attr-eids] :as schema} indexes tx-datoms]
+  (if-not (some schema-datom? tx-datoms)
+    schema
+    ;; TODO: Handle schema retractions
+    (let [by-attr (group-by :a tx-datoms)
+          idents' (into idents (map (juxt :v :e)) (get by-attr *db-ident-eid*))
+          attrs'  (dats->attrs indexes idents' (get by-attr *install-attr-eid*))]
+      {:idents idents'
+       :attrs (into attrs attrs')
+       :parts (into parts (dats->partitions idents' (count parts) (get by-attr *install-part-eid*)))
+       :db-fns (update-db-fns db-fns idents' (get by-attr *db-fn-eid*))
+       :ref-attr-eids (into ref-attr-eids (attr-eids-of-type attrs' :db.type/ref))
+       :byte-attr-eids (into byte-attr-eids (attr-eids-of-type attrs' :db.type/bytes))})))
+
 (defn db-invoke [db id args]
   (apply (core/->fn db id) args))
 
@@ -245,61 +299,183 @@
                (get-in transform-map [:v v] v)
                t added?)))
 
+(def ^:private range-value-types
+  #{:db.type/long :db.type/double :db.type/float :db.type/bigint :db.type/bigdec})
+
+(defn- range-selectable?
+  "Can the values of attribute a be read as a numeric interval of AVET?"
+  [db a]
+  (and (some? a)
+       (satisfies? core/SelectDatomRange db)
+       (contains? range-value-types
+                  (some-> (attr/resolve-attribute db a) attr/value-type))))
+
+(defn- select-attribute
+  "Answers [a] selections in AEVT, ordered as given. Where a range of values
+  has been pushed down from the query and the attribute is numeric, only the
+  interval [a lower] .. [a upper] of AVET is read instead of the whole attribute.
+  The range reads and the AEVT batch are independent, and run concurrently."
+  [db projected {:keys [lower upper] :as v-range}]
+  (if (nil? v-range)
+    (core/multi-select-datoms-ordered db (cons :aevt projected))
+    (partition-pmap (fn [[a]] (range-selectable? db a))
+                    {true (partial mapv (fn [[a]]
+                                          (core/select-datom-range db [:avet
+                                                                       (cond-> [a] (some? lower) (conj lower))
+                                                                       (cond-> [a] (some? upper) (conj upper))])))
+                     false #(core/multi-select-datoms-ordered db (cons :aevt %))}
+                    projected)))
+
+(defn- scan-attribute?
+  "Should n distinct [e a] probes into EAVT be answered by one AEVT scan of a
+  instead? Compares the scan's estimated size against the weighted probe count."
+  [db a n]
+  (and (some? a)
+       (satisfies? core/EstimateDatoms db)
+       (<= (core/estimate-datoms db [:aevt a])
+           (* n (config-strict :eva.query.access-path.probe-weight)))))
+
+(defn- attribute-scans
+  "Maps each attribute of the [e a] selections that is estimated to be cheaper
+  to scan in AEVT than to probe in EAVT once per entity to its datoms, grouped
+  by entity."
+  [db projected]
+  (into {}
+        (for [[a group] (group-by second projected)
+              :when (scan-attribute? db a (count (distinct group)))]
+          [a (group-by :e (core/select-datoms db [:aevt a]))])))
+
+(defn- select-entity-attribute
+  "Answers [e a] selections, ordered as given. Selections whose attribute has
+  been scanned (see attribute-scans) are answered from the scan; the rest probe
+  EAVT."
+  [db scanned projected]
+  (if (empty? scanned)
+      (core/multi-select-datoms-ordered db (cons :eavt projected))
+      (partition-map (fn [[_ a]] (contains? scanned a))
+                     {true (partial map (fn [[e a]] (get-in scanned [a e] ())))
+                      false #(core/multi-select-datoms-ordered db (cons :eavt %))}
+                     projected)))
+
+(def ^:private boundedness->index
+  "The index each boundedness of extensions-impl selects from primarily."
+  {:e___ :eavt, :_a__ :aevt, :ea__ :eavt, :e_v_ :eavt, :e__t :eavt, :_av_ :avet,
+   :_a_t :aevt, :eav_ :eavt, :ea_t :eavt, :e_vt :eavt, :_avt :avet, :eavt :eavt})
+
+(defn- note-selections!
+  "Records the selections of extensions-impl against the current plan node: one
+  per index actually read, in the order first read, with the probes it answered
+  and the datoms they found. index-of gives the index read for a projected
+  selection."
+  [bound v-range index-of projected results]
+  (let [by-index (group-by (comp index-of first) (map vector projected results))
+        indexes (distinct (map index-of projected))]
+    (if (empty? indexes)
+      (profile/note-selection! {:index (boundedness->index bound)
+                                :boundedness bound
+                                :range v-range
+                                :probes 0
+                                :datoms 0})
+      (doseq [index indexes
+              :let [pairs (get by-index index)]]
+        (profile/note-selection! {:index index
+                                  :boundedness bound
+                                  :range v-range
+                                  :probes (count pairs)
+                                  :datoms (transduce (map (comp count second)) + pairs)})))))
+
 (defn extensions-impl
+  ([db terms-coll] (extensions-impl db terms-coll nil))
+  ([db terms-coll v-range]
+   (let [exemplar (first terms-coll)
+         bound (boundedness exemplar)
+         _ (when (contains? #{:____ :__v_ :___t :__vt} bound)
+             (raise :query/insufficient-binding
+                    "Insufficient binding. Would cause full db scan."
+                    {:binding bound
+                     :exemplar exemplar}))
+         eavtas->eidified (zipmap terms-coll (batch-eidify db terms-coll))
+         eidified (vals eavtas->eidified)
+         transform-maps (map (fn [[eavta eidified]] ;; <== ORDER IS IMPORTANT
+                               (transduce (comp (zip-from eavta)
+                                                (zip-from [:e :a :v :t :added?])
+                                                (filter (fn [[k [x y]]] (not= x y))))
+                                          (completing (fn [m [k [x y]]] (assoc-in m [k y] x)))
+                                          {}
+                                          eidified))
+                             eavtas->eidified)
+         equal-v (fn [v] (fn [d] (= (:v d) v)))
+         equal-t (fn [t] (fn [d] (= (:tx d) t)))
+         project (case bound ;; creating functions that project to the appropriate components of the datom.
+                   (:e___ :e_v_ :e__t :e_vt) (partial map (partial take 1)) ;; TODO: better projection functions.
+                   (:_a__ :_a_t) (partial map (comp (partial take 1) rest))
+                   (:ea__ :ea_t) (partial map (partial take 2))
+                   :_av_ (partial map (comp (partial take 2) rest))
+                   :_avt (partial map (comp (partial take 2) rest))
+                   :eav_ (partial map (partial take 3))
+                   :eavt (partial map (partial take 4)))
+         projected (project eidified)
+         scanned (when (contains? #{:ea__ :ea_t} bound)
+                   (attribute-scans db projected))
+         alternate-raw (try (case bound ;; And here we do it all in parallel: Boo-yah!
+                              :e___ (core/multi-select-datoms-ordered db (cons :eavt projected))
+                              :_a__ (select-attribute db projected v-range)
+
+                              :ea__ (select-entity-attribute db scanned projected)
+                              :e_v_ (map (fn [[_ _ v _] results] (filter (equal-v v) results))
+                                         eidified (core/multi-select-datoms-ordered db (cons :eavt projected)))
+                              :e__t (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
+                                         eidified (core/multi-select-datoms-ordered db (cons :eavt projected)))
+                              :_av_ (core/multi-select-datoms-ordered db (cons :avet projected))
+                              :_a_t (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
+                                         eidified (core/multi-select-datoms-ordered db (cons :aevt projected)))
+                              :eav_ (core/multi-select-datoms-ordered db (cons :eavt projected))
+                              :ea_t (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
+                                         eidified (select-entity-attribute db scanned projected))
+                              :e_vt (map (fn [[_ _ v t] results] (filter (every-pred (equal-t t) (equal-v v))
+                                                                         results))
+                                         eidified (core/multi-select-datoms-ordered db (cons :eavt projected)))
+                              :_avt (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
+                                         eidified (core/multi-select-datoms-ordered db (cons :avet projected)))
+                              :eavt (core/multi-select-datoms-ordered db (cons :eavt projected))))
+         _ (when (profile/profiling?)
+             (note-selections! bound v-range
+                               (case bound
+                                 (:ea__ :ea_t) (fn [[_ a]] (if (contains? scanned a) :aevt :eavt))
+                                 :_a__ (if v-range
+                                         (fn [[a]] (if (range-selectable? db a) :avet :aevt))
+                                         (constantly :aevt))
+                                 (constantly (boundedness->index bound)))
+                               projected
+                               alternate-raw))
+         project* (apply juxt (take (count exemplar) [:e :a :v :tx :added]))
+         untransformed (mapcat untransform transform-maps alternate-raw) ;; <== ORDER IS IMPORTANT. ASSUMPTION IS THAT THEY CORRESPOND!!
+         alternate-result (map project* untransformed)]
+     alternate-result)))
+
+(defn- estimate-criteria
+  "The index selection whose size approximates the datoms matching one group of
+  [e a v t added] terms: the longest bound prefix of EAVT, AVET or AEVT. nil for
+  groups that extensions-impl refuses as insufficiently bound."
+  [[e a v]]
+  (let [bound? #(and (some? %) (not (u/lvar? %)))]
+    (cond (bound? e) (cond-> [:eavt e]
+                       (bound? a) (conj a)
+                       (and (bound? a) (bound? v)) (conj v))
+          (and (bound? a) (bound? v)) [:avet a v]
+          (bound? a) [:aevt a])))
+
+(defn estimate-extensions-impl
+  "Approximates the number of datoms extensions-impl would return for terms-coll
+  from the index's own node sizes, or returns nil if any group of terms is
+  insufficiently bound."
   [db terms-coll]
-  (let [exemplar (first terms-coll)
-        bound (boundedness exemplar)
-        _ (when (contains? #{:____ :__v_ :___t :__vt} bound)
-            (raise :query/insufficient-binding
-                   "Insufficient binding. Would cause full db scan."
-                   {:binding bound
-                    :exemplar exemplar}))
-        eavtas->eidified (zipmap terms-coll (batch-eidify db terms-coll))
-        eidified (vals eavtas->eidified)
-        transform-maps (map (fn [[eavta eidified]] ;; <== ORDER IS IMPORTANT
-                              (transduce (comp (zip-from eavta)
-                                               (zip-from [:e :a :v :t :added?])
-                                               (filter (fn [[k [x y]]] (not= x y))))
-                                         (completing (fn [m [k [x y]]] (assoc-in m [k y] x)))
-                                         {}
-                                         eidified))
-                            eavtas->eidified)
-        equal-v (fn [v] (fn [d] (= (:v d) v)))
-        equal-t (fn [t] (fn [d] (= (:tx d) t)))
-        project (case bound ;; creating functions that project to the appropriate components of the datom.
-                  (:e___ :e_v_ :e__t :e_vt) (partial map (partial take 1)) ;; TODO: better projection functions.
-                  (:_a__ :_a_t) (partial map (comp (partial take 1) rest))
-                  (:ea__ :ea_t) (partial map (partial take 2))
-                  :_av_ (partial map (comp (partial take 2) rest))
-                  :_avt (partial map (comp (partial take 2) rest))
-                  :eav_ (partial map (partial take 3))
-                  :eavt (partial map (partial take 4)))
-        projected (project eidified)
-        alternate-raw (try (case bound ;; And here we do it all in parallel: Boo-yah!
-                             :e___ (core/multi-select-datoms-ordered db (cons :eavt projected))
-                             :_a__ (core/multi-select-datoms-ordered db (cons :aevt projected))
-
-                             :ea__ (core/multi-select-datoms-ordered db (cons :eavt projected))
-                             :e_v_ (map (fn [[_ _ v _] results] (filter (equal-v v) results))
-                                        eidified (core/multi-select-datoms-ordered db (cons :eavt projected)))
-                             :e__t (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
-                                        eidified (core/multi-select-datoms-ordered db (cons :eavt projected)))
-                             :_av_ (core/multi-select-datoms-ordered db (cons :avet projected))
-                             :_a_t (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
-                                        eidified (core/multi-select-datoms-ordered db (cons :aevt projected)))
-                             :eav_ (core/multi-select-datoms-ordered db (cons :eavt projected))
-                             :ea_t (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
-                                        eidified (core/multi-select-datoms-ordered db (cons :eavt projected)))
-                             :e_vt (map (fn [[_ _ v t] results] (filter (every-pred (equal-t t) (equal-v v))
-                                                                        results))
-                                        eidified (core/multi-select-datoms-ordered db (cons :eavt projected)))
-                             :_avt (map (fn [[_ _ _ t] results] (filter (equal-t t) results))
-                                        eidified (core/multi-select-datoms-ordered db (cons :avet projected)))
-                             :eavt (core/multi-select-datoms-ordered db (cons :eavt projected))))
-        project* (apply juxt (take (count exemplar) [:e :a :v :tx :added]))
-        untransformed (mapcat untransform transform-maps alternate-raw) ;; <== ORDER IS IMPORTANT. ASSUMPTION IS THAT THEY CORRESPOND!!
-        alternate-result (map project* untransformed)]
-    alternate-result))
+  (reduce (fn [total terms]
+            (if-some [criteria (estimate-criteria terms)]
+              (+ total (core/estimate-datoms db criteria))
+              (reduced nil)))
+          0
+          terms-coll))
 
 ;;;;;;;;;;;;;;;;;;;
 ;; DATABASE CORE ;;
@@ -376,7 +552,9 @@
                      parts
                      db-fns
                      database-info
-                     lookup-ref-cache]
+                     lookup-ref-cache
+                     ref-attr-eids
+                     byte-attr-eids]
   UpdatableDB
   (advance-db* [this log-entry]
     (insist (= (:tx-num log-entry) (inc (core/tx-num this)))
@@ -384,29 +562,33 @@
                     (:tx-num log-entry) (inc (core/tx-num this))))
     (let [tx-datoms (entry->datoms log-entry)
           indexes' (tracing "eva.database/advance-db*::advance-overlay"
-                            (over/advance-overlay indexes this log-entry))
-          ;; TODO: Handle schema retractions
-          by-attr (group-by :a tx-datoms)
-          idents' (into idents (map (juxt :v :e)) (get by-attr *db-ident-eid*))
-          parts'  (dats->partitions idents' (count parts) (get by-attr *install-part-eid*))
-          attrs'  (dats->attrs indexes' idents' (get by-attr *install-attr-eid*))
-          db-fns' (update-db-fns db-fns idents' (get by-attr *db-fn-eid*))]
-      (-> this
-          (assoc :basis-t (:tx-num log-entry)
-                 :log-entry log-entry
-                 :indexes indexes'
-                 :db-fns db-fns'
-                 :idents idents'
-                 :lookup-ref-cache (atom {}))
-          (#(merge-with into % {:parts  parts'
-                                :attrs  attrs'})))))
+                            (over/advance-overlay (if (:speculative? log-entry)
+                                                    (spec/speculative-indexes indexes)
+                                                    indexes)
+                                                  this
+                                                  log-entry))
+          db' (-> this
+                  (assoc :basis-t (:tx-num log-entry)
+                         :log-entry log-entry
+                         :indexes indexes')
+                  (merge (advance-schema (select-keys this schema-keys) indexes' tx-datoms)))]
+      (if (:speculative? log-entry)
+        ;; speculative novelty must never reach the shared cache
+        (assoc db' :lookup-ref-cache (lookup-refs/resolution-cache (:tx-num log-entry)))
+        (do (lookup-refs/advance-cache! lookup-ref-cache db' log-entry tx-datoms)
+            db'))))
 
   (safe-advance-db [this new-entry]
     (insist (not (:speculative? new-entry)))
     (tracing "eva.database/safe-advance-db"
              (if (not= (:index-roots new-entry) (:index-roots log-entry))
-                 ;; the indexes have advanced, we can flush our current state and start fresh
-               (log-entry->db database-info store (open-transaction-log store database-info) new-entry)
+                 ;; the indexes have advanced, we can flush our current state and start fresh,
+                 ;; carrying the schema forward rather than re-reading it from the indexes
+               (let [schema (when (= (:tx-num new-entry) (inc (core/tx-num this)))
+                              (select-keys this schema-keys))
+                     db' (log-entry->db database-info store (open-transaction-log store database-info) new-entry schema)]
+                 (lookup-refs/advance-cache! lookup-ref-cache db' new-entry)
+                 (assoc db' :lookup-ref-cache lookup-ref-cache))
                (advance-db* this new-entry))))
 
   (speculatively-advance-db [this log-entry]
@@ -452,6 +634,20 @@
            (cons index-name)
            (core/multi-select-datoms-ordered indexes))))
 
+  core/SelectDatomRange
+  (select-datom-range [db [index-name lower-components upper-components]]
+    (insist-valid-index-name index-name)
+    (let [lower (core/resolve-components db index-name lower-components)
+          upper (core/resolve-components db index-name upper-components)]
+      (if (some nil? (concat lower upper))
+        ()
+        (core/select-datom-range indexes [index-name lower upper]))))
+
+  core/EstimateDatoms
+  (estimate-datoms [db [index-name & components]]
+    (insist-valid-index-name index-name)
+    (core/estimate-datoms indexes (cons index-name (core/resolve-components db index-name components))))
+
   eva.Database
   (invoke [this eid-or-ident args]
     (db-invoke this eid-or-ident args))
@@ -552,9 +748,9 @@
   (datoms [db index components]
     (ee/with-api-error-handling (core/select-datoms db (concat [index] components))))
   (pull [db pattern eid]
-    (ee/with-api-error-handling (pull-query/pull db (eva-reader/ensure-parsed pattern) eid)))
+    (ee/with-api-error-handling (pull-query/pull db pattern eid)))
   (pullMany [db pattern eids]
-    (ee/with-api-error-handling (pull-query/pull-many db (eva-reader/ensure-parsed pattern) eids)))
+    (ee/with-api-error-handling (pull-query/pull-many db pattern eids)))
   (asOf [db t] (ee/with-api-error-handling (as-of db t)))
   (with [this tx-data]
     (ee/with-api-error-handling
@@ -603,7 +799,7 @@
 
   core/LookupRefCache
   (update-lookup-ref-cache! [db resolved-id-map]
-    (swap! lookup-ref-cache merge resolved-id-map))
+    (lookup-refs/cache-resolutions! lookup-ref-cache (core/tx-num db) resolved-id-map))
 
   core/LookupRefResolution
   ;; delegating all resolution to free functions in 'lookup-refs' namespace:
@@ -621,36 +817,50 @@
 
   (batch-resolve-lookup-refs-strict [db lookup-refs]
     (lookup-refs/batch-resolve-lookup-refs-strict db lookup-refs))
+  (batch-resolve-lookup-refs-strict [db lookup-refs select-avet]
+    (lookup-refs/batch-resolve-lookup-refs-strict db lookup-refs select-avet))
 
   p/EDB
   (extensions [db terms]
     (metrics/with-timer query-edb-timer
-      (extensions-impl db terms))))
+      (extensions-impl db terms)))
+
+  p/RangeEDB
+  (range-extensions [db terms v-range]
+    (metrics/with-timer query-edb-timer
+      (extensions-impl db terms v-range)))
+
+  p/EstimableEDB
+  (estimate-extensions [db terms]
+    (estimate-extensions-impl db terms)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;; DATABASE CONSTRUCTION
 
-;; NOTE: Using this lru cache made things Sllllloooowwwwwwwww. Will need to follow up.
-(def empty-lookup-ref-cache {} #_(cache/lru-cache-factory {} :threshold 100000))
-
 (d/defn ^{::d/aspects [traced]} ->db
   "Given an object of indexes that supports select-datoms on eavt and aevt,
-   realize a database instance from the datoms therein."
-  [database-info indexes store log-entry]
-  (let [idents (->idents indexes)
-        attrs  (->attrs  indexes idents)
-        db-fns (->db-fns indexes idents)
-        parts  (->parts  indexes idents)]
-    (Database. (:tx-num log-entry)
-               store
-               log-entry
-               indexes
-               idents
-               attrs
-               parts
-               db-fns
-               database-info
-               (atom empty-lookup-ref-cache))))
+   realize a database instance from the datoms therein. If given the schema of
+   the database as of the preceding log entry, advances it by the log entry's
+   datoms instead of re-reading the schema from the indexes."
+  ([database-info indexes store log-entry]
+   (->db database-info indexes store log-entry nil))
+  ([database-info indexes store log-entry prior-schema]
+   (let [{:keys [idents attrs parts db-fns ref-attr-eids byte-attr-eids]}
+         (if (some? prior-schema)
+           (advance-schema prior-schema indexes (entry->datoms log-entry))
+           (->schema indexes))]
+     (Database. (:tx-num log-entry)
+                store
+                log-entry
+                indexes
+                idents
+                attrs
+                parts
+                db-fns
+                database-info
+                (lookup-refs/resolution-cache (:tx-num log-entry))
+                ref-attr-eids
+                byte-attr-eids))))
 
 (defn roots->min-index-position [index-roots]
   (->> index-roots vals (map :tx-num) (apply min)))
@@ -674,14 +884,17 @@
   "Given a log entry, creates a database snapshot consistent with that point in
    time.  If `state?' is set, creates a staging db capable of flushing index
    updates. Will asynchronously read the span of the transaction log needed to
-   reconstitute the database's state."
-  [database-info store log entry]
-  (insist (not (:speculative? entry)))
-  (let [log (set-log-count log (inc (:tx-num entry)))
-        roots (:index-roots entry)
-        basis-tx (roots->min-index-position roots)
-        basis-entry @(nth log basis-tx)]
-    (->db database-info (get-indexes store (:database-id database-info) entry) store entry)))
+   reconstitute the database's state. If given prior-schema, the schema of the
+   database as of the preceding entry, carries it forward (see ->db)."
+  ([database-info store log entry]
+   (log-entry->db database-info store log entry nil))
+  ([database-info store log entry prior-schema]
+   (insist (not (:speculative? entry)))
+   (let [log (set-log-count log (inc (:tx-num entry)))
+         roots (:index-roots entry)
+         basis-tx (roots->min-index-position roots)
+         basis-entry @(nth log basis-tx)]
+     (->db database-info (get-indexes store (:database-id database-info) entry) store entry prior-schema))))
 
 (defn log->db
   "Given the transaction log, realize a database consistent with the latest
@@ -689,6 +902,18 @@
   [database-info store log]
   (log-entry->db database-info store log @(log-entry log)))
 
+(defn- as-of-snapshot
+  "Returns the database as of log-entry, advancing the nearest cached earlier
+  snapshot when there is one rather than building it from the index roots."
+  [database-info store log log-entry]
+  (let [database-id (:database-id database-info)
+        tx-num (:tx-num log-entry)
+        db' (if-some [cached (as-of-cache/nearest-snapshot as-of-cache/global-as-of-cache database-id tx-num)]
+              (advance-db-to-tx cached log tx-num)
+              (log-entry->db database-info store log log-entry))]
+    (as-of-cache/cache-snapshot! as-of-cache/global-as-of-cache database-id db')
+    db'))
+
 (d/defn ^{::d/aspects [(logged) traced timed]} as-of
   [^eva.Database db t]
   (let [store (:store db)
@@ -696,10 +921,11 @@
         _ (assert database-info)
         log (open-transaction-log store database-info)
         tx-num (->tx-num t)
-        log-entry @(log-entry (set-log-count log (inc tx-num)) tx-num)
+        log (set-log-count log (inc tx-num))
+        log-entry @(log-entry log tx-num)
         basis-t (.basisT db)]
     (if (some? log-entry)
-      (let [as-of-db (log-entry->db database-info store log log-entry)]
+      (let [as-of-db (as-of-snapshot database-info store log log-entry)]
         (assoc as-of-db :basis-t (max basis-t tx-num)))
       (raise :database/as-of-does-not-exist
              (format "could not find a transaction log entry for %s" tx-num)
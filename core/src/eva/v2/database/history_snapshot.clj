@@ -18,8 +18,10 @@
             [eva.query.datalog.protocols :as p]
             [barometer.core :as metrics]
             [eva.error :as ee :refer [raise]]
+            [eva.v2.database.speculative]
             [utiliva.core :refer [zip-to zip-from partition-map group-like]])
-  (:import (java.io Writer)))
+  (:import (java.io Writer)
+           (eva.v2.database.speculative SpeculativeIndexes)))
 
 ;; The historic database is a variant of the database that includes *all* datoms
 ;; across time and supports:
@@ -77,7 +79,11 @@
     (metrics/get-or-register metrics/DEFAULT ["eva.historic-database" "extensions" "timer"] timer)))
 
 (defn db-snapshot->history-snapshot [^eva.Database db extensions-impl]
-  (let [history-indexes (map->HistoryOverlay (:indexes db))]
+  (let [indexes (:indexes db)
+        ;; speculative indexes layer their history delta over the base themselves
+        history-indexes (if (instance? SpeculativeIndexes indexes)
+                          indexes
+                          (map->HistoryOverlay indexes))]
    (reify
       eva.Database
       ;; pass through
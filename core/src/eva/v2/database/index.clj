@@ -29,6 +29,7 @@
                                                   open-writable-set
                                                   between
                                                   subranges
+                                                  estimate-range
                                                   persist!
                                                   subrange
                                                   remove-interval!
@@ -121,38 +122,50 @@
 
 (defn unpack-eid [e] (bit-clear e 62))
 
-(defn packed-datom->op [index-name [c0 c1 c2 tx-eid]] ;; order: peid a v tx-eid
+(defn packed-datom->tuple-op
+  "Returns [:conj tuple] for a packed datom added to the index, or [:retract
+   [c0 c1 c2]] for the component prefix of the tuples it retracts, both in the
+   index's component order."
+  [index-name [c0 c1 c2 tx-eid]] ;; order: peid a v tx-eid
   (case index-name
     :aevt
     (if (entity-id/added? c0)
       [:conj [c1 c0 c2 tx-eid]]
-      [:remove-interval (->interval c1 (unpack-eid c0) c2)])
+      [:retract [c1 (unpack-eid c0) c2]])
     :avet
     (if (entity-id/added? c0)
       [:conj [c1 c2 c0 tx-eid]]
-      [:remove-interval (->interval c1 c2 (unpack-eid c0))])
+      [:retract [c1 c2 (unpack-eid c0)]])
     :eavt
     (if (entity-id/added? c0)
       [:conj [c0 c1 c2 tx-eid]]
-      [:remove-interval (->interval (unpack-eid c0) c1 c2)])
+      [:retract [(unpack-eid c0) c1 c2]])
     :vaet
     (if (entity-id/added? c0)
       [:conj [c2 c1 c0 tx-eid]]
-      [:remove-interval (->interval c2 c1 (unpack-eid c0))])
+      [:retract [c2 c1 (unpack-eid c0)]])
     :aevth [:conj [c1 c0 c2 tx-eid]]
     :aveth [:conj [c1 c2 c0 tx-eid]]
     :eavth [:conj [c0 c1 c2 tx-eid]]
     :vaeth [:conj [c2 c0 c1 tx-eid]]))
 
+(defn packed-datom->op [index-name packed-datom]
+  (let [[op tuple] (packed-datom->tuple-op index-name packed-datom)]
+    (case op
+      :conj [:conj tuple]
+      :retract [:remove-interval (apply ->interval tuple)])))
+
+(defn log-selector-fn [index-name]
+  (case index-name
+    (:avet :aveth) packed-non-byte-datoms
+    (:vaet :vaeth) packed-ref-type-datoms
+    packed-datoms))
+
 (defn log->index-ops [index-name tx-log start-tx target-tx-entry]
   (let [target-tx-num (:tx-num target-tx-entry)
         log-entries  (concat (when (> target-tx-num start-tx)
-                               @(read-range tx-log start-tx target-tx-num)) [target-tx-entry])
-        log-selector-fn (case index-name
-                          (:avet :aveth) packed-non-byte-datoms
-                          (:vaet :vaeth) packed-ref-type-datoms
-                          packed-datoms)]
-    (sequence (comp (mapcat log-selector-fn)
+                               @(read-range tx-log start-tx target-tx-num)) [target-tx-entry])]
+    (sequence (comp (mapcat (log-selector-fn index-name))
                     (map (partial packed-datom->op index-name)))
               log-entries)))
 
@@ -218,6 +231,25 @@
                                ;;       the following line of work will be duplicated quite a bit.
                                (map #(map (partial unpack name) %))))
                (doall))))))
+  core/SelectDatomRange
+  (select-datom-range [_ [index-name lower-components upper-components]]
+    (insist (= name index-name)
+            (format "select-datom-range expected index %s but was called against %s" index-name name))
+    (with-retries (defaults/read-index-retry-strategy)
+      (format "retrying read on select-datom-range %s" index-name)
+      (map (partial unpack name)
+           (between idx (fill LOWER lower-components) (fill UPPER upper-components)))))
+
+  core/EstimateDatoms
+  (estimate-datoms [_ [index-name & components]]
+    (insist (= name index-name)
+            (format "estimate-datoms expected index %s but was called against %s" index-name name))
+    (if-let [range (-> components pad-components expand-components)]
+      (with-retries (defaults/read-index-retry-strategy)
+        (format "retrying read on estimate-datoms %s" index-name)
+        (estimate-range idx range))
+      0))
+
   AdvanceIndex
   (initialize-index [this init-datoms]
     (insist (< tx 0) "Index is already initialized!")
@@ -16,9 +16,92 @@
   (:require
    [eva.core :refer [entry->datoms safe-advance-index-better batch-advance-index] :as core]
    [eva.attribute :as attr]
+   [eva.config :refer [config-strict]]
+   [eva.utils.guava-cache :as gcache]
    [eva.error :refer [raise insist] :as ee]
-   [utiliva.core :refer [partition-map]]))
+   [utiliva.core :refer [partition-map]])
+  (:import (com.google.common.cache Cache)))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; RESOLUTION CACHE
+;;
+;; One cache is shared by every snapshot advanced from the same database value
+;; (in practice, everything a connection hands out). Entries are [eid t-filled],
+;; and the cache records the tx-num `t` through which it has seen all novelty.
+;;
+;; * Entries are only written by snapshots at exactly `t`.
+;; * Advancing to t + 1 removes the entries that the new datoms could change.
+;; * A snapshot at t' may read an entry iff t-filled <= t' <= t; any change
+;;   between t-filled and t' would have removed the entry.
+;;
+;; Snapshots ahead of the cache (speculative, or advanced past a gap) read
+;; through to the index until the cache catches up.
+
+(defrecord ResolutionCache [^Cache entries t])
+
+(defn resolution-cache
+  "Creates an empty resolution cache that has seen all novelty through tx-num."
+  [tx-num]
+  (->ResolutionCache (.build (gcache/cache-builder
+                              {:maximum-size (config-strict :eva.database.lookup-ref-cache.max-size)}))
+                     (atom tx-num)))
+
+;; Keys are compared with Java equality, under which e.g. (int 1) and 1 differ.
+;; Only values whose class is the one stored in datoms are cached, so that the
+;; key invalidated by a datom is always the key that was filled.
+(def ^:private canonical-value-classes
+  #{String clojure.lang.Keyword java.util.UUID Long Boolean java.util.Date java.net.URI})
+
+(defn- cache-key
+  "Normalizes a lookup ref to [attr-eid v] as it would appear in a datom, or
+  nil if it cannot be cached."
+  [^eva.Database db [a v]]
+  (when-let [attr (attr/resolve-attribute db a)]
+    (if (attr/ref-attr? attr)
+      (when-let [v (cond (keyword? v) (.entid db v)
+                         (instance? Long v) v)]
+        [(attr/id attr) v])
+      (when (contains? canonical-value-classes (class v))
+        [(attr/id attr) v]))))
+
+(defn- cached
+  "Returns the [eid t-filled] entry for k if it is valid at tx-num, else nil."
+  [{:keys [^Cache entries t]} tx-num k]
+  (when (some? k)
+    (when-let [[_ t-filled :as entry] (.getIfPresent entries k)]
+      (when (<= t-filled tx-num @t)
+        entry))))
+
+(defn cache-resolutions!
+  "Records key->eid (eid may be nil) as resolved at tx-num, provided the cache
+  is at tx-num."
+  [{:keys [^Cache entries t] :as cache} tx-num key->eid]
+  (locking cache
+    (when (= tx-num @t)
+      (doseq [[k eid] key->eid
+              :when (some? k)]
+        (.put entries k [eid tx-num])))))
+
+(defn advance-cache!
+  "Brings the cache forward to the log entry, which db reflects, by removing
+  every entry whose [a v] is asserted or retracted on a unique attribute in
+  the entry's datoms. If the cache has fallen behind by more than one entry
+  it is cleared instead."
+  ([cache db log-entry] (advance-cache! cache db log-entry (entry->datoms log-entry)))
+  ([{:keys [^Cache entries t] :as cache} db log-entry datoms]
+   (let [tx-num (:tx-num log-entry)
+         stale (into []
+                     (comp (filter #(some-> (attr/resolve-attribute db (:a %)) attr/unique))
+                           (map (juxt :a :v)))
+                     datoms)]
+     (locking cache
+       (cond (<= tx-num @t) nil
+             (= tx-num (inc @t)) (do (.invalidateAll entries stale)
+                                     (reset! t tx-num))
+             :else (do (.invalidateAll entries)
+                       (reset! t tx-num)))))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 (defn  assert-conformant-lookup-ref [db lookup-ref]
   (when (not= 2 (count lookup-ref))
@@ -39,42 +122,56 @@
          "lookup references are only allowed for unique attributes" {:attr attr :lookup-ref lookup-ref})))
     true))
 
-(defn resolve-lookup-ref [{:keys [lookup-ref-cache]:as db} [a v :as lookup-ref]]
+(defn resolve-lookup-ref [{:keys [lookup-ref-cache] :as db} [a v :as lookup-ref]]
   (core/assert-conformant-lookup-ref db lookup-ref)
-  (let [cache @lookup-ref-cache]
-    (if (contains? cache lookup-ref)
-      (get cache lookup-ref)
-      (let [res (core/select-datoms db [:avet a v])]
-        (when-let [eid (:e (first res))]
-          (core/update-lookup-ref-cache! db {lookup-ref eid})
-          eid)))))
+  (let [k (cache-key db lookup-ref)]
+    (if-let [[eid] (cached lookup-ref-cache (core/tx-num db) k)]
+      eid
+      (let [eid (:e (first (core/select-datoms db [:avet a v])))]
+        (core/update-lookup-ref-cache! db {k eid})
+        eid))))
 
-(defn resolve-lookup-ref-strict [db [a v :as lookup-ref]]
-  (core/assert-conformant-lookup-ref db lookup-ref)
-  (if-some [eid (:e (first (core/select-datoms db [:avet a v])))]
+(defn resolve-lookup-ref-strict [db lookup-ref]
+  (if-some [eid (resolve-lookup-ref db lookup-ref)]
     eid
     (raise :lookup-ref/no-such-eid
            "Lookup reference does not have corresponding extant eid"
            {:lookup-ref lookup-ref})))
 
-(defn batch-resolve-lookup-refs [db lookup-refs]
-  (doseq [lr lookup-refs] (core/assert-conformant-lookup-ref db lr))
-  (let [cur-cache @(-> db :lookup-ref-cache)
-        ids (partition-map (partial contains? cur-cache)
-                           {true  #(map (partial get cur-cache) %)
-                            false #(map (comp :e first) (core/multi-select-datoms-ordered db (cons :avet %)))}
-                           lookup-refs)]
-    ;; NOTE: stores negative results in the cache too.
-    (core/update-lookup-ref-cache! db (zipmap lookup-refs ids))
-    ids))
+(defn batch-resolve-lookup-refs
+  "Resolves each of lookup-refs to its eid, or nil. Those not served by the
+  resolution cache are selected together through select-avet, a function from
+  a seq of [a v] to the aligned seq of :avet datoms for each, which defaults to
+  a single multi-select on db."
+  ([db lookup-refs]
+   (batch-resolve-lookup-refs db lookup-refs #(core/multi-select-datoms-ordered db (cons :avet %))))
+  ([{:keys [lookup-ref-cache] :as db} lookup-refs select-avet]
+   (doseq [lr lookup-refs] (core/assert-conformant-lookup-ref db lr))
+   (let [tx-num (core/tx-num db)
+         ks (map (partial cache-key db) lookup-refs)
+         entries (map (partial cached lookup-ref-cache tx-num) ks)
+         ids (partition-map (comp some? first)
+                            {true  #(map ffirst %)
+                             false #(map (comp :e first)
+                                         (select-avet (map second %)))}
+                            (map vector entries lookup-refs))]
+     ;; NOTE: stores negative results in the cache too.
+     (core/update-lookup-ref-cache! db (into {}
+                                             (comp (remove (comp some? first))
+                                                   (map (fn [[_ k id]] [k id])))
+                                             (map vector entries ks ids)))
+     ids)))
 
-(defn batch-resolve-lookup-refs-strict [db lookup-refs]
-  (let [ids (batch-resolve-lookup-refs db lookup-refs)]
-    (if-let [lookup-ref (->> (map vector ids lookup-refs)
-                             (filter #(nil? (first %)))
-                             first
-                             last)]
-      (raise :lookup-ref/no-such-eid
-             "Lookup reference does not have corresponding extant eid"
-             {:lookup-ref lookup-ref})
-      ids)))
+(defn batch-resolve-lookup-refs-strict
+  ([db lookup-refs]
+   (batch-resolve-lookup-refs-strict db lookup-refs #(core/multi-select-datoms-ordered db (cons :avet %))))
+  ([db lookup-refs select-avet]
+   (let [ids (batch-resolve-lookup-refs db lookup-refs select-avet)]
+     (if-let [lookup-ref (->> (map vector ids lookup-refs)
+                              (filter #(nil? (first %)))
+                              first
+                              last)]
+       (raise :lookup-ref/no-such-eid
+              "Lookup reference does not have corresponding extant eid"
+              {:lookup-ref lookup-ref})
+       ids))))
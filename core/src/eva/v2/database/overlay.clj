@@ -51,10 +51,16 @@
     (core/multi-select-datoms (wait-on-index-updates (get indexes index-name)) q))
   (multi-select-datoms-ordered [this [index-name & _ :as q]]
     (core/multi-select-datoms-ordered (wait-on-index-updates (get indexes index-name)) q))
+  core/SelectDatomRange
+  (select-datom-range [this [index-name & _ :as q]]
+    (core/select-datom-range (wait-on-index-updates (get indexes index-name)) q))
+  core/EstimateDatoms
+  (estimate-datoms [this [index-name & _ :as q]]
+    (core/estimate-datoms (wait-on-index-updates (get indexes index-name)) q))
   Overlay
   (advance-overlay [this db log-entry]
-    (let [ref-attr-eids (db->type-attr-eids db :db.type/ref)
-          byte-attr-eids (db->type-attr-eids db :db.type/bytes)]
+    (let [ref-attr-eids (or (:ref-attr-eids db) (db->type-attr-eids db :db.type/ref))
+          byte-attr-eids (or (:byte-attr-eids db) (db->type-attr-eids db :db.type/bytes))]
       (assoc this
              :indexes
              (pc/for-map [[name idx] (:indexes this)]
@@ -0,0 +1,146 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.v2.database.speculative
+  "A lightweight layer over the indexes of a database snapshot for speculative
+  novelty. Rather than enqueueing each speculative log entry onto the overlaid
+  indexes, the datoms of every speculative entry are kept in a small in-memory
+  delta per index, which reads merge with the base indexes. Chains of
+  speculative transactions thereby cost time and memory in the size of the
+  delta alone."
+  (:require [eva.core :as core]
+            [eva.datom :refer [unpack]]
+            [eva.comparators :refer [index-cmp full-proj-cmp]]
+            [eva.datastructures.utils.comparators :refer [LOWER UPPER]]
+            [eva.v2.database.index :refer [packed-datom->tuple-op log-selector-fn
+                                           pad-components expand-components]]
+            [eva.v2.database.overlay :as over]
+            [eva.utils :refer [fill]]
+            [eva.error :refer [raise]]
+            [recide.sanex :as sanex])
+  (:import (eva Datom)))
+
+(def history-index? #{:eavth :aevth :aveth :vaeth})
+
+(defn- empty-delta
+  "Tuples added to the index, in index order, and the [c0 c1 c2 LOWER] prefixes
+  of the base index's tuples that have been retracted. Both are sorted by the
+  index comparator, so retractions match base tuples just as the index's own
+  interval removal would, bytes values included."
+  [index-name]
+  {:adds (sorted-set-by (index-cmp index-name))
+   :retracted (sorted-set-by (index-cmp index-name))})
+
+(defn- apply-tuple-op [{:keys [adds] :as delta} [op tuple]]
+  (case op
+    :conj (update delta :adds conj tuple)
+    :retract (let [[c0 c1 c2] tuple]
+               (assoc delta
+                      :adds (reduce disj adds (subseq adds >= [c0 c1 c2 LOWER] <= [c0 c1 c2 UPPER]))
+                      :retracted (conj (:retracted delta) [c0 c1 c2 LOWER])))))
+
+(defn- advance-delta [index-name delta log-entry]
+  (transduce (map (partial packed-datom->tuple-op index-name))
+             (completing apply-tuple-op)
+             delta
+             ((log-selector-fn index-name) log-entry)))
+
+(defn- datom-prefix [index-name ^Datom d]
+  (case index-name
+    :eavt [(.e d) (.a d) (.v d) LOWER]
+    :aevt [(.a d) (.e d) (.v d) LOWER]
+    :avet [(.a d) (.v d) (.e d) LOWER]
+    :vaet [(.v d) (.a d) (.e d) LOWER]))
+
+(defn- merge-sorted
+  "Lazily merges the sorted seqs xs and ys under cmp."
+  [^java.util.Comparator cmp xs ys]
+  (lazy-seq
+   (cond (empty? xs) ys
+         (empty? ys) xs
+         (pos? (.compare cmp (first xs) (first ys))) (cons (first ys) (merge-sorted cmp xs (rest ys)))
+         :else (cons (first xs) (merge-sorted cmp (rest xs) ys)))))
+
+(defn- layer
+  "Layers the delta's datoms within [lower upper] over the datoms selected from
+  the base index for the same range."
+  [index-name {:keys [adds retracted]} [lower upper] base-datoms]
+  (let [base-datoms (if (empty? retracted)
+                      base-datoms
+                      (remove #(contains? retracted (datom-prefix index-name %)) base-datoms))
+        added (when (and (some? lower) (seq adds))
+                (map (partial unpack index-name) (subseq adds >= lower <= upper)))]
+    (cond (empty? added) base-datoms
+          (history-index? index-name) (concat base-datoms added)
+          :else (merge-sorted (full-proj-cmp index-name) base-datoms added))))
+
+(defn- components->range [components]
+  (-> components pad-components expand-components))
+
+(defn- components->filled-range [components]
+  [(fill LOWER components) (fill UPPER components)])
+
+(defrecord SpeculativeIndexes [base deltas]
+  core/SelectDatoms
+  (select-datoms [this [index-name & components :as q]]
+    (layer index-name (get deltas index-name) (components->range components)
+           (core/select-datoms base q)))
+  core/MultiSelectDatoms
+  (multi-select-datoms [this [index-name & component-colls :as q]]
+    (let [selected (core/multi-select-datoms base q)]
+      (into {}
+            (map (fn [[components datoms]]
+                   [components (layer index-name (get deltas index-name)
+                                      (components->filled-range components) datoms)]))
+            selected)))
+  (multi-select-datoms-ordered [this [index-name & component-colls :as q]]
+    (doall
+     (map (fn [components datoms]
+            (layer index-name (get deltas index-name) (components->range components) datoms))
+          component-colls
+          (core/multi-select-datoms-ordered base q))))
+  core/SelectDatomRange
+  (select-datom-range [this [index-name lower-components upper-components :as q]]
+    (layer index-name (get deltas index-name)
+           [(fill LOWER lower-components) (fill UPPER upper-components)]
+           (core/select-datom-range base q)))
+  core/EstimateDatoms
+  (estimate-datoms [this [index-name & components :as q]]
+    (let [[lower upper] (components->range components)
+          adds (get-in deltas [index-name :adds])]
+      (+ (core/estimate-datoms base q)
+         (if (and (some? lower) (seq adds))
+           (count (subseq adds >= lower <= upper))
+           0))))
+  over/Overlay
+  (advance-overlay [this db log-entry]
+    (assoc this :deltas (into {}
+                              (map (fn [[index-name delta]]
+                                     [index-name (advance-delta index-name delta log-entry)]))
+                              deltas)))
+  (batch-advance-overlay [this tx-log tx-log-entry]
+    (raise :speculative-indexes/unsupported
+           "speculative indexes cannot be advanced from the transaction log"
+           {::sanex/sanitary? true})))
+
+(defn speculative-indexes
+  "Returns indexes, layering a fresh delta over them unless they are already
+  speculative."
+  [indexes]
+  (if (instance? SpeculativeIndexes indexes)
+    indexes
+    (->SpeculativeIndexes indexes
+                          (into {}
+                                (map (juxt identity empty-delta))
+                                (keys (:indexes indexes))))))
@@ -38,7 +38,8 @@
   open-writable-map
   between
   subrange
-  subranges]
+  subranges
+  estimate-range]
  [eva.datastructures.protocols
   persist!
   make-editable!
@@ -172,3 +172,11 @@
   (if (satisfies? dsp/BackedStructure set-or-map)
     (v0-query/subranges (dsp/store set-or-map) (dsp/root-node set-or-map) ranges)
     (v0-query/subranges (dsp/root-node set-or-map) ranges)))
+
+(defn estimate-range
+  "Returns an estimate of the number of elements from the map/set within the specified
+  range, derived from recorded node sizes without reading the tree's leaves."
+  [set-or-map range]
+  (if (satisfies? dsp/BackedStructure set-or-map)
+    (v0-query/estimate-range (dsp/store set-or-map) (dsp/root-node set-or-map) range)
+    (v0-query/estimate-range (dsp/root-node set-or-map) range)))
@@ -150,6 +150,45 @@
   ([root range] (custom-query root (create-selector-from-range range)))
   ([store root range] (custom-query store root (create-selector-from-range range))))
 
+;; ========== RANGE ESTIMATES ==========
+
+(defn- resolve-node [node] (if (node-pointer? node) (nodes/pointer->node node) node))
+
+(defn- records-per-entry
+  "Estimated number of records beneath each entry of the given node or pointer,
+  found by walking the leftmost path down to the leaves."
+  [node]
+  (if (leaf-node? node)
+    1
+    (let [child (val (first (children (resolve-node node))))]
+      (* (node-size child) (records-per-entry child)))))
+
+(defn- estimate-range*
+  [node [low high :as range]]
+  (let [node (resolve-node node)]
+    (if (leaf-node? node)
+      (count (avl/subrange (children node) >= low <= high))
+      (let [kids (vals (avl-between-kids (children node) range))]
+        (case (count kids)
+          0 0
+          1 (recur (first kids) range)
+          (* (reduce + (map node-size kids))
+             (records-per-entry (first kids))))))))
+
+(defn estimate-range
+  "Takes (optionally) a store, followed by a btree root and a range. Returns an
+  estimate of the number of elements within the range, computed from the node
+  sizes recorded along the path to the range rather than by reading the leaves.
+  Once the range spans more than one child, every child is assumed to be as full
+  as the leftmost one. Messages still buffered in inner nodes are not counted."
+  ([root range]
+   (if (pos? (node-size root))
+     (estimate-range* root range)
+     0))
+  ([store root range]
+   (binding [state/*store* store]
+     (estimate-range root range))))
+
 (defn tree-get*
   ([node id msgs]
    (if (node-pointer? node)
@@ -38,6 +38,39 @@
 
 (defn nth-key [head-key n] (str head-key "." n))
 
+(defn lazy-head?
+  "In lazy-head mode the persisted head is only a hint: an entry is appended
+  once its key is created, and readers find the true tail by probing forward.
+  append-all reports exactly the prefix it created, so writers and readers
+  agree on which entries of a partly failed batch were appended."
+  []
+  (config-strict :eva.log.lazy-head))
+
+(defn probe-count
+  "Returns the true count of the vector at head-key, probing forward for
+  entries beyond the given count."
+  [store head-key n]
+  (loop [n n]
+    (if (nil? @(vs/get-value @store (nth-key head-key n)))
+      n
+      (recur (inc n)))))
+
+(defn advance-head-hint!
+  "Asynchronously advances the persisted head to at least new-count. Only
+  moves the head forward; gives up once another writer has moved it past
+  new-count."
+  [store head-key new-count]
+  (future
+    (try
+      (loop [cur-head @(vs/get-value @store head-key)]
+        (when (and (some? cur-head) (< (:count cur-head) new-count))
+          (when-not (true? @(vs/replace-value @store head-key cur-head {:count new-count}))
+            (recur @(vs/get-value @store head-key)))))
+      (catch Throwable t
+        (log/warn t "failed to advance persisted vector head hint")))))
+
+(declare swap-head)
+
 (deftype PersistedVector [^IValueStorage
                           store
                           head-key
@@ -56,46 +89,14 @@
     (tracing "PersistentVector.cons"
              (let [created? (tracing "PersistentVector.createEntry"
                                      @(vs/create-key @store (nth-key head-key (count this)) obj))
-                   swapped? (tracing "PersistentVector.swapHead"
-                                     (if (true? created?)
-                                       @(vs/replace-value @store head-key cur-head (next-head cur-head))
-                                       (do
-                                         (log/warn "create-key failure in persisted vector")
-                                         (derr/raise-stale "create-key failure in persisted vector"
-                                                           {:method 'cons, ::sanex/sanitary? true}))))]
-               (if (true? swapped?)
-                 (PersistedVector. store head-key (next-head cur-head) _meta)
-                 (let [cur-val @(vs/get-value @store head-key)]
-                   (if (nil? cur-val)
-                     ;; TODO: If we deal with deletion, we'll need to revisit this.
-                     (derr/raise-non-monotonicity "persisted vector no longer exists"
-                                                  {:key head-key
-                                                   ::sanex/sanitary? true})
-                     (do
-                       ;; At this point, we know:
-                       ;; 1) We have persisted our state successfully
-                       ;; 2) Some other process has come in and mucked with the head reference
-                       ;;
-                       ;; Monotonicity of persisted values is assumed, so as long as the
-                       ;; head we got back is newer than the head we had, we can
-                       ;; return successfully using the new head we just got
-                       ;; from storage.
-                       (if (> (:count cur-val) (:count cur-head)) ;; check for weirdness
-                         (do
-                           (log/info (format "the persisted state for the vector head was found to be more recent than the expected state, returning a new persisted vector using the persisted state."))
-                           (PersistedVector. store head-key cur-val _meta))
-                         ;; We get here only if our monotonicity assumption is violated.
-                         ;; We don't really have a recovery path from here.
-                         (do (log/warn (format "persisted vector failed to swap head: expected head %s, found head %s"
-                                               cur-head
-                                               cur-val))
-                             (derr/raise-non-monotonicity (format "persisted vector failed to swap head: expected head %s, found head %s."
-                                                                  cur-head
-                                                                  cur-val)
-                                                          {:head-key head-key
-                                                           :cur-head cur-head
-                                                           ;; Revisit:
-                                                           ::sanex/sanitary? true}))))))))))
+                   _ (when-not (true? created?)
+                       (log/warn "create-key failure in persisted vector")
+                       (derr/raise-stale "create-key failure in persisted vector"
+                                         {:method 'cons, ::sanex/sanitary? true}))]
+               (if (lazy-head?)
+                 (do (advance-head-hint! store head-key (inc (count this)))
+                     (PersistedVector. store head-key (next-head cur-head) _meta))
+                 (swap-head this (next-head cur-head))))))
   (equiv [this obj] (.equals this obj))
   clojure.lang.IndexedSeq
   (count [_] (:count cur-head))
@@ -112,6 +113,89 @@
   clojure.lang.IMeta
   (meta [this] _meta))
 
+(defn- swap-head
+  "Swaps the head of pv from its current head to new-head, once the entries up
+  to new-head's count have been created. Returns the vector at the new head."
+  [^PersistedVector pv new-head]
+  (let [store (.-store pv)
+        head-key (.-head-key pv)
+        cur-head (.-cur-head pv)
+        swapped? (tracing "PersistentVector.swapHead"
+                          @(vs/replace-value @store head-key cur-head new-head))]
+    (if (true? swapped?)
+      (PersistedVector. store head-key new-head (meta pv))
+      (let [cur-val @(vs/get-value @store head-key)]
+        (if (nil? cur-val)
+          ;; TODO: If we deal with deletion, we'll need to revisit this.
+          (derr/raise-non-monotonicity "persisted vector no longer exists"
+                                       {:key head-key
+                                        ::sanex/sanitary? true})
+          (do
+            ;; At this point, we know:
+            ;; 1) We have persisted our state successfully
+            ;; 2) Some other process has come in and mucked with the head reference
+            ;;
+            ;; Monotonicity of persisted values is assumed, so as long as the
+            ;; head we got back covers the entries we wrote, we can
+            ;; return successfully using the new head we just got
+            ;; from storage.
+            (if (>= (:count cur-val) (:count new-head)) ;; check for weirdness
+              (do
+                (log/info (format "the persisted state for the vector head was found to be more recent than the expected state, returning a new persisted vector using the persisted state."))
+                (PersistedVector. store head-key cur-val (meta pv)))
+              ;; We get here only if our monotonicity assumption is violated.
+              ;; We don't really have a recovery path from here.
+              (do (log/warn (format "persisted vector failed to swap head: expected head %s, found head %s"
+                                    cur-head
+                                    cur-val))
+                  (derr/raise-non-monotonicity (format "persisted vector failed to swap head: expected head %s, found head %s."
+                                                       cur-head
+                                                       cur-val)
+                                               {:head-key head-key
+                                                :cur-head cur-head
+                                                ;; Revisit:
+                                                ::sanex/sanitary? true})))))))))
+
+(defn- create-entry!
+  "Creates the entry at key k holding obj. Returns true if it was created, false
+  if the key was already taken. If the create itself fails, the entry may or
+  may not have been written, so it is read back and counted as created only if
+  it holds obj."
+  [store k obj]
+  (try (true? @(vs/create-key @store k obj))
+       (catch Throwable t
+         (log/warn t "create-key failure in persisted vector, reading back the entry")
+         (= obj @(vs/get-value @store k)))))
+
+(defn append-all
+  "Appends objs to the vector in order, advancing its head once. Each entry is
+  created only once the one before it has been, stopping at the first that
+  could not be, so the entries appended are always a prefix of objs and never
+  leave a gap in the vector. Raises as stale if not even the first entry could
+  be created. Returns the vector with that prefix appended; its count tells the
+  caller how many of objs were appended."
+  [^PersistedVector pv objs]
+  (tracing "PersistentVector.appendAll"
+           (let [store (.-store pv)
+                 head-key (.-head-key pv)
+                 n (count pv)]
+             (if (empty? objs)
+               pv
+               (let [appended (loop [i 0, objs (seq objs)]
+                                (if (and objs (create-entry! store (nth-key head-key (+ n i)) (first objs)))
+                                  (recur (inc i) (next objs))
+                                  i))]
+                 (when (zero? appended)
+                   (log/warn "create-key failure in persisted vector")
+                   (derr/raise-stale "create-key failure in persisted vector"
+                                     {:method 'append-all, ::sanex/sanitary? true}))
+                 (when (< appended (count objs))
+                   (log/warnf "persisted vector appended only %s of %s entries" appended (count objs)))
+                 (if (lazy-head?)
+                   (do (advance-head-hint! store head-key (+ n appended))
+                       (PersistedVector. store head-key {:count (+ n appended)} (meta pv)))
+                   (swap-head pv {:count (+ n appended)})))))))
+
 (defmethod print-method PersistedVector
   [v ^java.io.Writer w]
   (.write w (str "PersistedVector:" (count v))))
@@ -127,7 +211,11 @@
   (let [head-value @(vs/get-value @value-store head-key)]
     (if (some? head-value)
       (do (vs/add-ignored-key! @value-store head-key)
-          (PersistedVector. value-store head-key head-value {}))
+          (PersistedVector. value-store head-key
+                            (if (lazy-head?)
+                              {:count (probe-count value-store head-key (:count head-value))}
+                              head-value)
+                            {}))
       (raise :datastructures/no-such-vector
              (format "Cannot find a persisted vector for key %s" head-key)
              {:head-key head-key
@@ -197,10 +285,17 @@
       --> someone has repaired in the meantime, warn that this happened,
           return the refreshed vector.
 
-   3. Attempt to cas the head state manually.
+   3. Probe forward for the first key that does not exist, since append-all
+      may have created several entries beyond the head. It creates them in
+      order and stops at its first failure, so the probe never crosses a gap.
+
+   4. Attempt to cas the head state manually to that count.
       --> cas fails : throw an exception, concurrent attempts to repair.
 
-   4. Return the rebuilt vector."
+   5. Return the rebuilt vector.
+
+   In lazy-head mode the refresh already probes to the true tail, so the
+   vector is never found damaged and the head is left as a hint."
   [^PersistedVector pv store]
   (let [storage-id (dsp/storage-id pv)
         refreshed-vector (open-persisted-vector store storage-id)
@@ -213,9 +308,11 @@
       (do
         (log/debug "Call to repair found damaged vector, attempting repair.")
         (let [cur-head (.cur-head ^PersistedVector refreshed-vector)
-              _ (log/warn "repairing:" cur-head (next-head cur-head))
-              repaired-head @(vs/replace-value @store storage-id cur-head (next-head cur-head))]
+              true-count (probe-count store storage-id (inc length))
+              new-head {:count true-count}
+              _ (log/warn "repairing:" cur-head new-head)
+              repaired-head @(vs/replace-value @store storage-id cur-head new-head)]
           (if (true? repaired-head)
-            (PersistedVector. store storage-id (next-head cur-head) {})
+            (PersistedVector. store storage-id new-head {})
             (derr/raise-concurrent "concurrent attempt to repair vector detected."
                                    {::sanex/sanitary? true})))))))
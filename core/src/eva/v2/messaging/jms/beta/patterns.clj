@@ -468,7 +468,23 @@
 
 (declare responder-message-listener)
 
-(defn ^Responder responder
+;; Each JMS session delivers its messages one at a time, so a responder that
+;; should handle requests concurrently listens on several sessions at once. The
+;; sessions consume the queue independently: requests are no longer handled, or
+;; answered, in the order they were sent.
+(defrecord ConcurrentResponder [responders
+                                request-queue
+                                message-protocol
+                                request-handler
+                                reply-delivery-mode
+                                reply-expiration
+                                concurrency]
+  AutoCloseable
+  (close [_]
+    (doseq [r responders]
+      (.close ^AutoCloseable r))))
+
+(defn responder
   "Creates a new Responder on connection using the settings specified
   in the option map:
 
@@ -483,41 +499,56 @@
 
     - :reply-delivery-mode :: optional, the delivery-mode to use for reply/response messages.
 
-    - :reply-expiration    :: optional, the time-to-live for reply/response messages."
+    - :reply-expiration    :: optional, the time-to-live for reply/response messages.
+
+    - :concurrency         :: optional, the number of requests that may be handled at once,
+                              each on its own session; defaults to 1. Above 1, requests
+                              are not handled in the order they were sent."
   ([connection
-    {:keys [request-queue
+    {:as opts
+     :keys [request-queue
             message-protocol
             request-handler
             reply-delivery-mode
-            reply-expiration]}]
+            reply-expiration
+            concurrency]
+     :or {concurrency 1}}]
    {:pre [(instance? Connection connection)
           (fn? request-handler)
-          (satisfies? MessageProtocol message-protocol)]}
-   (let [session (jms/create-session connection {:acknowledge-mode :auto})
-         request-queue (jms/queue session request-queue)
-         request-consumer (.createConsumer session request-queue)
-         listener-session (jms/create-session connection {:acknowledge-mode :auto})
-         responder (map->Responder {:session             session
-                                    :listener-session    listener-session
-                                    :request-queue       request-queue
-                                    :request-consumer    request-consumer
-                                    :message-protocol    message-protocol
-                                    :request-handler     request-handler
-                                    :reply-delivery-mode reply-delivery-mode
-                                    :reply-expiration    reply-expiration})]
-     (.setMessageListener  request-consumer (responder-message-listener responder))
-     responder)))
+          (satisfies? MessageProtocol message-protocol)
+          (pos-int? concurrency)]}
+   (if (< 1 concurrency)
+     (map->ConcurrentResponder
+      (assoc (select-keys opts [:request-queue :message-protocol :request-handler
+                                :reply-delivery-mode :reply-expiration])
+             :concurrency concurrency
+             :responders (vec (repeatedly concurrency #(responder connection (assoc opts :concurrency 1))))))
+     (let [session (jms/create-session connection {:acknowledge-mode :auto})
+           request-queue (jms/queue session request-queue)
+           request-consumer (.createConsumer session request-queue)
+           listener-session (jms/create-session connection {:acknowledge-mode :auto})
+           responder (map->Responder {:session             session
+                                      :listener-session    listener-session
+                                      :request-queue       request-queue
+                                      :request-consumer    request-consumer
+                                      :message-protocol    message-protocol
+                                      :request-handler     request-handler
+                                      :reply-delivery-mode reply-delivery-mode
+                                      :reply-expiration    reply-expiration})]
+       (.setMessageListener  request-consumer (responder-message-listener responder))
+       responder))))
 
 (defn responder?
   "Tests if x is a Responder"
   [x]
-  (instance? Responder x))
+  (or (instance? Responder x)
+      (instance? ConcurrentResponder x)))
 
 (defn rebuild-responder
   "Closes Responder r and then creates a new Responder
   on Connection c that uses the same settings as the original
   responder r."
-  [^Connection c ^Responder r]
+  [^Connection c ^AutoCloseable r]
   (.close r)
   (responder c r))
 
@@ -29,6 +29,7 @@
             [eva.v2.database.log :refer [open-transaction-log set-log-count]]
             [eva.v2.datastructures.vector :as dsv]
             [eva.v2.database.index-manager :as im]
+            [eva.v2.database.as-of-cache :as as-of-cache]
             [eva.v2.transaction-pipeline.core :as tx]
             [eva.v2.transaction-pipeline.error :as tx-err]
             [eva.utils :refer [with-retries]]
@@ -57,6 +58,17 @@
     "encountered exception while attempting to write to tx log; retrying."
     (conj tx-log log-entry)))
 
+(defm/defn ^{::defm/aspects [traced]} do-log-append-all! [tx-log log-entries]
+  (when-not (= (count tx-log)
+               (:tx-num (first log-entries)))
+    (raise :database-connection/mismatch-log-entry
+           (format "Cannot transact log tx-num %s against tx-log with count %s" (:tx-num (first log-entries)) (count tx-log))
+           {:tx-num (:tx-num (first log-entries))
+            :count (count tx-log)}))
+  (with-retries (defaults/write-tx-log-retry-strategy)
+    "encountered exception while attempting to write to tx log; retrying."
+    (dsv/append-all tx-log log-entries)))
+
 (defn max-item [key-fn items] (first (sort-by key-fn > items)))
 (defn index-roots:merge-newer [& ms] (apply merge-with #(max-item :tx-num [%1 %2]) ms))
 (defn logentry:with-newer-index-roots
@@ -91,6 +103,14 @@
                "timeout while appending to log"
                :timeout   timeout-ms)
         (assoc this :tx-log tx-log'))))
+  (append-all-to-log [this log-entries timeout-ms]
+    (let [tx-log' (deref (future (do-log-append-all! tx-log log-entries))
+                         timeout-ms ::timeout)]
+      (if (= ::timeout tx-log')
+        (raise :tx-log/append-timeout
+               "timeout while appending to log"
+               :timeout   timeout-ms)
+        (assoc this :tx-log tx-log'))))
   (commit-transaction-report [this tx-report]
     (p/commit-transaction-report this tx-report *database-connection-timeout-ms*))
 
@@ -128,6 +148,98 @@
 (def staleness-meter (m/meter "meter of how many times we've had to reload state from staleness"))
 (m/register m/DEFAULT (str *ns* ".staleness-meter") staleness-meter)
 
+(defn- process-tx-against
+  "Validates tx-data against db, reloading and retrying if db proves stale."
+  [{:as dbc :keys [state]} db tx-data]
+  (let [{:keys [latest-index-roots]} @state
+        [db tx-result] (loop [db db]
+                         (let [tx-info (tx/transact db tx-data)]
+                           (if-let [res (tx/tx-result tx-info)]
+                             [db res]
+                             (let [ex (tx/tx-exception tx-info)]
+                               (cond
+                                 (p/stale-snapshot? @state db) ;; did we evaluate against a stale db?
+                                 (do
+                                   (m/update staleness-meter)
+                                   (log/warn "found transactor to be in a stale state -- reloading state and retrying transaction.")
+                                   (let [hopefully-not-stale-db (:db (locking-vswap! state p/reload))]
+                                     (recur hopefully-not-stale-db)))
+
+                                 (instance? EvaException ex)
+                                 (throw ex)
+
+                                 :else
+                                 (raise :transaction-processing-error
+                                        "unexpected error occurred while processing transaction"
+                                        {:tx-data tx-data}
+                                        ex))))))]
+    (when-not (:successful tx-result)
+      (raise ::transaction-processing-failed
+             "transaction processing failed"
+             {:tx-data tx-data
+              :tx-result tx-result}))
+    ;; NOTE: the db-after snapshot **CANNOT** be created at this point, if
+    ;;       the snapshot is constructed through the index root cache.
+    ;;       Under concurrent modification of the underlying transaction log
+    ;;       it's still possible for this transaction to be invalidated.
+    (let [{:keys [log-entry tempids]} tx-result
+          log-entry (logentry:with-newer-index-roots log-entry latest-index-roots)]
+      {:committed? false
+       :log-entry  log-entry
+       :db-before  db
+       :tempids    tempids
+       :tx-data    (:tx-data tx-result)})))
+
+(defn- process-txs
+  "Processes each of tx-datas in order, each against the speculative db-after
+  of the last that succeeded. Returns a vector of tx-reports, holding the
+  Throwable in place of the report for any transaction that failed."
+  [dbc db tx-datas]
+  (first
+   (reduce (fn [[reports db] tx-data]
+             (let [report (try (process-tx-against dbc db tx-data)
+                               (catch Throwable t t))]
+               (if (instance? Throwable report)
+                 [(conj reports report) db]
+                 [(conj reports report)
+                  (db-api/speculatively-advance-db (:db-before report)
+                                                   (assoc (:log-entry report) :speculative? true))])))
+           [[] db]
+           tx-datas)))
+
+(defn- commit-processed-reports
+  "Appends the log entries of reports to the log in one write and advances the
+  connection state past those appended. The log may take only a prefix of the
+  entries, if another writer claims a slot part way through. Returns the
+  reports of that prefix with their :db-before and :db-after drawn from the
+  committed database states."
+  [state reports]
+  (let [log-entries (map :log-entry reports)
+        db-afters (volatile! [])
+        db-before (:db-before (first reports))]
+    (locking-vswap! state
+                    (fn [dbcs]
+                      (when (not= (:db dbcs) db-before)
+                        (raise :database-connection/unexpected-db-state
+                               "Cannot commit transactions, database in unexpected state"
+                               {:actual-tx-num (core/tx-num db-before)
+                                :expected-tx-num (core/tx-num (:db dbcs))}))
+                      ;; NOTE: as in commit-transaction-report, the log must be
+                      ;; updated before any database snapshot is advanced.
+                      (let [dbcs' (p/append-all-to-log dbcs log-entries *database-connection-timeout-ms*)
+                            appended (- (count (:tx-log dbcs')) (count (:tx-log dbcs)))]
+                        (reduce (fn [dbcs log-entry]
+                                  (let [dbcs' (p/advance-db-from-log-entry dbcs log-entry)]
+                                    (vswap! db-afters conj (:db dbcs'))
+                                    dbcs'))
+                                dbcs'
+                                (take appended log-entries)))))
+    (mapv (fn [report db-before db-after]
+            (assoc report :db-before db-before :db-after db-after))
+          reports
+          (cons db-before @db-afters)
+          @db-afters)))
+
 (defrecord DatabaseConnectionImpl [resource-id database-id config value-store state]
   qu/SharedResource
   (resource-id [this] (some-> resource-id deref))
@@ -155,6 +267,7 @@
       (let [res-id @resource-id]
         (reset! resource-id nil)
         ((im/->evict-callback database-id)) ;; TODO: Is this correct? What is ->evict-callback?
+        (as-of-cache/evict-db as-of-cache/global-as-of-cache database-id)
         (qu/release value-store true)
         (assoc this
                :state nil
@@ -177,44 +290,7 @@
     this)
   (process-tx [this tx-data]
     (qu/ensure-initiated! this "cannot process transaction.")
-    (let [{:keys [db latest-index-roots]} @state
-          [db tx-result] (loop [db db]
-                           (let [tx-info (tx/transact db tx-data)]
-                             (if-let [res (tx/tx-result tx-info)]
-                               [db res]
-                               (let [ex (tx/tx-exception tx-info)]
-                                 (cond
-                                   (p/stale-snapshot? @state db) ;; did we evaluate against a stale db?
-                                   (do
-                                     (m/update staleness-meter)
-                                     (log/warn "found transactor to be in a stale state -- reloading state and retrying transaction.")
-                                     (let [hopefully-not-stale-db (:db (locking-vswap! state p/reload))]
-                                       (recur hopefully-not-stale-db)))
-
-                                   (instance? EvaException ex)
-                                   (throw ex)
-
-                                   :else
-                                   (raise :transaction-processing-error
-                                          "unexpected error occurred while processing transaction"
-                                          {:tx-data tx-data}
-                                          ex))))))]
-      (when-not (:successful tx-result)
-        (raise ::transaction-processing-failed
-               "transaction processing failed"
-               {:tx-data tx-data
-                :tx-result tx-result}))
-      ;; NOTE: the db-after snapshot **CANNOT** be created at this point, if
-      ;;       the snapshot is constructed through the index root cache.
-      ;;       Under concurrent modification of the underlying transaction log
-      ;;       it's still possible for this transaction to be invalidated.
-      (let [{:keys [log-entry tempids]} tx-result
-            log-entry (logentry:with-newer-index-roots log-entry latest-index-roots)]
-        {:committed? false
-         :log-entry  log-entry
-         :db-before  db
-         :tempids    tempids
-         :tx-data    (:tx-data tx-result)})))
+    (process-tx-against this (:db @state) tx-data))
   (repair-and-reload [this]
     (qu/ensure-initiated! this "cannot repair or reload.")
     (locking-vswap! state (comp p/reload p/repair-log))
@@ -241,6 +317,37 @@
                       (error? e :database-connection/mismatch-log-entry))
                 stale-write-failure
                 (throw e))))))))
+  (commit-txs [{:as this :keys [state]} tx-datas]
+    (qu/ensure-initiated! this "cannot commit transactions.")
+    (locking this
+      (log/trace "commit-txs: " (count tx-datas) "transactions")
+      (let [reports (process-txs this (:db @state) tx-datas)
+            processed (filterv map? reports)]
+        (if (empty? processed)
+          reports
+          (try*
+            (let [committed (commit-processed-reports state processed)]
+              ;; every transaction past the appended prefix, even one that failed,
+              ;; was processed against uncommitted novelty and must be retried
+              (let [uncommitted (-> (keep-indexed #(when (map? %2) %1) reports)
+                                    (nth (count committed) (count reports)))]
+                (first (reduce (fn [[out committed] [i report]]
+                                 (cond (>= i uncommitted) [(conj out stale-write-failure) committed]
+                                       (map? report) [(conj out (first committed)) (rest committed)]
+                                       :else [(conj out report) committed]))
+                               [[] committed]
+                               (map-indexed vector reports)))))
+            ;; a stale snapshot found while processing the batch reloads the
+            ;; state out from under the reports processed before it
+            (catch :database-connection/unexpected-db-state e
+              (log/warn "database connection state was reloaded while processing a batch; retrying the batch.")
+              stale-write-failure)
+            (catch java.util.concurrent.ExecutionException e
+              (let [e (.getCause e)]
+                (if (or (error? e :datastructures/stale)
+                        (error? e :database-connection/mismatch-log-entry))
+                  stale-write-failure
+                  (throw e)))))))))
   (advance-to-tx [this tx-num]
     (qu/ensure-initiated! this "cannot advance.")
     (let [state' (locking-vswap! state p/advance-to-tx-num tx-num)]
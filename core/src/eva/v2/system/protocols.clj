@@ -38,6 +38,14 @@
   (commit-tx
     [dbc tx-data]
     "Process a transaction, appending it to the tx-log if successful. Returns a tx-report")
+  (commit-txs
+    [dbc tx-datas]
+    "Processes each transaction in order against the db-after of the last that
+     succeeded, appending all successful log entries to the tx-log at once.
+     Returns a vector aligned with tx-datas holding a tx-report, the Throwable
+     that transaction failed with, or stale-write-failure for a transaction
+     past the prefix the log took. Returns stale-write-failure alone if the
+     append failed outright.")
   (advance-to-tx [dbc tx-num]
     "Advances the database connection to tx-num if it is not yet at at least tx-num.
      Assumes the persisted transaction log has been updated to >= tx-num.
@@ -60,6 +68,7 @@
   (reload [dbcs])
   (repair-log [dbcs])
   (append-to-log [dbcs log-entry timeout-ms])
+  (append-all-to-log [dbcs log-entries timeout-ms])
   (advance-db-from-log-entry [dbcs log-entry])
   (stale-snapshot? [dbcs db-snapshot]
     "Is the given snapshot stale wrt a fresh read of the transaction log state?"))
@@ -28,6 +28,7 @@
             [eva.contextual.core :as cntx]
             [eva.contextual.tags :as cntx-tags]
             [eva.contextual.config :as cntx-config]
+            [eva.config :refer [config-strict]]
             [eva.error :refer [raise error?]]
             [eva.utils.logging :refer [logged]]
             [recide.sanex :as sanex]
@@ -38,7 +39,9 @@
             [ichnaie.core :refer [traced tracing]]
             [com.stuartsierra.component :as c]
             [recide.core :refer [try*]])
-  (:import [java.util.List]))
+  (:import [java.util.List]
+           [java.util.concurrent ConcurrentLinkedQueue]
+           [java.util.concurrent.locks ReentrantLock]))
 
 ;;;;;;;;;;
 ;; SPEC ;;
@@ -115,7 +118,10 @@
                     index-updates-addr
                     (partial p/process-index-updates transactor)
                     {})
-      (p/open-responder! messenger-snapshot transaction-addr (partial p/process-transaction transactor) {}))))
+      (p/open-responder! messenger-snapshot
+                         transaction-addr
+                         (partial p/process-transaction transactor)
+                         {:concurrency (config-strict :eva.transactor.group-commit.concurrency)}))))
 
 (def ^:dynamic *max-concurrent-modification-retries* 10)
 
@@ -129,6 +135,64 @@
                      (->> log-entry :index-roots vals (map :tx-num) (apply min)))]
     ((:set! (meta gauge)) lag)))
 
+(defn- drain-batch
+  "Removes up to max-batch queued requests from the head of queue."
+  [^ConcurrentLinkedQueue queue max-batch]
+  (loop [batch []]
+    (if (< (count batch) max-batch)
+      (if-some [queued (.poll queue)]
+        (recur (conj batch queued))
+        batch)
+      batch)))
+
+(def group-commit-batch-size
+  (m/get-or-register m/DEFAULT (str *ns* ".group-commit-batch-size")
+                     (m/histogram (m/reservoir) "Measures the number of transactions committed together by each log append.")))
+
+(defn- commit-batch
+  "Commits the tx-data of each queued [tx-data result-promise] in batch with a
+  single append to the log. Delivers to each promise the transaction message
+  to respond with, or the Throwable its transaction failed with. Any requests
+  the log did not take, on concurrent modification, are retried after a
+  repair and reload of the connection."
+  [{:as txor :keys [messenger database-connection transaction-pub-addr database-id transactor-id]} batch]
+  (try
+    (loop [attempt 0, batch batch]
+      (if (>= attempt *max-concurrent-modification-retries*)
+        (do
+          (log/warn "The transactor exceeded its maximum number of attempts to process a transaction. There is excessive concurrent modification on the backing transaction log.")
+          (raise ::max-concurrent-transaction-attempts-exceeded
+                 "The transactor exceeded its maximum number of attempts to process the transaction. There is excessive concurrent modification on the backing transaction log."
+                 {::sanex/sanitary? true
+                  :database-id database-id}))
+        (let [results (p/commit-txs @database-connection (mapv first batch))
+              results (if (dbc/stale-write-failure? results)
+                        (repeat (count batch) dbc/stale-write-failure)
+                        results)
+              retry (into []
+                          (comp (filter (comp dbc/stale-write-failure? second))
+                                (map first))
+                          (map vector batch results))]
+          (m/update group-commit-batch-size (- (count batch) (count retry)))
+          (doseq [[[_ result] tx-report] (map vector batch results)
+                  :when (not (dbc/stale-write-failure? tx-report))]
+            (if (instance? Throwable tx-report)
+              (deliver result tx-report)
+              (do
+                (log/debug "transaction commit! Publishing.")
+                (update-index-lag-gauge txor database-id tx-report)
+                (p/publish! @messenger transaction-pub-addr (->txd-pub transactor-id database-id tx-report))
+                (deliver result (->txd-msg transactor-id database-id tx-report)))))
+          (when (seq retry)
+            (m/update concurrent-modification-meter)
+            (log/warn "Found the transaction log to be concurrently modified or in a bad state. Attempting repair / refresh and retrying transaction.")
+            (p/repair-and-reload @database-connection)
+            (recur (inc attempt) retry)))))
+    (catch Throwable t
+      ;; Leave no requester waiting on a batch that failed as a whole.
+      (doseq [[_ result] batch]
+        (deliver result t)))))
+
 (d/defn ^{::d/aspects [concurrency-measured ;; TODO: should be cntx/concurrency-measured [::cntx-tags/database-id] ?
                        (cntx/timed ::cntx-config/override [::cntx-tags/database-id])
                        (cntx/capture '{::cntx-tags/database-id database-id})
@@ -136,31 +200,27 @@
                        traced]}
 
   process-transaction-impl
-  [{:as txor :keys [txor-timer messenger database-connection transaction-pub-addr database-id config transactor-id]}
+  "Group commit: the request is queued, and whichever requester holds the
+  commit lock drains the queue in order, committing each drained batch with a
+  single log append, until its own request has been answered. Requests that
+  arrive while an append is in flight are thereby committed together."
+  [{:as txor :keys [database-id group-commit-queue group-commit-lock]}
    {:as request :keys [tx-data]}]
   (if-not (= database-id (:database-id request))
     (log/warnf "transactor for %s is ignoring transaction for %s" database-id (:database-id request))
-    (do (log/debug "transactor is processing request.")
-        (loop [attempt 0]
-          (if (>= attempt *max-concurrent-modification-retries*)
-            (do
-              (log/warn "The transactor exceeded its maximum number of attempts to process a transaction. There is excessive concurrent modification on the backing transaction log.")
-              (raise ::max-concurrent-transaction-attempts-exceeded
-                     "The transactor exceeded its maximum number of attempts to process the transaction. There is excessive concurrent modification on the backing transaction log."
-                     {::sanex/sanitary? true
-                      :database-id database-id}))
-            (let [tx-report (p/commit-tx @database-connection tx-data)]
-              (if (dbc/stale-write-failure? tx-report)
-                (do
-                  (m/update concurrent-modification-meter)
-                  (log/warn "Found the transaction log to be concurrently modified or in a bad state. Attempting repair / refresh and retrying transaction.")
-                  (p/repair-and-reload @database-connection)
-                  (recur (inc attempt)))
-                (do
-                  (log/debug "transaction commit! Publishing.")
-                  (update-index-lag-gauge txor database-id tx-report)
-                  (p/publish! @messenger transaction-pub-addr (->txd-pub transactor-id database-id tx-report))
-                  (->txd-msg transactor-id database-id tx-report)))))))))
+    (let [result (promise)
+          max-batch (max 1 (config-strict :eva.transactor.group-commit.max-batch))]
+      (log/debug "transactor is processing request.")
+      (.add ^ConcurrentLinkedQueue group-commit-queue [tx-data result])
+      (.lock ^ReentrantLock group-commit-lock)
+      (try
+        (while (not (realized? result))
+          (commit-batch txor (drain-batch group-commit-queue max-batch)))
+        (finally (.unlock ^ReentrantLock group-commit-lock)))
+      (let [res @result]
+        (if (instance? Throwable res)
+          (throw res)
+          res)))))
 
 (d/defn ^{::d/aspects [traced (logged) timed]} process-index-updates-impl
   [{:as txor :keys [database-id database-connection config transactor-id]}
@@ -186,7 +246,9 @@
                        database-connection ;; atom
                        messenger ;; atom
                        config
-                       state]
+                       state
+                       group-commit-queue
+                       group-commit-lock]
   qu/SharedResource
   (initiate [this]
     (if (qu/initiated? this)
@@ -244,7 +306,9 @@
                     :transaction-addr (::address/transaction-submission config)
                     :index-updates-addr (::address/index-updates config)
                     :transaction-pub-addr (::address/transaction-publication config)
-                    :config config}))
+                    :config config
+                    :group-commit-queue (ConcurrentLinkedQueue.)
+                    :group-commit-lock (ReentrantLock. true)}))
 
 (qu/defmanager transactor-manager
   :discriminator
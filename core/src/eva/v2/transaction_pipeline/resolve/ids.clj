@@ -75,37 +75,50 @@
                        ids)]
      (merge res aliases))))
 
+(defn- select-unique-datoms
+  "Returns the :avet datoms for each of uavs, taking those already selected
+  from prefetched and selecting the rest in one batch."
+  [db prefetched uavs]
+  (let [missing (into [] (comp (remove #(contains? prefetched %)) (distinct)) uavs)
+        selected (if (empty? missing)
+                   prefetched
+                   (into prefetched
+                         (map vector missing (core/multi-select-datoms-ordered db (cons :avet missing)))))]
+    (map selected uavs)))
+
 (d/defn ^{::d/aspects [traced]} derive-aliases
   "Given the TxData, derive the entity ids that must
    be equivalent to yield a valid database state.
+   Datoms already selected for unique [attr-id v] pairs may be passed as
+   prefetched, a map of [attr-id v] --> datoms.
    Returns a map:
    {:equivalences [#{ent-ids-that-must-be-merged}]
     :aliases      {ent-id --> exemplar-id-under-equivalences}}"
-  [db tx-data]
-  (let [unique-attr-ops (->> tx-data
-                             (group-by (filter (fn [cmd] (attr/unique (:attr cmd))))
-                                       :attr))
-        unique-name-edges (for [[a cmds] unique-attr-ops
-                                {:keys [e v]} cmds
-                                :let [uav   [a v]
-                                      db-id [:db/id e]]]
-                            [db-id uav])
-        uavs (map second unique-name-edges)
-        perm-unique-datoms (->> uavs
-                                (map #(update % 0 attr/id))
-                                (cons :avet)
-                                (core/multi-select-datoms-ordered db))
-        extant-unique-edges (for [[uav pds] (zipmap uavs perm-unique-datoms)
-                                  :when (not-empty pds)
-                                  pd pds]
-                              [[:db/id (:e pd)] uav])
-        name-graph (reduce (fn [grph uname-edges]
-                             (lg/add-edges grph uname-edges))
-                           (lg/graph)
-                           (concat unique-name-edges extant-unique-edges))
-        required-equivs (->> (la/connected-components name-graph)
-                             (build-required-equivalences db))]
-    required-equivs))
+  ([db tx-data] (derive-aliases db tx-data {}))
+  ([db tx-data prefetched]
+   (let [unique-attr-ops (->> tx-data
+                              (group-by (filter (fn [cmd] (attr/unique (:attr cmd))))
+                                        :attr))
+         unique-name-edges (for [[a cmds] unique-attr-ops
+                                 {:keys [e v]} cmds
+                                 :let [uav   [a v]
+                                       db-id [:db/id e]]]
+                             [db-id uav])
+         uavs (map second unique-name-edges)
+         perm-unique-datoms (->> uavs
+                                 (map #(update % 0 attr/id))
+                                 (select-unique-datoms db prefetched))
+         extant-unique-edges (for [[uav pds] (zipmap uavs perm-unique-datoms)
+                                   :when (not-empty pds)
+                                   pd pds]
+                               [[:db/id (:e pd)] uav])
+         name-graph (reduce (fn [grph uname-edges]
+                              (lg/add-edges grph uname-edges))
+                            (lg/graph)
+                            (concat unique-name-edges extant-unique-edges))
+         required-equivs (->> (la/connected-components name-graph)
+                              (build-required-equivalences db))]
+     required-equivs)))
 
 (defn transform-ids [resolve-aliases cmd]
   (cond-> (update cmd :e resolve-aliases)
@@ -138,41 +151,76 @@
    Note: Replacements happen either at entities position or values position, and do not happen in attribute position.
          The are couple reasons for this: Datomic doc is not consistent about lookup refs at attribute position - they
          are allowed for list commands and are not allowed for maps. Also making attribute dependent on some value
-         is kind of 'dispatching' attribute by value which is (advanced?) technique with not very clear purpose."
-  [db tx-report]
-  (let [lookup-ref?       (fn [kind]
-                            (fn [eid] (instance? List (some-> eid kind))))
-        e-lookup-ref?     (lookup-ref? :e)
-        v-lookup-ref?     (lookup-ref? :v)
-        ->v-lookup-ref    (fn [eid]
-                            (when (and (v-lookup-ref? eid) (attr/ref-attr? (:attr eid)))
-                              [eid (:v eid)]))
-        ->e-lookup-ref    (fn [eid]
-                            (when (e-lookup-ref? eid)
-                              [eid (:e eid)]))
-        tx-data           (:tx-data tx-report)
-        e-lookup-ref-map  (into {} (keep ->e-lookup-ref) tx-data)
-        v-lookup-ref-map  (into {} (keep ->v-lookup-ref) tx-data)
-        resolved-entities (zipmap (keys e-lookup-ref-map)
-                                  (core/batch-resolve-lookup-refs-strict db (vals e-lookup-ref-map)))
-        resolved-values   (zipmap (keys v-lookup-ref-map)
-                                  (core/batch-resolve-lookup-refs-strict db (vals v-lookup-ref-map)))
-        tx-data           (map (fn [eid]
-                                 (let [resolved-entity (get resolved-entities eid)
-                                       resolved-value  (get resolved-values eid)]
-                                   (cond-> eid
-                                     (some? resolved-entity) (assoc :e resolved-entity)
-                                     (some? resolved-value)  (assoc :v resolved-value)
-                                     :true                   (identity))))
-                               tx-data)]
-    (assoc tx-report :tx-data tx-data)))
+         is kind of 'dispatching' attribute by value which is (advanced?) technique with not very clear purpose.
+   Lookup refs in both positions are resolved in one batch, selecting those not
+   cached through select-avet if given."
+  ([db tx-report]
+   (resolve-lookup-refs db tx-report #(core/multi-select-datoms-ordered db (cons :avet %))))
+  ([db tx-report select-avet]
+   (let [lookup-ref?       (fn [kind]
+                             (fn [eid] (instance? List (some-> eid kind))))
+         e-lookup-ref?     (lookup-ref? :e)
+         v-lookup-ref?     (lookup-ref? :v)
+         ->v-lookup-ref    (fn [eid]
+                             (when (and (v-lookup-ref? eid) (attr/ref-attr? (:attr eid)))
+                               [eid (:v eid)]))
+         ->e-lookup-ref    (fn [eid]
+                             (when (e-lookup-ref? eid)
+                               [eid (:e eid)]))
+         tx-data           (:tx-data tx-report)
+         e-lookup-ref-map  (into {} (keep ->e-lookup-ref) tx-data)
+         v-lookup-ref-map  (into {} (keep ->v-lookup-ref) tx-data)
+         lookup-refs       (concat (vals e-lookup-ref-map) (vals v-lookup-ref-map))
+         resolved          (when (seq lookup-refs)
+                             (core/batch-resolve-lookup-refs-strict db lookup-refs select-avet))
+         resolved-entities (zipmap (keys e-lookup-ref-map) resolved)
+         resolved-values   (zipmap (keys v-lookup-ref-map) (drop (count e-lookup-ref-map) resolved))
+         tx-data           (map (fn [eid]
+                                  (let [resolved-entity (get resolved-entities eid)
+                                        resolved-value  (get resolved-values eid)]
+                                    (cond-> eid
+                                      (some? resolved-entity) (assoc :e resolved-entity)
+                                      (some? resolved-value)  (assoc :v resolved-value)
+                                      :true                   (identity))))
+                                tx-data)]
+     (assoc tx-report :tx-data tx-data))))
+
+(defn- resolved-unique-avs
+  "The distinct [attr-id v] pairs asserted or retracted on unique attributes in
+  tx-data whose values need no lookup-ref resolution."
+  [tx-data]
+  (into []
+        (comp (filter #(attr/unique (:attr %)))
+              (remove #(instance? List (:v %)))
+              (map (fn [cmd] [(attr/id (:attr cmd)) (:v cmd)]))
+              (distinct))
+        tx-data))
+
+(defn- avet-selector
+  "Returns [select-avet prefetched]. The first call to select-avet selects the
+  :avet datoms for uavs in the same batch as the components it was called with,
+  leaving them in the volatile prefetched as a map of uav --> datoms."
+  [db uavs]
+  (let [prefetched (volatile! nil)]
+    [(fn [components]
+       (if (some? @prefetched)
+         (core/multi-select-datoms-ordered db (cons :avet components))
+         (let [n (count components)
+               datoms (core/multi-select-datoms-ordered db (cons :avet (concat components uavs)))]
+           (vreset! prefetched (zipmap uavs (drop n datoms)))
+           (take n datoms))))
+     prefetched]))
 
 (d/defn ^{::d/aspects [traced]} resolve-ids
+  "Unique-identity upserts and lookup refs are resolved against :avet in as
+  few selections as possible: the lookup refs not served by cache share one
+  batch with every unique attribute-value pair whose value is already known."
   [report]
   (let [db-before (:db-before report)
         _ (entity-id/set-max-allocated-id! (core/cur-max-id db-before) (core/cur-tx-eid db-before))
-        report  (resolve-lookup-refs db-before report)
-        aliases (derive-aliases db-before (:tx-data report))
+        [select-avet prefetched] (avet-selector db-before (resolved-unique-avs (:tx-data report)))
+        report  (resolve-lookup-refs db-before report select-avet)
+        aliases (derive-aliases db-before (:tx-data report) (or @prefetched {}))
         tempids (atom aliases)
         resolve-aliases (->aliases-function db-before tempids)]
     (-> report
@@ -19,12 +19,13 @@
             [eva.v2.transaction-pipeline.error :as tx-err]
             [utiliva.core :refer [group-by]]
             [eva.entity-id :refer [permify-id tempid] :as entid]
-            [eva.functions :refer [compile-db-fn]]
+            [eva.functions :refer [compiled-fn]]
             [eva.attribute :as ea]
             [eva.error :refer [raise insist]]
             [eva.value-types :refer [valid-value-type?]]
             [recide.sanex :as sanex]
             [eva.config :refer [config-strict config]]
+            [eva.concurrent.fork-join :refer [fork-all]]
             [recide.sanex.logging :as logging]
             [morphe.core :as d]
             [ichnaie.core :refer [traced]])
@@ -79,7 +80,7 @@
   (when (config-strict :eva.transaction-pipeline.compile-db-fns)
     (doseq [cmd cmds :let [v (:v cmd)]]
       (try
-        (compile-db-fn v)
+        (compiled-fn v)
         (catch Throwable t
           (raise :transact-exception/cannot-compile-db-fn
                  "Attempted to compile database function and failed."
@@ -357,6 +358,47 @@
 
 (defn current-time [] (java.util.Date.))
 
+(declare validate)
+
+(defn- parallel-validation?
+  [report attr-groups]
+  (let [threshold (config-strict :eva.transaction-pipeline.parallel-validation.threshold)]
+    (and (pos? threshold)
+         (>= (count (:tx-data report)) threshold)
+         (next attr-groups))))
+
+(defn- attr-groups-in-command-order
+  "The groups of tx-data by attribute, ordered by the index in the report's
+  tx-data of each group's first command."
+  [report tx-data]
+  (let [first-index (persistent!
+                     (reduce (fn [m [i cmd]]
+                               (if (contains? m (:attr cmd)) m (assoc! m (:attr cmd) i)))
+                             (transient {})
+                             (map-indexed vector (:tx-data report))))]
+    (sort-by (comp first-index key) (by-attr tx-data))))
+
+(defn- validate-attributes
+  "Validates each group of commands by attribute, in command order. Above the
+  configured size, the groups are validated concurrently, as the checks only
+  read db-before and tx-data. Every group's failure is collected and the one
+  with the lowest command index is raised, which is the error the sequential
+  path stops at."
+  [report tx-data]
+  (let [attr-groups (attr-groups-in-command-order report tx-data)]
+    (if (parallel-validation? report attr-groups)
+      (do (by-eid tx-data) ;; fill the non-thread-safe cache before sharing tx-data
+          (when-let [failure (->> attr-groups
+                                  (map (fn [[attr cmds]]
+                                         #(try (validate attr report tx-data cmds)
+                                               nil
+                                               (catch Throwable t t))))
+                                  (fork-all)
+                                  (some identity))]
+            (throw failure)))
+      (doseq [[attr cmds] attr-groups]
+        (validate attr report tx-data cmds)))))
+
 (d/defn ^{::d/aspects [traced]} validate
   "Given a report which has fully expanded, resolved ids, and eliminated
    redundancy, validate the set of changes against the :db-before."
@@ -367,21 +409,16 @@
                                 (current-time)
                                 prev-tx-inst
                                 (config :eva.transaction-pipeline.clock-skew-window))
-         report (note-now report now)]
-     (loop [tx-data (->tx-data report)
-            [[attr cmds :as head] & rest] (seq (by-attr tx-data))]
-       ;; we've validated all attributes
-       (if (nil? head)
-         ;; if we've validated a user-defined tx-inst we can return the report directly.
-         (if-let [tx-inst (-> report :meta deref :tx-inst)]
-           (note-validated report)
-           ;; if we haven't, we must generate one and add it.
-           (let [tx-inst-cmd (generate-tx-inst-cmd report)]
-             (validate (:attr tx-inst-cmd) report tx-data [tx-inst-cmd])
-             (note-validated (update report :tx-data conj tx-inst-cmd))))
-         ;; validate all datoms under this attribute and recur.
-         (do (validate attr report tx-data cmds)
-             (recur tx-data rest))))))
+         report (note-now report now)
+         tx-data (->tx-data report)]
+     (validate-attributes report tx-data)
+     ;; if we've validated a user-defined tx-inst we can return the report directly.
+     (if-let [tx-inst (-> report :meta deref :tx-inst)]
+       (note-validated report)
+       ;; if we haven't, we must generate one and add it.
+       (let [tx-inst-cmd (generate-tx-inst-cmd report)]
+         (validate (:attr tx-inst-cmd) report tx-data [tx-inst-cmd])
+         (note-validated (update report :tx-data conj tx-inst-cmd))))))
   ([attr report tx-data cmds]
    (validate-attribute attr report tx-data cmds)
    (generic-validation attr report tx-data cmds)))
@@ -0,0 +1,81 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+(ns eva.comparators-test
+  (:require [clojure.test :refer :all]
+            [clojure.test.check.clojure-test :refer [defspec]]
+            [clojure.test.check.generators :as gen]
+            [clojure.test.check.properties :as prop]
+            [eva.comparators :as cmp]
+            [eva.datastructures.utils.comparators :refer [LOWER UPPER]]))
+
+(def gen-bound (gen/elements [LOWER UPPER]))
+
+(def gen-long-component
+  (gen/frequency [[1 gen-bound]
+                  [6 gen/large-integer]]))
+
+(def gen-value-component
+  (gen/frequency [[1 gen-bound]
+                  [2 gen/large-integer]
+                  [2 gen/string-alphanumeric]
+                  [1 gen/keyword-ns]
+                  [1 gen/uuid]
+                  [1 (gen/fmap #(java.util.Date. (long %)) gen/large-integer)]]))
+
+(defn gen-tuple [value-slot]
+  (apply gen/tuple (for [i (range 4)]
+                     (if (= i value-slot) gen-value-component gen-long-component))))
+
+(defn gen-key [value-slot]
+  (gen/frequency [[1 gen-bound]
+                  [9 (gen-tuple value-slot)]]))
+
+(defn gen-key-pair
+  "Generates pairs of keys whose values are of the same type, since the
+   comparators only need to order values of a single attribute against
+   each other."
+  [value-slot]
+  (gen/bind (gen-key value-slot)
+            (fn [k]
+              (gen/fmap (fn [k']
+                          (if (and (vector? k) (vector? k') (some? value-slot)
+                                   (not= (class (nth k value-slot)) (class (nth k' value-slot))))
+                            [k (assoc k' value-slot (nth k value-slot))]
+                            [k k']))
+                        (gen-key value-slot)))))
+
+(defn agrees? [index-name [x y]]
+  (= (Integer/signum (int ((cmp/index-cmp index-name) x y)))
+     (Integer/signum (int ((cmp/generic-index-cmp index-name) x y)))))
+
+(defspec eavt-specialized-agrees-with-generic 500
+  (prop/for-all [pair (gen-key-pair 2)] (agrees? :eavt pair)))
+
+(defspec aevt-specialized-agrees-with-generic 500
+  (prop/for-all [pair (gen-key-pair 2)] (agrees? :aevt pair)))
+
+(defspec avet-specialized-agrees-with-generic 500
+  (prop/for-all [pair (gen-key-pair 1)] (agrees? :avet pair)))
+
+(defspec vaet-specialized-agrees-with-generic 500
+  (prop/for-all [pair (gen-key-pair nil)] (agrees? :vaet pair)))
+
+(deftest specialized-comparators-respect-bounds
+  (are [index-name] (let [c (cmp/index-cmp index-name)]
+                      (and (neg? (c [1 2 3 4] [1 2 3 UPPER]))
+                           (pos? (c [1 2 3 4] [1 2 LOWER LOWER]))
+                           (neg? (c LOWER [1 2 3 4]))
+                           (pos? (c UPPER [1 2 3 4]))
+                           (zero? (c [1 2 3 4] [1 2 3 4]))))
+    :eavt :aevt :avet :vaet))
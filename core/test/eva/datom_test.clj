@@ -14,7 +14,7 @@
 
 (ns eva.datom-test
   (:require [clojure.test :refer :all]
-            [eva.datom :refer [datom]]))
+            [eva.datom :refer [datom unpack]]))
 
 (deftest test-datom-hash-and-equals
   (are [d1 d2] (and (.equals d1 d2) (.equals d2 d1)
@@ -28,3 +28,32 @@
     (datom 100 2 3 1 true) (datom 1 2 3 1 true)
     (datom 1 5 "foo" 1 true) (datom 1 5 "foo" 1 false)
     (datom 1 5 "foo" 1 false) (datom 1 5 "bar" 1 false)))
+
+(deftest test-packed-datom-views
+  (are [index-name tuple d] (let [packed (unpack index-name tuple)]
+                              (and (.equals packed d) (.equals d packed)
+                                   (= (.hashCode packed) (.hashCode d))
+                                   (= (hash packed) (hash d))
+                                   (= [(.eLong packed) (.aLong packed) (.txLong packed) (.isAdded packed)]
+                                      [(.eLong d) (.aLong d) (.txLong d) (.isAdded d)])))
+    :eavt [1 2 "foo" 3] (datom 1 2 "foo" 3 true)
+    :aevt [2 1 "foo" 3] (datom 1 2 "foo" 3 true)
+    :avet [2 "foo" 1 3] (datom 1 2 "foo" 3 true)
+    :vaet [4 2 1 3] (datom 1 2 4 3 true)
+    :eavth [1 2 "foo" 3] (datom 1 2 "foo" 3 true)
+    :eavth [(bit-set 1 62) 2 "foo" 3] (datom 1 2 "foo" 3 false)
+    :aveth [2 "foo" (bit-set 1 62) 3] (datom 1 2 "foo" 3 false)))
+
+(deftest test-packed-datom-assoc
+  (let [packed (unpack :avet [2 "foo" 1 3])]
+    (is (= (datom 1 2 "bar" 3 true) (assoc packed :v "bar")))
+    (is (= [1 2 "foo" 3 true] (vec (seq packed))))
+    (is (= 2 (:a packed) (nth packed 1) (.getKey packed :a)))
+    (is (= :none (nth packed 5 :none) (nth packed -1 :none)))
+    (is (thrown? IndexOutOfBoundsException (nth packed 5)))))
+
+(deftest test-datom-primitive-accessor-defaults
+  (let [d (reify eva.Datom
+            (e [_] 1) (a [_] 2) (v [_] "foo") (tx [_] 3) (added [_] false)
+            (getIndex [_ i] nil) (getKey [_ k] nil))]
+    (is (= [1 2 3 false] [(.eLong d) (.aLong d) (.txLong d) (.isAdded d)]))))
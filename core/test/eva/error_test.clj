@@ -33,6 +33,16 @@
     (try @(eva/transact conn [[:db.fn/cas 8796093023233 :book/title "1" "2"]])
          (catch Exception e (.getCause e)))))
 
+(deftest unit:api-error-handling-seq
+  (let [realized (atom 0)
+        xs (err/api-error-handling-seq (map (fn [x] (swap! realized inc) (/ 6 x)) (list 1 2 3 0)))]
+    (is (zero? @realized) "nothing is realized until consumed")
+    (is (= [6 3 2] (take 3 xs)))
+    (let [e (try (doall xs) nil (catch Throwable t t))]
+      (is (instance? EvaException e) "errors in realization are wrapped"))
+    (is (= [:a] (err/api-error-handling-seq [:a])))
+    (is (empty? (err/api-error-handling-seq nil)))))
+
 (deftest test:eva-exception-specific-test
   (let [conn (eva/connect {:local true})]
     (try
@@ -89,3 +89,18 @@
           (is (cstr/includes? ex-str1 "override_name")))
         (testing "if there is only a db/ident, munge the keyword into a valid fn-name"
           (is (cstr/includes? ex-str2 "db_DOT_fn_SLASH_cas")))))))
+
+(deftest unit:compiled-fn-cache
+  (let [src {:lang   :clojure
+             :params '[x]
+             :code   (list '* 'x (rand-int 1000000))}
+        hits #(.getCount compiled-cache-hit-counter)
+        misses #(.getCount compiled-cache-miss-counter)
+        [hits0 misses0] [(hits) (misses)]
+        f1 (compiled-fn (build-db-fn src))
+        f2 (compiled-fn (build-db-fn (assoc src :lang "clojure")))]
+    (is (identical? f1 f2))
+    (is (= 1 (- (misses) misses0)))
+    (is (= 1 (- (hits) hits0)))
+    (is (thrown? Exception
+                 (compiled-fn (build-db-fn (assoc src :code '(not-defined-symbol))))))))
@@ -19,6 +19,9 @@
             [eva.query.datalog.edb :as edb]
             [eva.query.datalog.evaluable :as eval]
             [eva.query.datalog.program :as prog]
+            [eva.query.datalog.protocols :as p]
+            [eva.query.datalog.qsqr.state :as state]
+            [eva.config :as config]
             [clojure.test :refer :all])
   (:import [eva.error.v1 EvaException]))
 
@@ -765,3 +768,94 @@
            (query program q)))
     (is (= '#{[George] [Frank] [Fred] [Douglas] [Michael]}
            (query program q1)))))
+
+(deftest unit:semi-naive-agrees-with-naive
+  (let [depth 40
+        parent-edb (edb/coll-of-tuples->EDB (concat (for [i (range depth)] [i (inc i)])
+                                                    [[depth 0]]))
+        parent (pred/extensional-predicate 'parent {:term-count 2})
+        left (pred/rule-predicate 'left {:term-count 2})
+        right (pred/rule-predicate 'right {:term-count 2})
+        rules [(rule/rule (left '[?x ?y]) [(parent '[?x ?y])])
+               (rule/rule (left '[?x ?y]) [(left '[?x ?z]) (parent '[?z ?y])])
+               (rule/rule (right '[?x ?y]) [(parent '[?x ?y])])
+               (rule/rule (right '[?x ?y]) [(parent '[?x ?z]) (right '[?z ?y])])]
+        program (prog/program :edbs {'parent parent-edb} :rules rules)
+        cycle (set (for [y (range (inc depth))] [0 y]))]
+    (doseq [semi-naive? [true false]]
+      (config/with-overrides {:eva.query.semi-naive semi-naive?}
+        (testing (str "semi-naive: " semi-naive?)
+          (is (= cycle (query program (left [0 '?y]))))
+          (is (= cycle (query program (right [0 '?y])))))))))
+
+(deftest unit:semi-naive-prunes-novelty
+  (let [depth 40
+        parent-edb (edb/coll-of-tuples->EDB (concat (for [i (range depth)] [i (inc i)])
+                                                    [[depth 0]]))
+        parent (pred/extensional-predicate 'parent {:term-count 2})
+        left (pred/rule-predicate 'left {:term-count 2})
+        rules [(rule/rule (left '[?x ?y]) [(parent '[?x ?y])])
+               (rule/rule (left '[?x ?y]) [(left '[?x ?z]) (parent '[?z ?y])])]
+        program (prog/program :edbs {'parent parent-edb} :rules rules)
+        generations (atom [])
+        update-derived state/update-derived]
+    (config/with-overrides {:eva.query.semi-naive true}
+      (with-redefs [state/update-derived (fn [s predicate derived]
+                                           (let [s (update-derived s predicate derived)]
+                                             (swap! generations conj (count (get-in s [:novelty 'left])))
+                                             s))]
+        (is (= (set (for [y (range (inc depth))] [0 y]))
+               (query program (left [0 '?y]))))))
+    (is (< 2 (count @generations)) "the recursion ran for several rounds")
+    (is (>= 2 (reduce max @generations))
+        "only the novelty of the current and previous rounds is retained")))
+
+(deftest unit:reordering-estimates-rule-bodies-once
+  (let [depth 30
+        estimates (atom {})
+        counting (fn [sym tuples]
+                   (let [edb (edb/coll-of-tuples->EDB tuples)]
+                     (reify p/EDB
+                       (extensions [_ terms] (p/extensions edb terms))
+                       p/EstimableEDB
+                       (estimate-extensions [_ terms]
+                         (swap! estimates update sym (fnil inc 0))
+                         (p/estimate-extensions edb terms)))))
+        edge (pred/extensional-predicate 'edge {:term-count 2})
+        hop (pred/extensional-predicate 'hop {:term-count 1})
+        reach (pred/rule-predicate 'reach {:term-count 2})
+        rules [(rule/rule (reach '[?x ?y]) [(edge '[?x ?y])])
+               (rule/rule (reach '[?x ?y]) [(edge '[?x ?z]) (hop '[?z]) (reach '[?z ?y])])]
+        program (prog/program :edbs {'edge (counting 'edge (vec (for [i (range depth)] [i (inc i)])))
+                                     'hop (counting 'hop (vec (for [i (range (inc depth))] [i])))}
+                              :rules rules)]
+    (config/with-overrides {:eva.query.reorder-clauses true}
+      (is (= (set (for [y (range 1 (inc depth))] [0 y]))
+             (query program (reach [0 '?y])))))
+    (testing "each antecedent is estimated once per shape of its bound terms, not per rule step"
+      (is (pos? (get @estimates 'edge 0)))
+      (is (>= 3 (get @estimates 'edge 0)))
+      (is (>= 3 (get @estimates 'hop 0))))))
+
+(deftest unit:parallel-rules-agree-with-sequential
+  (let [depth 40
+        parent-edb (edb/coll-of-tuples->EDB (concat (for [i (range depth)] [i (inc i)])
+                                                    [[depth 0]]))
+        small-edb (edb/coll-of-tuples->EDB (for [i (range 0 depth 3)] [i]))
+        parent (pred/extensional-predicate 'parent {:term-count 2})
+        small (pred/extensional-predicate 'small {:term-count 1})
+        left (pred/rule-predicate 'left {:term-count 2})
+        either (pred/rule-predicate 'either {:term-count 1})
+        rules [(rule/rule (left '[?x ?y]) [(parent '[?x ?y])])
+               (rule/rule (left '[?x ?y]) [(left '[?x ?z]) (parent '[?z ?y])])
+               (rule/rule (either '[?x]) [(small '[?x])])
+               (rule/rule (either '[?x]) [(parent '[?x 7])])
+               (rule/rule (either '[?x]) [(left '[30 ?x]) (small '[?x] :-)])]
+        program (prog/program :edbs {'parent parent-edb, 'small small-edb} :rules rules)
+        run (fn [parallel?]
+              (config/with-overrides {:eva.query.parallel-rules parallel?
+                                      :eva.query.parallel-rules.threshold 2}
+                [(query program (left [0 '?y]))
+                 (query program (either '[?x]))]))]
+    (is (= (run false) (run true)))
+    (is (= (set (for [y (range (inc depth))] [0 y])) (first (run true))))))
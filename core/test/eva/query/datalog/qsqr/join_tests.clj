@@ -0,0 +1,55 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.query.datalog.qsqr.join-tests
+  (:require [eva.query.datalog.qsqr.join :refer :all]
+            [clojure.test :refer :all]))
+
+(defn- nested-loop-join [a key-a b key-b]
+  (set (for [x a, y b :when (= (key-a x) (key-b y))] [x y])))
+
+(defn- pairs [as bs] (for [x as, y bs] [x y]))
+
+(deftest unit:hash-join
+  (let [bindings (set (for [i (range 20)] {'?e i, '?n (str "n" i)}))
+        tuples (set (for [i (range 0 40 3)] [i :attr (* 10 i)]))
+        expected (nested-loop-join bindings #(get % '?e) tuples first)]
+    (testing "either side may be the smaller"
+      (is (= expected (hash-join bindings #(get % '?e) tuples first pairs)))
+      (is (= expected (hash-join (take 3 bindings) #(get % '?e) tuples first pairs)
+             (nested-loop-join (take 3 bindings) #(get % '?e) tuples first))))
+    (testing "cross-merge always receives the first collection's items first"
+      (is (every? (comp map? first) (hash-join bindings #(get % '?e) (take 2 tuples) first pairs))))
+    (testing "long keys match integers that are = to them"
+      (is (= #{[{'?e 3} [(int 3)]] [{'?e 4} [(bigint 4)]]}
+             (hash-join [{'?e 3} {'?e 4} {'?e 5}] #(get % '?e)
+                        [[(int 3)] [(bigint 4)] [6.0]] first
+                        pairs))))
+    (testing "composite and non-long keys"
+      (is (= #{[[:a 1] [:a 1 "x"]]}
+             (hash-join [[:a 1] [:b 2]] identity
+                        [[:a 1 "x"] [:a 2 "y"]] #(subvec % 0 2)
+                        pairs))))
+    (is (= #{} (hash-join [] identity [1 2] identity pairs)))))
+
+(deftest unit:hash-anti-join
+  (let [as (set (range 20))
+        bs [(int 2) 3 (bigint 5) 7.0 "11" 40]]
+    (is (= (set (remove #{2 3 5} as))
+           (hash-anti-join as identity bs identity)
+           (hash-anti-join (take 20 as) identity (concat bs (range 100 200)) identity)))
+    (is (= as (hash-anti-join as identity [] identity)))
+    (is (= #{} (hash-anti-join [] identity bs identity)))
+    (is (= #{[:b 2]}
+           (hash-anti-join [[:a 1] [:b 2]] identity [[:a 1 "x"]] #(subvec % 0 2))))))
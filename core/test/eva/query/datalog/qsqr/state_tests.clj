@@ -17,6 +17,8 @@
             [eva.query.datalog.predicate :as pred]
             [eva.query.datalog.protocols :as p]
             [eva.query.datalog.qsqr.protocols :as qp]
+            [eva.query.datalog.program :as prog]
+            [eva.query.datalog.edb :as edb]
             [clojure.test :refer :all]))
 
 ;; protocol function add-query is tested throughout the following unit tests.
@@ -316,3 +318,107 @@
       chopin-1 state-2
       chopin-1 state-both
       chopin-1 proto-state-both)))
+
+(deftest unit:query.datalog:state:derived-since
+  (let [sym 'reach
+        predicate (-> ((pred/rule-predicate sym {:term-count 2}) '[?x ?y])
+                      (predicate->generalized '#{{?x 1}}))
+        state (-> init-state
+                  (assoc :semi-naive? true)
+                  (next-generation)
+                  (update-derived predicate #{[1 2] [1 3]})
+                  (next-generation)
+                  (update-derived predicate #{[1 3] [1 4]}))]
+    (is (= 3 (:derivations state)))
+    (is (= #{[1 2] [1 3] [1 4]} (get (qp/derived state) sym)))
+    (is (= #{[1 2] [1 3] [1 4]} (derived-since state sym 1)))
+    (is (= #{[1 4]} (derived-since state sym 2)) "only tuples novel in generation 2")
+    (is (= #{} (derived-since state sym 3)))
+    (is (empty? (:novelty (update-derived (assoc init-state :semi-naive? false) predicate #{[1 2]})))
+        "novelty is only recorded under semi-naive evaluation")))
+
+(deftest unit:query.datalog:state:prune-novelty
+  (let [sym 'reach
+        predicate (-> ((pred/rule-predicate sym {:term-count 2}) '[?x ?y])
+                      (predicate->generalized '#{{?x 1}}))
+        state (-> init-state
+                  (assoc :semi-naive? true)
+                  (next-generation)
+                  (update-derived predicate #{[1 2]})
+                  (next-generation)
+                  (update-derived predicate #{[1 3]})
+                  (next-generation)
+                  (update-derived predicate #{[1 4]}))
+        pruned (prune-novelty state sym 2)]
+    (is (= [2 3] (keys (get-in pruned [:novelty sym]))))
+    (is (= #{[1 3] [1 4]} (derived-since pruned sym 1)))
+    (is (= (derived-since state sym 2) (derived-since pruned sym 2)))
+    (is (= #{[1 2] [1 3] [1 4]} (get (qp/derived pruned) sym)) "derived relations are untouched")
+    (is (not (contains? (:novelty (prune-novelty state sym nil)) sym)))
+    (is (= init-state (prune-novelty init-state sym 2)))))
+
+(deftest unit:query.datalog:state:remove-unifiable-matches-nested-unification
+  (let [naive (fn [bindings predicate derived]
+                (into #{}
+                      (remove (fn [m] (some #(eva.query.util/simple-unify (p/terms predicate) m %) derived)))
+                      bindings))
+        predicate ((pred/extensional-predicate 'rel {:term-count 4}) '[?x ?y ?y 7] :-)
+        derived (set (for [x (range 10), y (range 3), z (range 3), w [7 8]] [x y z w]))
+        derived (set (remove (fn [[x y z]] (and (odd? x) (= y z))) derived))]
+    (testing "bound, repeated free, and constant terms"
+      (let [bindings (set (for [x (range 12)] {'?x x}))]
+        (is (= (naive bindings predicate derived)
+               (remove-unifiable bindings predicate derived)
+               #{{'?x 1} {'?x 3} {'?x 5} {'?x 7} {'?x 9} {'?x 10} {'?x 11}}))))
+    (testing "bindings shaped differently from the first are still checked"
+      (let [bindings #{{'?x 1} {'?x 1 '?y 2} {'?x 2 '?y 2} {'?y 1}}]
+        (is (= (naive bindings predicate derived)
+               (remove-unifiable bindings predicate derived)))))))
+
+(deftest unit:query.datalog:state:estimating-pred-selector
+  (let [big (pred/extensional-predicate 'big {:term-count 2})
+        small (pred/extensional-predicate 'small {:term-count 1})
+        bound-small (pred/extensional-predicate 'small {:term-count 1, :required [0]})
+        program (prog/program :edbs {'big (edb/coll-of-tuples->EDB (vec (for [i (range 1000)] [i (inc i)])))
+                                     'small (edb/coll-of-tuples->EDB [[1] [2]])})
+        select (estimating-pred-selector program)
+        selected (fn [preds] (let [[pred others] (select init-state preds)]
+                               [(p/expression pred) (map p/expression others)]))]
+    (testing "the predicate of least estimated result is selected first"
+      (is (= [(p/expression (small '[?x])) [(p/expression (big '[?x ?y]))]]
+             (selected [(big '[?x ?y]) (small '[?x])]))))
+    (testing "required bindings still constrain the choice"
+      (is (= [(p/expression (big '[?x ?y])) [(p/expression (bound-small '[?x]))]]
+             (selected [(bound-small '[?x]) (big '[?x ?y])]))))))
+
+(deftest unit:query.datalog:state:estimating-pred-selector-memoizes
+  (let [calls (atom {})
+        counting-edb (fn [sym n]
+                       (reify p/EDB
+                         (extensions [_ terms] ())
+                         p/EstimableEDB
+                         (estimate-extensions [_ terms]
+                           (swap! calls update sym (fnil inc 0))
+                           n)))
+        a (pred/extensional-predicate 'a {:term-count 2})
+        b (pred/extensional-predicate 'b {:term-count 2})
+        program (prog/program :edbs {'a (counting-edb 'a 10)
+                                     'b (counting-edb 'b 100)})
+        select (estimating-pred-selector program)
+        preds [(b '[?y ?z]) (a '[?x ?y])]
+        select-with (fn [bindings] (p/expression (first (select (qp/bindings init-state bindings) preds))))]
+    (testing "estimates are made once per predicate and bound lvars"
+      (dotimes [_ 3]
+        (is (= (p/expression (a '[?x ?y])) (select-with #{{'?w 1}}))))
+      (is (= {'a 1, 'b 1} @calls)))
+    (testing "binding lvars a predicate does not use reuses its estimate"
+      (select-with #{{'?w 1 '?v 2}})
+      (is (= {'a 1, 'b 1} @calls)))
+    (testing "renaming a predicate's lvars, as freshening does, reuses its estimate"
+      (is (= (p/expression (a '[?x2 ?y2]))
+             (p/expression (first (select (qp/bindings init-state #{{'?w 1}})
+                                          [(b '[?y2 ?z2]) (a '[?x2 ?y2])])))))
+      (is (= {'a 1, 'b 1} @calls)))
+    (testing "binding one of its lvars estimates it anew"
+      (select-with #{{'?x 1}})
+      (is (= {'a 2, 'b 1} @calls)))))
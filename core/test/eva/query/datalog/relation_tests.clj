@@ -0,0 +1,84 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.query.datalog.relation-tests
+  (:require [eva.query.datalog.relation :refer :all]
+            [clojure.test :refer :all])
+  (:import [eva.query.datalog Relation]))
+
+(def ^:private maps
+  (for [i (range 50)]
+    {'?e (long (mod i 20)), '?v (if (even? i) (mod i 7) (str "v" (mod i 7)))}))
+
+(deftest unit:relation-behaves-as-a-set-of-maps
+  (let [r (relation maps)
+        s (set maps)]
+    (is (instance? Relation r))
+    (is (= s r))
+    (is (= r s))
+    (is (= (hash s) (hash r)))
+    (is (= (count s) (count r)))
+    (is (every? #(contains? r %) s))
+    (is (not (contains? r {'?e 1})))
+    (is (not (contains? r {'?e 100, '?v 0})))
+    (testing "integers equal to the stored longs are found"
+      (is (contains? r {'?e (int 0), '?v 0})))
+    (testing "conj and disj"
+      (is (= (conj s {'?e 100 '?v :x}) (conj r {'?e 100 '?v :x})))
+      (is (= (disj s (first s)) (disj r (first s)))))
+    (testing "a map binding other lvars degrades to a plain set"
+      (let [mixed (conj r {'?x 1})]
+        (is (not (instance? Relation mixed)))
+        (is (= (conj s {'?x 1}) mixed))))
+    (testing "zero-width rows"
+      (is (= #{{}} (relation #{{}})))
+      (is (= 1 (count (into (relation #{{}}) [{} {}])))))))
+
+(deftest unit:relation-columns
+  (let [r (relation maps)]
+    (is (= (into #{} (map #(select-keys % ['?e])) maps)
+           (project r ['?e '?unbound])))
+    (is (= (set (map #(select-keys % '[?v]) maps))
+           (project (set maps) '[?v])))
+    (is (= (set (map #(replace % '[?e :attr ?v]) maps))
+           (substitutions r '[?e :attr ?v])
+           (substitutions (set maps) '[?e :attr ?v])))
+    (is (ground? r))
+    (is (not (ground? (relation [{'?a '?b}]))))))
+
+(deftest unit:relation-into-and-meta
+  (testing "into builds a Relation"
+    (let [r (into empty-relation maps)]
+      (is (instance? Relation r))
+      (is (= (set maps) r))
+      (is (= (set maps) (into empty-relation (map identity) maps)))))
+  (testing "metadata is carried and preserved by into"
+    (let [r (with-meta (relation maps) {:tag :r})]
+      (is (= {:tag :r} (meta r)))
+      (is (= {:tag :r} (meta (conj r {'?e 100 '?v 0}))))
+      (is (= {:tag :r} (meta (into r [{'?e 100 '?v 0}]))))
+      (is (= r (relation maps)))))
+  (testing "conj onto an older relation does not see or disturb later rows"
+    (let [r (relation maps)
+          a (conj r {'?e 100 '?v 0})
+          b (conj r {'?e 200 '?v 0})
+          c (conj a {'?e 300 '?v "x"})]
+      (is (= (conj (set maps) {'?e 100 '?v 0}) a))
+      (is (= (conj (set maps) {'?e 200 '?v 0}) b))
+      (is (= (conj (set maps) {'?e 100 '?v 0} {'?e 300 '?v "x"}) c))
+      (is (not (contains? r {'?e 100 '?v 0})))
+      (is (not (contains? b {'?e 100 '?v 0})))
+      (is (= (count maps) (count r)))))
+  (testing "a chain of conj builds the same set as the maps"
+    (is (= (set maps) (reduce conj empty-relation maps)))))
@@ -28,7 +28,8 @@
             [eva.entity-id :refer [->Long]]
             [eva.query.core :refer :all]
             [eva.query.dialect.util :refer [expression]]
-            [eva.query.dialect.pull.core :refer [pull pull-many]]
+            [eva.query.dialect.pull.core :refer [pull pull-many compile-pattern]]
+            [eva.config :as config]
             [eva.v2.server.transactor-test-utils :refer [with-local-mem-connection]]
             [plumbing.core :as pc]
             [com.rpl.specter.macros :as sm]
@@ -152,6 +153,12 @@
     [[:db/add 24 :part 25]
      [:db/add 26 :spec 27]])))
 
+(deftest unit:string-patterns-read-eva-tags
+  (is (= (compile-pattern [:name (list 'default :aka (tempid :db.part/user -1))])
+         (compile-pattern "[:name (default :aka #db/id [:db.part/user -1])]")
+         (compile-pattern "[:name (default :aka #db/id [:db.part/user -1])]"))
+      "string patterns are read with eva's reader functions, cached or not"))
+
 (deftest unit:pull-api
   (with-local-mem-connection conn
     (let [schema-res @(transact conn schema)
@@ -176,6 +183,12 @@
         (is (= [{:name "Petr"} {:name "Elizabeth"}
                 {:name "Eunan"} {:name "Rebecca"}]
                (pull-many test-db '[:name] (map perm [1 5 7 9])))))
+      (testing "pull-many in concurrent chunks agrees with a single frame"
+        (let [pattern '[:name {:child [:name {:child [:name]}]} :_father]
+              eids (map perm [1 2 3 4 5 6 7 9 1 3])]
+          (is (= (pull-many test-db pattern eids)
+                 (config/with-overrides {:eva.query.pull.chunk-size 2}
+                   (pull-many test-db pattern eids))))))
       (testing "pull-reverse-attr-spec"
         (is (= {:name "David" :_child [{:db/id (perm 1)}]}
                (pull test-db '[:name :_child] (perm 2))))
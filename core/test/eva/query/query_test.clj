@@ -13,8 +13,12 @@
 ;; limitations under the License.
 
 (ns eva.query.query-test
-  (:require [eva.query.core :refer [q inspect]]
+  (:require [eva.query.core :refer [q q-seq inspect profile prepare]]
+            [eva.query.profile :refer [profiling? profile-call clause branches note-selection!]]
             [eva.api :refer [connect db release transact tempid datoms]]
+            [eva.query.dialect.translation.core :as translation]
+            [eva.config :as config]
+            [eva.query.dialect.aggregates :as agg]
             [clojure.set :as set]
             [eva.v2.server.transactor-test-utils :refer [with-local-mem-connection]])
   (:use [clojure.test]))
@@ -961,3 +965,148 @@
             snapshot (db conn)]
         (is (= [[0 :db.part/db :db/ident]]
                (q query snapshot [[0 3 :db.part/db "foo" "bar"]])))))))
+
+(deftest unit:range-predicate-pushdown
+  (with-local-mem-connection conn
+    (let [_ @(transact conn [{:db/id                 (tempid :db.part/db)
+                              :db/ident              :test/n
+                              :db/valueType          :db.type/long
+                              :db/cardinality        :db.cardinality/one
+                              :db.install/_attribute :db.part/db}])
+          db (:db-after @(transact conn (for [n (range 50)]
+                                          {:db/id (tempid :db.part/user) :test/n n})))
+          found (fn [query & args] (set (apply q query db args)))]
+      (testing "bounds on a value are pushed down to a range-restricted data pattern"
+        (let [{:keys [program]} (inspect '[:find ?n :where [?e :test/n ?n] [(> ?n 10)]] db)]
+          (is (some #(re-find #"^datom_range__" (name %)) (keys (:edbs program))))))
+      (testing "range-restricted results match the comparisons"
+        (is (= (set (map vector (range 11 21)))
+               (found '[:find ?n :where [?e :test/n ?n] [(> ?n 10)] [(<= ?n 20)]])))
+        (is (= (set (map vector (range 41 50)))
+               (found '[:find ?n :where [?e :test/n ?n] [(< 40 ?n)]])))
+        (is (= (set (map vector (range 0 4)))
+               (found '[:find ?n :where [?e :test/n ?n] [(< ?n 3.5)] [(< ?n 5)]])))
+        (is (= #{}
+               (found '[:find ?n :in $ ?x :where [?e :test/n ?n] [(> ?n 30)] [(< ?n ?x)]] 20))))
+      (testing "non-database sources ignore the range"
+        (is (= #{[2] [3]}
+               (set (q '[:find ?n :where [_ :a ?n] [(> ?n 1)]] [[1 :a 1] [2 :a 2] [3 :a 3]]))))))))
+
+(deftest unit:raw-form-compile-cache
+  (let [query '[:find [?x ...] :in $ % :where (r ?x)]
+        data [[1 :a 2] [3 :b 4]]
+        by-attr (fn [a] [[(list 'r '?x) ['?x a '_]]])
+        stats #(.stats translation/raw-form-cache)]
+    (testing "a repeated query and rules input reuses the compiled query"
+      (is (= [1] (q query data (by-attr :a))))
+      (let [hits (.hitCount (stats))]
+        (is (= [1] (q query data (by-attr :a))))
+        (is (= (inc hits) (.hitCount (stats))))))
+    (testing "the rules input is part of the key"
+      (is (= [3] (q query data (by-attr :b)))))))
+
+(deftest unit:clause-reordering-preserves-results
+  (with-local-mem-connection conn
+    (let [db (db conn)
+          query '[:find ?ident
+                  :where
+                  [?a :db/ident ?ident]
+                  [:db.part/db :db.install/attribute ?a]
+                  [?a :db/valueType :db.type/ref]]
+          reordered (q query db)]
+      (is (seq reordered))
+      (is (= reordered
+             (config/with-overrides {:eva.query.reorder-clauses false}
+               (q query db)))))))
+
+(deftest unit:q-seq
+  (let [data (vec (for [i (range 100)] [i :a (mod i 10)]))
+        rel '[:find ?e ?v :in $ :where [?e :a ?v]]
+        all (q rel data)]
+    (testing "streams the same results as q"
+      (is (= (set all) (set (q-seq {:query rel :args [data]}))))
+      (is (= (count all) (count (q-seq {:query rel :args [data]})))))
+    (testing "pages with offset and limit"
+      (let [page (q-seq {:query rel :args [data] :offset 10 :limit 25})]
+        (is (= 25 (count page)))
+        (is (every? (set all) page)))
+      (is (= 1 (count (q-seq {:query rel :args [data] :offset 99}))))
+      (is (empty? (q-seq {:query rel :args [data] :limit 0}))))
+    (testing "collection find specs stream values"
+      (is (= (set (range 10))
+             (set (q-seq {:query '[:find [?v ...] :in $ :where [_ :a ?v]] :args [data]})))))
+    (testing "aggregates are computed over every result before paging"
+      (is (= [[100]] (vec (q-seq {:query '[:find (count ?e) :in $ :where [?e :a _]] :args [data]})))))))
+
+(deftest unit:folded-aggregates-agree-with-aggregate-fns
+  (let [data (vec (for [i (range 500)]
+                    [(mod i 7) i (if (zero? (mod i 3)) (+ 0.25 (mod i 11)) (mod (* i 31) 17))]))
+        groups (group-by first data)
+        expect (fn [f] (into #{} (for [[g rows] groups] [g (f (map #(nth % 2) rows))])))
+        run (fn [agg-sym] (set (q [:find '?g (list agg-sym '?v) :with '?i :in '$ :where '[?g ?i ?v]] data)))]
+    (doseq [[agg-sym f] {'sum agg/sum, 'avg agg/avg, 'count count, 'min agg/min, 'max agg/max,
+                         'count-distinct agg/count-distinct, 'median agg/median}]
+      (testing (str agg-sym)
+        (is (= (expect f) (run agg-sym)))))
+    (testing "even-sized groups take the mean of the middle two for median"
+      (is (== 2.5 (q '[:find (median ?v) . :in $ :where [?v]] (map list [1 2 3 4])))))
+    (testing "sums overflowing a long fail as the sum function does"
+      (is (thrown? Exception (q '[:find (sum ?v) . :in $ :where [?v]] (map list [Long/MAX_VALUE 1])))))))
+
+(deftest unit:parallel-sources-agree-with-sequential
+  (let [xs (for [i (range 200)] [i (mod i 13)])
+        ys (for [i (range 0 200 3)] [(mod i 13) (str i)])
+        query '[:find ?i ?s
+                :in $1 $2
+                :where [$1 ?i ?k] [$2 ?k ?s]]
+        run (fn [parallel?]
+              (config/with-overrides {:eva.query.parallel-sources parallel?}
+                (q query xs ys)))]
+    (is (= (run false) (run true)))
+    (is (seq (run true)))))
+
+(deftest unit:profile
+  (let [data (for [i (range 50)] [i (mod i 5)])
+        {:keys [result plan elapsed-ns]} (profile '[:find ?i :in $ ?k :where [?i ?k] [(even? ?i)]] data 3)
+        by-kind (group-by :kind plan)]
+    (is (= (q '[:find ?i :in $ ?k :where [?i ?k] [(even? ?i)]] data 3) result))
+    (is (nat-int? elapsed-ns))
+    (testing "each clause reports its cardinalities and time"
+      (is (every? (every-pred :clause :bindings-in :bindings-out :elapsed-ns) plan))
+      (is (some #(= 10 (:tuples %)) (:extensional by-kind)))
+      (is (some #(= 5 (:bindings-out %)) (:evaluable by-kind))))
+    (testing "profiling is off outside of profile"
+      (is (not (profiling?))))))
+
+(deftest unit:profile-branches-in-order
+  (let [concurrently (fn [fs] (mapv deref (mapv future-call fs)))
+        ;; later branches finish first
+        branch (fn [i] #(do (Thread/sleep (* 20 (- 5 i)))
+                            (note-selection! {:branch i})
+                            (clause {:branch i} (constantly {}) (constantly i))))
+        {:keys [result plan]} (profile-call
+                               (fn []
+                                 (clause {:parent true}
+                                         (constantly {})
+                                         #(branches concurrently (map branch (range 5))))))
+        [parent] plan]
+    (is (= [0 1 2 3 4] result))
+    (is (= (range 5) (map :branch (:children parent))))
+    (is (= (range 5) (map :branch (:selections parent))))
+    (is (= [0 1] (branches concurrently [(constantly 0) (constantly 1)])))))
+
+(deftest unit:prepared-queries
+  (let [data (for [i (range 30)] [i (mod i 3)])]
+    (testing "a prepared query executes as q does for each set of inputs"
+      (let [query '[:find ?i :in $ ?k :where [?i ?k]]
+            prepared (prepare query)]
+        (doseq [k (range 3)]
+          (is (= (q query data k) (prepared data k))))))
+    (testing "a prepared query taking rules is compiled per rules input"
+      (let [query '[:find ?i :in $ % :where (r ?i)]
+            prepared (prepare query)
+            rules-a '[[(r ?i) [?i 0]]]
+            rules-b '[[(r ?i) [?i 1]]]]
+        (is (= (q query data rules-a) (prepared data rules-a)))
+        (is (= (q query data rules-b) (prepared data rules-b)))
+        (is (not= (prepared data rules-a) (prepared data rules-b)))))))
@@ -55,6 +55,21 @@
         (is (= 0 (-> lookup-refs/resolve-lookup-ref-strict bond/calls count)))
         (is (> (-> lookup-refs/batch-resolve-lookup-refs bond/calls count) 0))))))
 
+(deftest unit:resolves-lookup-refs-and-upserts-in-one-batch
+  (with-uniq-attrs total 100 conn
+    (let [half (int (/ total 2))
+          lookup-ref-values (vec (map lookup-ref-ctor (range half)))
+          upserts (vec (for [n (range half total)]
+                         {:db/id (eva/tempid :db.part/user)
+                          :uniq-attr (str n)
+                          :non-uniq-attr (str n)}))]
+      (bond/with-spy [lookup-refs/batch-resolve-lookup-refs]
+        @(eva/transact conn (into lookup-ref-values upserts))
+        (is (= 1 (-> lookup-refs/batch-resolve-lookup-refs bond/calls count))))
+      (let [db (eva/db conn)]
+        (is (= total (count (eva/q '[:find ?e :in $ :where [?e :uniq-attr]] db))))
+        (is (= total (count (eva/q '[:find ?e ?v1 ?v2 :in $ :where [?e :uniq-attr ?v1] [?e :non-uniq-attr ?v2]] db))))))))
+
 (deftest unit:resolves-all-lookup-refs-correctly
   (with-uniq-attrs total 100 conn
     (let [lookup-ref-values (vec (map lookup-ref-ctor (range total)))
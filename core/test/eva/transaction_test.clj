@@ -25,7 +25,7 @@
             [eva.error :refer [is-thrown?]]
             [eva.v2.server.transactor-test-utils
              :refer [with-local-sql-connection with-local-mem-connection with-local-sql-connection*]])
-  (:import [eva.error.v1 EvaErrorCode]))
+  (:import [eva.error.v1 EvaErrorCode EvaException]))
 
 (deftest unit:add-retract
   (with-local-sql-connection conn
@@ -583,3 +583,50 @@
                   @(transact conn
                              [{:db/id #db/id[:db.part/user -1],
                                :autho2r/name "U189761514X2175691368"}])))))
+
+(deftest unit:parallel-validation
+  (with-local-mem-connection conn
+    @(transact conn [{:db/id (eva/tempid :db.part/db)
+                      :db/ident :pv/one
+                      :db.install/_attribute :db.part/db
+                      :db/valueType :db.type/string
+                      :db/cardinality :db.cardinality/one}
+                     {:db/id (eva/tempid :db.part/db)
+                      :db/ident :pv/many
+                      :db.install/_attribute :db.part/db
+                      :db/valueType :db.type/long
+                      :db/cardinality :db.cardinality/many}])
+    (let [entities (fn [n] (vec (for [i (range n)]
+                                  {:db/id (eva/tempid :db.part/user)
+                                   :pv/one (str i)
+                                   :pv/many [i (inc i)]})))
+          conflicting (fn [] (let [e (eva/tempid :db.part/user)]
+                               (into (entities 10) [[:db/add e :pv/one "x"] [:db/add e :pv/one "y"]])))]
+      (eva.config/with-overrides {:eva.transaction-pipeline.parallel-validation.threshold 2}
+        (let [db (:db-after @(transact conn (entities 20)))]
+          (is (= 20 (count (eva/q '[:find [?e ...] :where [?e :pv/one]] db))))
+          (is (= 40 (count (eva/datoms db :aevt :pv/many)))))
+        (is-thrown? {:error-type :transact-exception/cardinality-one-violation
+                     :unwrapper (memfn ^Throwable getCause)}
+                    @(transact conn (conflicting))))
+      (eva.config/with-overrides {:eva.transaction-pipeline.parallel-validation.threshold 0}
+        (is-thrown? {:error-type :transact-exception/cardinality-one-violation
+                     :unwrapper (memfn ^Throwable getCause)}
+                    @(transact conn (conflicting))))
+      (testing "with several failing groups, both paths raise the same error"
+        (let [tx-data (conj (conflicting)
+                            {:db.install/_attribute :db.part/db
+                             :db/ident :pv/fulltext
+                             :db/cardinality :db.cardinality/one
+                             :db/valueType :db.type/string
+                             :db/id (eva/tempid :db.part/db)
+                             :db/fulltext true})
+              error-type (fn [threshold]
+                           (eva.config/with-overrides {:eva.transaction-pipeline.parallel-validation.threshold threshold}
+                             (try @(transact conn tx-data)
+                                  nil
+                                  (catch Exception e
+                                    (.getErrorType ^EvaException (.getCause e))))))
+              sequential (error-type 0)]
+          (is (some? sequential))
+          (is (= sequential (error-type 2))))))))
@@ -30,6 +30,9 @@
             [eva.v2.system.indexing.core :as indexing]
             [eva.v2.messaging.jms.alpha.local-broker :as broker]
             [eva.v2.database.core :as database]
+            [eva.v2.database.as-of-cache :as as-of-cache]
+            [eva.v2.database.speculative :as speculative]
+            [eva.query.result-cache :as result-cache]
             [eva.v2.storage.block-store.impl.sql :as sql]
             [eva.v2.server.transactor-test-utils :refer [with-local-mem-connection]]
             [quartermaster.core :as qu]
@@ -227,6 +230,179 @@
                      (is (= 3 (entid dbase [:db/ident :db/ident])))
                      (is (= nil (entid dbase [:db/ident :doesnt-exist])))))))))
 
+(deftest unit:lookup-reference-cache-across-snapshots
+  (with-local-mem-connection conn
+    (let [_ @(transact conn [{:db/id                 (tempid :db.part/db)
+                              :db/ident              :test/key
+                              :db/valueType          :db.type/string
+                              :db/unique             :db.unique/identity
+                              :db/cardinality        :db.cardinality/one
+                              :db.install/_attribute :db.part/db}])
+          tres @(transact conn [[:db/add (tempid :db.part/user -1) :test/key "k"]])
+          a (resolve-tempid (:db-after tres) (:tempids tres) (tempid :db.part/user -1))
+          db1 (db conn)
+          _ (is (= a (entid db1 [:test/key "k"])))
+          _ (is (nil? (entid db1 [:test/key "new"])))
+          tres @(transact conn [[:db/retract a :test/key "k"]
+                                [:db/add (tempid :db.part/user -2) :test/key "k"]
+                                [:db/add (tempid :db.part/user -3) :test/key "new"]])
+          [b c] (map (partial resolve-tempid (:db-after tres) (:tempids tres))
+                     [(tempid :db.part/user -2) (tempid :db.part/user -3)])
+          db2 (db conn)]
+      (testing "snapshots of a connection share one cache"
+        (is (identical? (:lookup-ref-cache db1) (:lookup-ref-cache db2))))
+      (testing "novelty invalidates positive and negative resolutions"
+        (is (= b (entid db2 [:test/key "k"])))
+        (is (= c (entid db2 [:test/key "new"])))
+        (is (= [b c] (.entids ^Database db2 [[:test/key "k"] [:test/key "new"]]))))
+      (testing "older snapshots keep their own view"
+        (is (= a (entid db1 [:test/key "k"])))
+        (is (nil? (entid db1 [:test/key "new"])))))))
+
+(deftest unit:schema-carried-across-snapshots
+  (with-local-mem-connection conn
+    (let [_ @(transact conn [{:db/id                 (tempid :db.part/db)
+                              :db/ident              :test/friend
+                              :db/valueType          :db.type/ref
+                              :db/cardinality        :db.cardinality/many
+                              :db.install/_attribute :db.part/db}])
+          db1 (db conn)
+          _ @(transact conn [[:db/add (tempid :db.part/user) :db/doc "not schema"]])
+          db2 (db conn)
+          _ @(transact conn [{:db/id                 (tempid :db.part/db)
+                              :db/ident              :test/blob
+                              :db/valueType          :db.type/bytes
+                              :db/cardinality        :db.cardinality/one
+                              :db.install/_attribute :db.part/db}])
+          db3 (db conn)]
+      (testing "non-schema novelty reuses the schema as is"
+        (doseq [k [:idents :attrs :parts :db-fns :ref-attr-eids :byte-attr-eids]]
+          (is (identical? (get db1 k) (get db2 k)))))
+      (testing "installed attributes are tracked by value type"
+        (is (contains? (:ref-attr-eids db2) (entid db2 :test/friend)))
+        (is (not (contains? (:byte-attr-eids db2) (entid db3 :test/blob))))
+        (is (contains? (:byte-attr-eids db3) (entid db3 :test/blob))))
+      (testing "the carried schema matches one read from the indexes"
+        (let [rebuilt (as-of db3 (basis-t db3))]
+          (doseq [k [:idents :attrs :ref-attr-eids :byte-attr-eids]]
+            (is (= (get rebuilt k) (get db3 k)))))))))
+
+(deftest unit:as-of-reuses-nearest-snapshot
+  (with-local-mem-connection conn
+    (let [ts (vec (for [i (range 3)]
+                    (-> @(transact conn [[:db/add (tempid :db.part/user) :db/doc (str "doc-" i)]])
+                        :db-after
+                        basis-t)))
+          docs (fn [db] (set (q '[:find [?d ...] :where [_ :db/doc ?d]] db)))
+          hits #(.getCount as-of-cache/hit-counter)
+          proximal-hits #(.getCount as-of-cache/proximal-hit-counter)
+          latest (db conn)
+          at-0 (docs (as-of latest (ts 0)))
+          proximal-before (proximal-hits)
+          at-2 (docs (as-of latest (ts 2)))
+          hits-before (hits)]
+      (is (contains? at-0 "doc-0"))
+      (is (not (contains? at-0 "doc-1")))
+      (testing "a later t advances the cached earlier snapshot"
+        (is (= (inc proximal-before) (proximal-hits)))
+        (is (every? at-2 ["doc-0" "doc-1" "doc-2"])))
+      (testing "repeating a t is an exact hit"
+        (is (= at-2 (docs (as-of latest (ts 2)))))
+        (is (= (inc hits-before) (hits)))))))
+
+(deftest unit:query-result-cache
+  (config/with-overrides {:eva.query.result-cache.max-size 100
+                          :eva.query.result-cache.expire-after-access-ms 60000}
+    (with-local-mem-connection conn
+      (let [doc->e '[:find ?e . :in $ ?d :where [?e :db/doc ?d]]
+            hits #(.getCount result-cache/hit-counter)
+            _ @(transact conn [[:db/add (tempid :db.part/user) :db/doc "cached-0"]])
+            db-0 (db conn)
+            first-run (q doc->e db-0 "cached-0")
+            hits-before (hits)]
+        (is (some? first-run))
+        (testing "repeating a query over the same snapshot and inputs is a hit"
+          (is (= first-run (q doc->e db-0 "cached-0")))
+          (is (= (inc hits-before) (hits))))
+        (testing "different inputs miss"
+          (is (nil? (q doc->e db-0 "cached-1")))
+          (is (= (inc hits-before) (hits))))
+        (testing "a newer snapshot misses and sees the new data"
+          @(transact conn [[:db/add (tempid :db.part/user) :db/doc "cached-1"]])
+          (is (some? (q doc->e (db conn) "cached-1")))
+          (is (= (inc hits-before) (hits))))
+        (testing "speculative databases are never cached"
+          (let [speculative (:db-after (with db-0 [[:db/add (tempid :db.part/user) :db/doc "cached-2"]]))]
+            (is (some? (q doc->e speculative "cached-2")))
+            (is (some? (q doc->e speculative "cached-2")))
+            (is (= (inc hits-before) (hits)))))))))
+
+(deftest unit:query-result-cache-bounds-latest-basis-t
+  (config/with-overrides {:eva.query.result-cache.max-size 4
+                          :eva.query.result-cache.expire-after-access-ms 60000}
+    (let [[results ^com.google.common.cache.Cache latest] (#'result-cache/current-caches)]
+      (doseq [i (range 100)]
+        (#'result-cache/evict-older! results latest [::result-cache/db (UUID/randomUUID) i]))
+      (.cleanUp latest)
+      (is (<= (.size latest) 4)))))
+
+(deftest unit:chained-speculative-databases
+  (with-local-mem-connection conn
+    (let [_ @(transact conn [{:db/id                 (tempid :db.part/db)
+                              :db/ident              :spec/name
+                              :db/valueType          :db.type/string
+                              :db/cardinality        :db.cardinality/one
+                              :db/unique             :db.unique/identity
+                              :db.install/_attribute :db.part/db}
+                             {:db/id                 (tempid :db.part/db)
+                              :db/ident              :spec/rank
+                              :db/valueType          :db.type/long
+                              :db/cardinality        :db.cardinality/one
+                              :db.install/_attribute :db.part/db}
+                             {:db/id                 (tempid :db.part/db)
+                              :db/ident              :spec/blob
+                              :db/valueType          :db.type/bytes
+                              :db/cardinality        :db.cardinality/one
+                              :db.install/_attribute :db.part/db}])
+          _ @(transact conn [{:db/id (tempid :db.part/user) :spec/name "base" :spec/rank -1
+                              :spec/blob (byte-array [1 2 3])}])
+          base (db conn)
+          chained (reduce (fn [db i]
+                            (:db-after (with db [{:db/id (tempid :db.part/user)
+                                                  :spec/name (str "n" i)
+                                                  :spec/rank i}])))
+                          base
+                          (range 20))
+          chained (:db-after (with chained [[:db/retract [:spec/name "n3"] :spec/rank 3]
+                                            {:db/id [:spec/name "n4"] :spec/rank 400}
+                                            {:db/id [:spec/name "base"] :spec/rank 100}
+                                            ;; a fresh array, equal in content to the stored one
+                                            [:db/retract [:spec/name "base"] :spec/blob (byte-array [1 2 3])]]))
+          ranks (fn [db] (into {} (q '[:find ?n ?r :where [?e :spec/name ?n] [?e :spec/rank ?r]] db)))]
+      (testing "chained speculative novelty is layered over the base indexes"
+        (is (instance? eva.v2.database.speculative.SpeculativeIndexes (:indexes chained)))
+        (is (not (instance? eva.v2.database.speculative.SpeculativeIndexes (:indexes base)))))
+      (testing "queries see every speculative add, retract and replacement"
+        (let [rs (ranks chained)]
+          (is (= 20 (count rs)))
+          (is (not (contains? rs "n3")))
+          (is (= 400 (rs "n4")))
+          (is (= 100 (rs "base")))
+          (is (= 19 (rs "n19")))))
+      (testing "datoms merge the delta in index order"
+        (let [ds (datoms chained :avet :spec/rank)]
+          (is (= (sort (vals (ranks chained))) (map :v ds)))
+          (is (= [[:spec/rank 400]]
+                 (map (juxt (comp (partial ident chained) :a) :v)
+                      (datoms chained :eavt (entid chained [:spec/name "n4"]) :spec/rank))))))
+      (testing "a retracted bytes value is hidden from every index holding it"
+        (let [e (entid chained [:spec/name "base"])]
+          (is (empty? (datoms chained :eavt e :spec/blob)))
+          (is (empty? (datoms chained :aevt :spec/blob)))
+          (is (= 1 (count (datoms base :eavt e :spec/blob))))))
+      (testing "the base snapshot is unaffected"
+        (is (= {"base" -1} (ranks base)))))))
+
 (deftest unit:in-mem-db-evicts-indexes
   (let [database-id (UUID/randomUUID)
         connect-cache-count (count @(:cache-atom global-index-cache))]
@@ -585,3 +585,18 @@
                                              (perform-multiple-queries-on-btree final-btree query)
                                              (perform-multiple-queries-on-other final-map query)))))
                      (finally (qu/release* atom-store-manager :testing nil true))))))
+
+(deftest estimate-range-approximates-count
+  (let [n 2000
+        small (into (bbt/sorted-set-by single-comparator 10 10) (range 5))
+        large (into (bbt/sorted-set-by single-comparator 10 10) (range n))]
+    (testing "a single leaf is counted exactly"
+      (is (= 3 (bbt/estimate-range small [1 3])))
+      (is (= 0 (bbt/estimate-range small [10 20]))))
+    (testing "estimates across many nodes are within an order of magnitude"
+      (let [estimate (bbt/estimate-range large [0 (dec n)])]
+        (is (< (/ n 10) estimate (* n 10)))))
+    (testing "ranges outside the tree estimate nothing"
+      (is (= 0 (bbt/estimate-range large [(* 2 n) (* 3 n)]))))
+    (testing "empty trees estimate nothing"
+      (is (= 0 (bbt/estimate-range (bbt/sorted-set-by single-comparator 10 10) [0 10]))))))
@@ -18,6 +18,7 @@
             [quartermaster.core :as qu]
             [eva.datastructures.protocols :as dsp]
             [recide.core :refer [try*]]
+            [eva.config :as config]
             [eva.v2.storage.value-store.core :as value]
             [eva.v2.storage.value-store.concurrent :as vsc]
             [eva.v2.storage.value-store :as vs]
@@ -116,6 +117,102 @@
         (is (thrown? java.lang.IndexOutOfBoundsException (lazy-read-range pv -1 0))))
       (finally (qu/release* vsc/concurrent-value-store-manager :testing storage-config)))))
 
+(deftest persisted-vector-append-all-tests
+  (let [storage-config (memory-config)
+        store (qu/acquire vsc/concurrent-value-store-manager :testing storage-config)
+        pv0 (create-persisted-vector store)
+        head-key (dsp/storage-id pv0)]
+    (try
+      (let [pv1 (append-all pv0 [0])
+            pv5 (append-all pv1 [1 2 3 4])
+            stale (try* (append-all pv1 [:a :b])
+                        (catch :datastructures/stale e :stale))]
+        (are [x y] (= x y)
+          pv0 (append-all pv0 [])
+          1 (count pv1)
+          5 (count pv5)
+          5 (count (open-persisted-vector store head-key))
+          [0 1 2 3 4] @(read-range pv5 0 5)
+          :stale stale))
+      (finally (qu/release* vsc/concurrent-value-store-manager :testing storage-config)))))
+
+(deftest persisted-vector-lazy-head-tests
+  (config/with-overrides {:eva.log.lazy-head true}
+    (let [storage-config (memory-config)
+          store (qu/acquire vsc/concurrent-value-store-manager :testing storage-config)
+          pv0 (create-persisted-vector store)
+          head-key (dsp/storage-id pv0)]
+      (try
+        (let [pv3 (into pv0 [1 2 3])
+              pv5 (append-all pv3 [4 5])
+              stale (try* (conj pv3 :x)
+                          (catch :datastructures/stale e :stale))
+              opened (open-persisted-vector store head-key)]
+          (are [x y] (= x y)
+            3 (count pv3)
+            5 (count pv5)
+            5 (count opened)
+            [1 2 3 4 5] @(read-range opened 0 5)
+            :stale stale
+            5 (count (repair-vector-head pv3 store))
+            6 (count (conj opened 6))))
+        (finally (qu/release* vsc/concurrent-value-store-manager :testing storage-config))))))
+
+(defn- failing-create-key
+  "Returns a vs/create-key that throws for the key fail-key, after writing it
+  first if written? is true."
+  [create-key fail-key written?]
+  (fn [store k v]
+    (if (= k fail-key)
+      (do (when written? @(create-key store k v))
+          (throw (ex-info "simulated storage failure" {:key k})))
+      (create-key store k v))))
+
+(defn- partial-append-all-checks [store]
+  (let [pv0 (create-persisted-vector store)
+        head-key (dsp/storage-id pv0)
+        entry (fn [i] @(vs/get-value @store (nth-key head-key i)))
+        pv2 (into pv0 [0 1])]
+    (testing "a slot taken by another writer ends the appended prefix"
+      @(vs/create-key @store (nth-key head-key 4) :foreign)
+      (let [pv4 (append-all pv2 [:a :b :c :d])]
+        (is (= 4 (count pv4)))
+        ;; a lazy head reader probes on to the other writer's entry
+        (is (= (if (lazy-head?) 5 4) (count (open-persisted-vector store head-key))))
+        (is (= [0 1 :a :b :foreign] (map entry (range 5))))
+        (is (nil? (entry 5)))))
+    (let [pv0 (create-persisted-vector store)
+          head-key (dsp/storage-id pv0)
+          entry (fn [i] @(vs/get-value @store (nth-key head-key i)))
+          pv2 (into pv0 [0 1])]
+      (testing "a failed create ends the prefix, leaving no entries past it"
+        (let [pv3 (with-redefs [vs/create-key (failing-create-key vs/create-key (nth-key head-key 3) false)]
+                    (append-all pv2 [:a :b :c :d]))]
+          (is (= 3 (count pv3)))
+          (is (= 3 (count (open-persisted-vector store head-key))))
+          (is (= [0 1 :a nil nil nil] (map entry (range 6))))))
+      (testing "a failed create that did write its entry is counted as appended"
+        (let [pv5 (with-redefs [vs/create-key (failing-create-key vs/create-key (nth-key head-key 4) true)]
+                    (append-all (open-persisted-vector store head-key) [:x :y]))]
+          (is (= 5 (count pv5)))
+          (is (= 5 (count (open-persisted-vector store head-key))))
+          (is (= [0 1 :a :x :y nil] (map entry (range 6))))))
+      (testing "a failed first create appends nothing"
+        (is (= :stale
+               (with-redefs [vs/create-key (failing-create-key vs/create-key (nth-key head-key 5) false)]
+                 (try* (append-all (open-persisted-vector store head-key) [:z])
+                       (catch :datastructures/stale e :stale)))))))))
+
+(deftest persisted-vector-partial-append-all-tests
+  (doseq [lazy? [false true]]
+    (testing (str "with :eva.log.lazy-head " lazy?)
+      (config/with-overrides {:eva.log.lazy-head lazy?}
+        (let [storage-config (memory-config)
+              store (qu/acquire vsc/concurrent-value-store-manager :testing storage-config)]
+          (try
+            (partial-append-all-checks store)
+            (finally (qu/release* vsc/concurrent-value-store-manager :testing storage-config))))))))
+
 (deftest persisted-vector-repair-tests
   (let [storage-config (memory-config)
         store (qu/acquire vsc/concurrent-value-store-manager :testing storage-config)
@@ -129,6 +226,10 @@
       (is (true?
            @(vs/replace-value @(.store ^PersistedVector built-vec) head-key {:count 10} {:count 9})))
       (is (= 10 (count (repair-vector-head built-vec store))))
+      ;; case: vec is damaged by several entries, as after a failed append-all
+      (is (true?
+           @(vs/replace-value @(.store ^PersistedVector built-vec) head-key {:count 10} {:count 7})))
+      (is (= 10 (count (repair-vector-head built-vec store))))
       ;; case: repair race
       (is (true?
            @(vs/replace-value @(.store ^PersistedVector built-vec) head-key {:count 10} {:count 4})))
@@ -0,0 +1,121 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+
+(ns eva.v2.system.transactor-test
+  (:require [clojure.test :refer :all]
+            [eva.api :as eva]
+            [eva.core :refer [entry->datoms]]
+            [eva.v2.system.protocols :as p]
+            [eva.v2.system.transactor.core :as transactor]
+            [eva.v2.system.database-connection.core :as dbc]
+            [eva.v2.server.transactor-test-utils :refer [with-local-mem-connection]])
+  (:import (java.util.concurrent ConcurrentLinkedQueue ExecutionException)
+           (java.util.concurrent.locks ReentrantLock)))
+
+(defn- doc-tx [doc]
+  [[:db/add (eva/tempid :db.part/user -1) :db/doc doc]])
+
+(defn- submit-together
+  "Submits each of tx-datas to txor from its own thread while holding the group
+  commit lock, so they are all queued before any is committed. f is called
+  with the lock still held, once all are queued. Returns the futures."
+  [txor tx-datas f]
+  (let [^ReentrantLock lock (:group-commit-lock txor)
+        ^ConcurrentLinkedQueue queue (:group-commit-queue txor)]
+    (.lock lock)
+    (try
+      (let [futs (mapv (fn [tx-data]
+                         (future (p/process-transaction txor {:database-id (:database-id txor)
+                                                              :tx-data tx-data})))
+                       tx-datas)]
+        (loop [waited 0]
+          (when (and (< (.size queue) (count tx-datas)) (< waited 10000))
+            (Thread/sleep 10)
+            (recur (+ waited 10))))
+        (is (= (count tx-datas) (.size queue)))
+        (f)
+        futs)
+      (finally (.unlock lock)))))
+
+(defn- outcome [fut]
+  (try @fut
+       (catch ExecutionException e (.getCause e))))
+
+(defn- all-docs [conn]
+  (set (eva/q '[:find [?d ...] :where [_ :db/doc ?d]] (eva/sync-db conn))))
+
+(defn- tx-docs [msg]
+  (into #{} (keep #(when (string? (:v %)) (:v %))) (entry->datoms (:log-entry msg))))
+
+(deftest unit:group-commit
+  (with-local-mem-connection conn
+    (let [txor @(:transactor conn)
+          batches #(.getCount transactor/group-commit-batch-size)]
+      (testing "concurrent requests commit together, each answered with its own report"
+        (let [docs (mapv #(str "group-" %) (range 7))
+              tx-datas (conj (mapv doc-tx docs) [[:db/add (eva/tempid :db.part/user) :no/such-attr 1]])
+              batches-before (batches)
+              results (mapv outcome (submit-together txor tx-datas (constantly nil)))
+              committed (pop results)]
+          (is (= (inc batches-before) (batches)))
+          (is (instance? Throwable (peek results)))
+          (is (every? map? committed))
+          (is (= (map hash-set docs) (map tx-docs committed)))
+          (let [tx-nums (sort (map (comp :tx-num :log-entry) committed))]
+            (is (= (range (first tx-nums) (+ (first tx-nums) (count committed))) tx-nums)))
+          (is (every? (fn [msg]
+                        (= (set (vals (:tempids msg)))
+                           (into #{} (keep #(when (string? (:v %)) (:e %))) (entry->datoms (:log-entry msg)))))
+                      committed))
+          (testing "and the failed request does not disturb the rest"
+            (is (every? (all-docs conn) docs)))))
+      (testing "a batch that finds the log concurrently modified is retried"
+        (let [dbconn @(:database-connection txor)
+              retries #(.getCount transactor/concurrent-modification-meter)
+              retries-before (retries)
+              docs ["retry-0" "retry-1" "retry-2"]
+              results (mapv outcome
+                            (submit-together
+                             txor
+                             (mapv doc-tx docs)
+                             ;; another writer appends behind the connection's back
+                             #(let [state @(:state dbconn)
+                                    report (p/process-tx dbconn (doc-tx "interloper"))]
+                                (dbc/do-log-append! (:tx-log state) (:log-entry report)))))]
+          (is (< retries-before (retries)))
+          (is (every? map? results))
+          (is (= (map hash-set docs) (map tx-docs results)))
+          (is (every? (all-docs conn) (conj docs "interloper")))))
+      (testing "a batch whose processing reloads the connection state is retried"
+        (let [dbconn @(:database-connection txor)
+              retries #(.getCount transactor/concurrent-modification-meter)
+              reloads #(.getCount dbc/staleness-meter)
+              retries-before (retries)
+              reloads-before (reloads)
+              docs ["reload-0" "reload-1" "reload-2"]
+              ;; the failing transaction finds the snapshot stale and reloads
+              ;; the state, wherever in the batch it lands
+              results (mapv outcome
+                            (submit-together
+                             txor
+                             (conj (mapv doc-tx docs) [[:db/add (eva/tempid :db.part/user) :no/such-attr 1]])
+                             #(let [state @(:state dbconn)
+                                    report (p/process-tx dbconn (doc-tx "reload-interloper"))]
+                                (dbc/do-log-append! (:tx-log state) (:log-entry report)))))]
+          (is (< reloads-before (reloads)))
+          (is (< retries-before (retries)))
+          (is (instance? Throwable (peek results)))
+          (is (every? map? (pop results)))
+          (is (= (map hash-set docs) (map tx-docs (pop results))))
+          (is (every? (all-docs conn) (conj docs "reload-interloper"))))))))
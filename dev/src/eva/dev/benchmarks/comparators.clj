@@ -0,0 +1,73 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+(ns eva.dev.benchmarks.comparators
+  "Criterium benchmarks of the specialized index comparators against the
+   generic bounded-seq comparators they replace.
+
+   From a dev repl: (eva.dev.benchmarks.comparators/run-all)"
+  (:require [criterium.core :as crit]
+            [eva.comparators :as cmp]
+            [eva.datastructures.utils.comparators :refer [LOWER UPPER]])
+  (:import (java.util Comparator UUID)))
+
+(def ^:private sample-size 4096)
+
+(defn- random-value [^java.util.Random r]
+  (case (.nextInt r 4)
+    0 (.nextLong r)
+    1 (str "value-" (.nextInt r 100000))
+    2 (keyword "bench" (str "kw-" (.nextInt r 1000)))
+    3 (UUID. (.nextLong r) (.nextLong r))))
+
+(defn- random-tuple [^java.util.Random r value-slot]
+  (let [v (random-value r)]
+    (vec (for [i (range 4)]
+           (cond (= i value-slot) v
+                 (zero? (.nextInt r 16)) (if (.nextBoolean r) LOWER UPPER)
+                 :else (long (.nextInt r 64)))))))
+
+(defn sample-pairs
+  "Pairs of tuples sharing a value type, similar to the keys compared while
+   descending an index. Values of mixed types are never compared in
+   practice, since a given attribute has a single value type."
+  [value-slot]
+  (let [r (java.util.Random. 42)]
+    (object-array
+     (for [_ (range sample-size)]
+       (let [x (random-tuple r value-slot)
+             y (random-tuple r value-slot)]
+         (if (some? value-slot)
+           [x (assoc y value-slot (nth x value-slot))]
+           [x y]))))))
+
+(defn compare-all ^long [^Comparator c ^objects pairs]
+  (let [n (alength pairs)]
+    (loop [i 0, acc 0]
+      (if (< i n)
+        (let [[x y] (aget pairs i)]
+          (recur (inc i) (+ acc (.compare c x y))))
+        acc))))
+
+(defn bench-index [index-name value-slot]
+  (let [pairs (sample-pairs value-slot)]
+    (println "====" index-name "generic ====")
+    (crit/quick-bench (compare-all (cmp/generic-index-cmp index-name) pairs))
+    (println "====" index-name "specialized ====")
+    (crit/quick-bench (compare-all (cmp/index-cmp index-name) pairs))))
+
+(defn run-all []
+  (bench-index :eavt 2)
+  (bench-index :aevt 2)
+  (bench-index :avet 1)
+  (bench-index :vaet nil))
@@ -0,0 +1,64 @@
+;; Copyright 2015-2019 Workiva Inc.
+;; 
+;; Licensed under the Eclipse Public License 1.0 (the "License");
+;; you may not use this file except in compliance with the License.
+;; You may obtain a copy of the License at
+;; 
+;;      http://opensource.org/licenses/eclipse-1.0.php
+;; 
+;; Unless required by applicable law or agreed to in writing, software
+;; distributed under the License is distributed on an "AS IS" BASIS,
+;; WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;; See the License for the specific language governing permissions and
+;; limitations under the License.
+(ns eva.dev.benchmarks.transitive-closure
+  "Criterium benchmarks of QSQR evaluation of transitive-closure rules over
+   chains and trees, with and without semi-naive evaluation.
+
+   From a dev repl: (eva.dev.benchmarks.transitive-closure/run-all)"
+  (:require [criterium.core :as crit]
+            [eva.config :as config]
+            [eva.query.datalog.qsqr.core :as qsqr]
+            [eva.query.datalog.predicate :as pred]
+            [eva.query.datalog.rule :as rule]
+            [eva.query.datalog.edb :as edb]
+            [eva.query.datalog.program :as prog]))
+
+(def ^:private parent (pred/extensional-predicate 'parent {:term-count 2}))
+(def ^:private ancestor (pred/rule-predicate 'ancestor {:term-count 2}))
+
+(def ^:private left-recursive
+  [(rule/rule (ancestor '[?x ?y]) [(parent '[?x ?y])])
+   (rule/rule (ancestor '[?x ?y]) [(ancestor '[?x ?z]) (parent '[?z ?y])])])
+
+(def ^:private right-recursive
+  [(rule/rule (ancestor '[?x ?y]) [(parent '[?x ?y])])
+   (rule/rule (ancestor '[?x ?y]) [(parent '[?x ?z]) (ancestor '[?z ?y])])])
+
+(defn chain
+  "Edges of a path 0 -> 1 -> ... -> depth, like a deep section hierarchy."
+  [depth]
+  (for [i (range depth)] [i (inc i)]))
+
+(defn tree
+  "Edges of a complete tree with the given fan-out and depth, like an org chart;
+   node n's children are (n * fan-out) + 1 ... (n * fan-out) + fan-out."
+  [fan-out depth]
+  (let [internal (quot (dec (long (Math/pow fan-out depth))) (dec fan-out))]
+    (for [n (range internal)
+          c (range 1 (inc fan-out))]
+      [n (+ (* n fan-out) c)])))
+
+(defn bench-closure [label edges rules]
+  (let [program (prog/program :edbs {'parent (edb/coll-of-tuples->EDB edges)} :rules rules)
+        q (ancestor [0 '?y])]
+    (doseq [semi-naive? [false true]]
+      (println "====" label (if semi-naive? "semi-naive" "naive") "====")
+      (config/with-overrides {:eva.query.semi-naive semi-naive?}
+        (crit/quick-bench (qsqr/query program q))))))
+
+(defn run-all []
+  (bench-closure "chain-64 left-recursive" (chain 64) left-recursive)
+  (bench-closure "chain-64 right-recursive" (chain 64) right-recursive)
+  (bench-closure "tree-3x6 left-recursive" (tree 3 6) left-recursive)
+  (bench-closure "tree-3x6 right-recursive" (tree 3 6) right-recursive))